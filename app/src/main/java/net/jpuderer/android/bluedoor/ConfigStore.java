@@ -0,0 +1,142 @@
+package net.jpuderer.android.bluedoor;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the current {@link LockConfig} for the whole process.
+ *
+ * The preferences are read once, when the store is first used.  After that, readers just
+ * pick up the current snapshot, so the scan callback and the unlock path never go near
+ * preference storage.  Changes swap in a new snapshot atomically and are written back to
+ * the preferences in the background with {@link SharedPreferences.Editor#apply()}.  Writers
+ * are serialized, so the preferences end up matching the last snapshot.  Listeners hear
+ * about changes on the main thread.
+ */
+class ConfigStore {
+    /**
+     * Notified on the main thread when the configuration changes.
+     */
+    interface Listener {
+        void onConfigChanged(LockConfig oldConfig, LockConfig newConfig);
+    }
+
+    private static ConfigStore sInstance;
+
+    private final SharedPreferences mSharedPreferences;
+    private final AtomicReference<LockConfig> mConfig;
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ArrayList<Listener> mListeners = new ArrayList<Listener>();
+
+    public static synchronized ConfigStore getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ConfigStore(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ConfigStore(Context context) {
+        mSharedPreferences = context.getSharedPreferences(context.getPackageName(),
+                Context.MODE_PRIVATE);
+        mConfig = new AtomicReference<LockConfig>(new LockConfig(
+                mSharedPreferences.getString(DoorlockService.PREF_DEFAULT_DEVICE_ADDRESS, null),
+                mSharedPreferences.getString(DoorlockService.PREF_DEFAULT_DEVICE_NAME, null),
+                mSharedPreferences.getString(DoorlockService.PREF_LOCK_PASSCODE,
+                        DoorlockService.DEFAULT_LOCK_PASSCODE),
+                mSharedPreferences.getStringSet(DoorlockService.PREF_LOCK_ADDRESSES,
+                        Collections.<String>emptySet())));
+    }
+
+    /**
+     * Returns the current configuration.  Safe to call from any thread.
+     */
+    public LockConfig get() {
+        return mConfig.get();
+    }
+
+    public void setDefaultDevice(String address, String name) {
+        final LockConfig oldConfig;
+        final LockConfig newConfig;
+        synchronized (this) {
+            oldConfig = mConfig.get();
+            newConfig = oldConfig.withDefaultDevice(address, name);
+            mConfig.set(newConfig);
+            mSharedPreferences.edit()
+                    .putString(DoorlockService.PREF_DEFAULT_DEVICE_ADDRESS, address)
+                    .putString(DoorlockService.PREF_DEFAULT_DEVICE_NAME, name)
+                    .apply();
+        }
+        dispatch(oldConfig, newConfig);
+    }
+
+    public void setPasscode(String passcode) {
+        final LockConfig oldConfig;
+        final LockConfig newConfig;
+        synchronized (this) {
+            oldConfig = mConfig.get();
+            newConfig = oldConfig.withPasscode(passcode);
+            mConfig.set(newConfig);
+            mSharedPreferences.edit()
+                    .putString(DoorlockService.PREF_LOCK_PASSCODE, newConfig.mPasscode)
+                    .apply();
+        }
+        dispatch(oldConfig, newConfig);
+    }
+
+    /**
+     * Adds or removes a lock from the set we keep connected besides the default device.
+     */
+    public void setExtraAddress(String address, boolean present) {
+        final LockConfig oldConfig;
+        final LockConfig newConfig;
+        synchronized (this) {
+            oldConfig = mConfig.get();
+            final Set<String> addresses = new HashSet<String>(oldConfig.mExtraAddresses);
+            final boolean changed = present ? addresses.add(address) : addresses.remove(address);
+            if (!changed) return;
+            newConfig = oldConfig.withExtraAddresses(addresses);
+            mConfig.set(newConfig);
+            mSharedPreferences.edit()
+                    .putStringSet(DoorlockService.PREF_LOCK_ADDRESSES, addresses)
+                    .apply();
+        }
+        dispatch(oldConfig, newConfig);
+    }
+
+    /**
+     * Must be called on the main thread.
+     */
+    public void registerListener(Listener listener) {
+        if (!mListeners.contains(listener)) {
+            mListeners.add(listener);
+        }
+    }
+
+    /**
+     * Must be called on the main thread.
+     */
+    public void unregisterListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+
+    private void dispatch(final LockConfig oldConfig, final LockConfig newConfig) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // Copy, so listeners may unregister themselves
+                final Listener[] listeners = mListeners.toArray(new Listener[mListeners.size()]);
+                for (Listener listener : listeners) {
+                    listener.onConfigChanged(oldConfig, newConfig);
+                }
+            }
+        });
+    }
+}
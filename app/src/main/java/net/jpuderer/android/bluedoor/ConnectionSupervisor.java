@@ -0,0 +1,233 @@
+package net.jpuderer.android.bluedoor;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+
+/**
+ * Decides when connection attempts to each lock may be made.
+ *
+ * Near the edge of range the lock keeps advertising while connections to it keep failing,
+ * and reacting to every advertisement with a new attempt tears down the one in flight and
+ * leaves the stack littered with half open clients.  The supervisor tracks each lock
+ * through an explicit state machine:
+ *
+ *     IDLE --attempt--> CONNECTING --connected--> CONNECTED --disconnected--> IDLE
+ *                           |                         |
+ *                        failed              dropped too soon
+ *                           v                         |
+ *                        BACKOFF <--------------------+
+ *
+ * Only one attempt per lock is ever in flight.  The session gives up on an attempt that
+ * hasn't connected within {@link LockSession#CONNECT_TIMEOUT_MS}, which counts as a
+ * failure like any other, so no attempt holds a lock in CONNECTING for good.  After a
+ * failure, further attempts are refused for a delay that doubles with each consecutive
+ * failure, with random jitter so that several locks failing together don't retry in lock
+ * step.  Attempts the user asked
+ * for (a lock or unlock, say) skip the backoff, but still aren't duplicated.
+ *
+ * Counts attempts, successes and failures, and the time spent in each state, for
+ * diagnostics.  Times are {@code SystemClock.elapsedRealtime()} values passed in by the
+ * caller.  Only used on the service's event loop.  Not thread safe.
+ */
+class ConnectionSupervisor {
+    static final int STATE_IDLE = 0;
+    static final int STATE_CONNECTING = 1;
+    static final int STATE_CONNECTED = 2;
+    static final int STATE_BACKOFF = 3;
+    static final int STATE_COUNT = 4;
+
+    // Backoff after the first failure, and the most it grows to
+    static final long INITIAL_BACKOFF_MS = 1000;
+    static final long MAX_BACKOFF_MS = 60 * 1000;
+    // A connection that drops sooner than this counts as a failure
+    static final long MIN_STABLE_CONNECTION_MS = 5000;
+
+    /**
+     * Supervision of one lock's connection.
+     */
+    static class Link {
+        private int mState = STATE_IDLE;
+        private long mStateSince;
+        // When we may try again, while backing off
+        private long mRetryAt;
+        private int mConsecutiveFailures;
+        // Set when we're about to disconnect on purpose, so it isn't taken for a failure
+        private boolean mDisconnectRequested;
+
+        private int mAttempts;
+        private int mSuccesses;
+        private int mFailures;
+        private final long[] mTimeInState = new long[STATE_COUNT];
+
+        long getTimeInState(int state, long now) {
+            return mTimeInState[state] + ((state == mState) ? now - mStateSince : 0);
+        }
+    }
+
+    private final Random mRandom;
+    private final HashMap<String, Link> mLinks = new HashMap<String, Link>();
+
+    ConnectionSupervisor() {
+        this(new Random());
+    }
+
+    ConnectionSupervisor(Random random) {
+        mRandom = random;
+    }
+
+    /**
+     * Asks whether a connection attempt may be made now, and if so, records it as started.
+     *
+     * @param userInitiated Whether the user is waiting on the connection, in which case
+     *                      the backoff doesn't apply.
+     * @return Return true if the caller should go ahead and connect.
+     */
+    public boolean startAttempt(String address, long now, boolean userInitiated) {
+        final Link link = getLink(address, now);
+        switch (link.mState) {
+            case STATE_CONNECTING:
+            case STATE_CONNECTED:
+                return false;
+            case STATE_BACKOFF:
+                if (!userInitiated && now < link.mRetryAt) {
+                    return false;
+                }
+                break;
+        }
+        link.mAttempts++;
+        link.mDisconnectRequested = false;
+        setState(link, STATE_CONNECTING, now);
+        return true;
+    }
+
+    /**
+     * The attempt in flight couldn't be started after all.
+     */
+    public void onAttemptAbandoned(String address, long now) {
+        final Link link = getLink(address, now);
+        if (link.mState == STATE_CONNECTING) {
+            fail(link, now);
+        }
+    }
+
+    public void onConnected(String address, long now) {
+        final Link link = getLink(address, now);
+        if (link.mState == STATE_CONNECTED) return;
+        // Connections we didn't start, like a reconnect by the stack, count all the same
+        link.mSuccesses++;
+        setState(link, STATE_CONNECTED, now);
+    }
+
+    /**
+     * We're about to disconnect from the lock on purpose.
+     */
+    public void onDisconnectRequested(String address, long now) {
+        getLink(address, now).mDisconnectRequested = true;
+    }
+
+    public void onDisconnected(String address, long now) {
+        final Link link = getLink(address, now);
+        final boolean requested = link.mDisconnectRequested;
+        link.mDisconnectRequested = false;
+        if (link.mState == STATE_CONNECTING) {
+            if (requested) {
+                setState(link, STATE_IDLE, now);
+            } else {
+                fail(link, now);
+            }
+        } else if (link.mState == STATE_CONNECTED) {
+            if (!requested && now - link.mStateSince < MIN_STABLE_CONNECTION_MS) {
+                fail(link, now);
+            } else {
+                link.mConsecutiveFailures = 0;
+                setState(link, STATE_IDLE, now);
+            }
+        }
+    }
+
+    /**
+     * Returns how long until an attempt that isn't user initiated may be made, or 0 if one
+     * may be made now (or is already in flight).
+     */
+    public long getRetryDelay(String address, long now) {
+        final Link link = mLinks.get(address);
+        if (link == null || link.mState != STATE_BACKOFF) return 0;
+        return Math.max(0, link.mRetryAt - now);
+    }
+
+    public int getState(String address) {
+        final Link link = mLinks.get(address);
+        return (link != null) ? link.mState : STATE_IDLE;
+    }
+
+    /**
+     * Returns a one line summary of the supervision of a lock.
+     */
+    public String getDescription(String address, long now) {
+        final Link link = mLinks.get(address);
+        if (link == null) {
+            return "no attempts";
+        }
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%s; %d attempts, %d connected, %d failed; ",
+                getStateName(link.mState), link.mAttempts, link.mSuccesses, link.mFailures));
+        for (int state = 0; state < STATE_COUNT; state++) {
+            if (state > 0) sb.append(", ");
+            sb.append(String.format(Locale.US, "%s %ds", getStateName(state),
+                    link.getTimeInState(state, now) / 1000));
+        }
+        if (link.mState == STATE_BACKOFF && now < link.mRetryAt) {
+            sb.append(String.format(Locale.US, "; retry in %.1fs", (link.mRetryAt - now) / 1000.0));
+        }
+        return sb.toString();
+    }
+
+    private Link getLink(String address, long now) {
+        Link link = mLinks.get(address);
+        if (link == null) {
+            link = new Link();
+            link.mStateSince = now;
+            mLinks.put(address, link);
+        }
+        return link;
+    }
+
+    private void fail(Link link, long now) {
+        link.mFailures++;
+        link.mConsecutiveFailures++;
+        link.mRetryAt = now + getBackoff(link.mConsecutiveFailures);
+        setState(link, STATE_BACKOFF, now);
+    }
+
+    /**
+     * Returns the backoff after the given number of consecutive failures: half of it fixed,
+     * and half random, so retries are spread out but never come too soon.
+     */
+    long getBackoff(int failures) {
+        final int doublings = Math.min(failures - 1, 30);
+        final long base = Math.min(MAX_BACKOFF_MS, INITIAL_BACKOFF_MS << doublings);
+        return base / 2 + (long) (mRandom.nextDouble() * (base / 2));
+    }
+
+    private static void setState(Link link, int state, long now) {
+        link.mTimeInState[link.mState] += now - link.mStateSince;
+        link.mState = state;
+        link.mStateSince = now;
+    }
+
+    static String getStateName(int state) {
+        switch (state) {
+            case STATE_IDLE:
+                return "idle";
+            case STATE_CONNECTING:
+                return "connecting";
+            case STATE_CONNECTED:
+                return "connected";
+            case STATE_BACKOFF:
+                return "backoff";
+            default:
+                return "state " + state;
+        }
+    }
+}
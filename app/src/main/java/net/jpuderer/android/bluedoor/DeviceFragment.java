@@ -19,17 +19,21 @@ import android.support.design.widget.FloatingActionButton;
 import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
 import android.widget.BaseAdapter;
+import android.widget.CheckBox;
 import android.widget.ImageView;
 import android.widget.Spinner;
 import android.widget.TextView;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
 
 public class DeviceFragment extends Fragment implements
         AdapterView.OnItemSelectedListener, View.OnClickListener {
@@ -42,9 +46,30 @@ public class DeviceFragment extends Fragment implements
     private String mDefaultDeviceAddress;
     private String mDefaultDeviceName;
     private ParcelUuid mServiceUuid;
+    private ServiceUuidMatcher mServiceMatcher;
     private boolean mFirstTime = true;
+    // Where the first scan is posted, until it runs
+    private View mRootView;
+    private ConfigStore mConfigStore;
+    private ScanCapabilities mScanCapabilities;
+    private DeviceInfoCache mDeviceInfoCache;
+
+    // Whether the current scan relies on the controller to filter for our service
+    private boolean mHardwareFiltered;
+    // Set when a hardware filtered scan found nothing, so the next scan double checks
+    // without the filter.
+    private boolean mHardwareFilterSuspect;
+    private int mHardwareFilterMisses;
+    // Number of matching devices seen during the current scan
+    private int mMatchCount;
+
+    // Changes waiting for the next frame to be shown
+    private boolean mListChanged;
+    private boolean mDetailsChanged;
+    private boolean mFrameScheduled;
 
     private FloatingActionButton mSelectButton;
+    private CheckBox mKeepConnectedBox;
 
     private ScanResultWrapper mCurrentDevice;
     private BluetoothAdapter mBluetoothAdapter;
@@ -56,6 +81,17 @@ public class DeviceFragment extends Fragment implements
     // Stops scanning after 10 seconds.
     private static final long SCAN_PERIOD = 10000;
 
+    // How long the controller may hold on to results before delivering them, when it
+    // supports batching.
+    private static final long SCAN_REPORT_DELAY = 500;
+
+    // Times in a row an unfiltered scan must find what a filtered one missed, before we
+    // decide the filter is broken, since the lock may just have come into range
+    private static final int HARDWARE_FILTER_MISSES_TO_BREAK = 2;
+
+    // "Last Seen" is shown to the minute, so newer sightings within a minute look the same
+    private static final long NANOS_PER_MINUTE = 60L * 1000 * 1000 * 1000;
+
     private static final String ARG_DEFAULT_DEVICE_ADDRESS =
             "ARG_DEFAULT_DEVICE_ADDRESS";
     private static final String ARG_DEFAULT_DEVICE_NAME =
@@ -86,6 +122,7 @@ public class DeviceFragment extends Fragment implements
         public void onScanningStatusChange(boolean scanning);
         public void onShowScanningStatus(boolean show);
         public void onDeviceSelected(BluetoothDevice device);
+        public void onKeepConnectedChanged(BluetoothDevice device, boolean keepConnected);
         public void onUpdateView();
     }
 
@@ -103,12 +140,8 @@ public class DeviceFragment extends Fragment implements
         private long mTimeStampNanos;
 
         public ScanResultWrapper(ScanResult result) {
-            mScanResult = result;
             mDevice = result.getDevice();
-            mName = mDevice.getName();
-            mRssi = result.getRssi();
-            mTimeStampNanos = result.getTimestampNanos();
-            mTxPowerLevel = result.getScanRecord().getTxPowerLevel();
+            update(result);
         }
 
         public ScanResultWrapper(BluetoothDevice device, String fallbackName, int rssi,
@@ -122,6 +155,25 @@ public class DeviceFragment extends Fragment implements
             mTxPowerLevel = txPoweLevel;
         }
 
+        /**
+         * Updates the wrapper in place with a newer result for the same device.
+         *
+         * @return Return true if the name changed.
+         */
+        public boolean update(ScanResult result) {
+            mScanResult = result;
+            mRssi = result.getRssi();
+            mTimeStampNanos = result.getTimestampNanos();
+            mTxPowerLevel = result.getScanRecord().getTxPowerLevel();
+            final String name = mDevice.getName();
+            // Keep any fallback name we were given if the device doesn't have one
+            if (!TextUtils.isEmpty(name) && !name.equals(mName)) {
+                mName = name;
+                return true;
+            }
+            return false;
+        }
+
         @Override
         public boolean equals(Object o) {
             if (this == o) return true;
@@ -165,18 +217,14 @@ public class DeviceFragment extends Fragment implements
             new ScanCallback() {
                 @Override
                 public void onScanResult(int callbackType, ScanResult result) {
-                    // Sadly, we have to filter for our desired service UUID here, since
-                    // it seems the offloaded filtering is broken (on the N6 at least)
-                    // Some details here:
-                    //    https://code.google.com/p/android/issues/detail?id=180675
-                    final ScanFilter scanFilter = new ScanFilter.Builder()
-                            .setServiceUuid(mServiceUuid)
-                            .build();
-                    if (!scanFilter.matches(result)) return;
-
-                    ScanResultWrapper resultWrapper = new ScanResultWrapper(result);
-                    mLeDeviceListAdapter.addDevice(resultWrapper);
-                    mLeDeviceListAdapter.notifyDataSetChanged();
+                    addScanResult(result);
+                }
+
+                @Override
+                public void onBatchScanResults(List<ScanResult> results) {
+                    for (ScanResult result : results) {
+                        addScanResult(result);
+                    }
                 }
 
                 @Override
@@ -185,6 +233,23 @@ public class DeviceFragment extends Fragment implements
                 }
             };
 
+    // Applies the changes collected since the last frame.  However fast results arrive, the
+    // views are updated at most once a frame.
+    private final Choreographer.FrameCallback mFrameCallback = new Choreographer.FrameCallback() {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            mFrameScheduled = false;
+            if (mListChanged) {
+                mListChanged = false;
+                mLeDeviceListAdapter.notifyDataSetChanged();
+            }
+            if (mDetailsChanged) {
+                mDetailsChanged = false;
+                if (getView() != null) updateDeviceDetails();
+            }
+        }
+    };
+
     @Override
     public void onCreate(Bundle bundle) {
         super.onCreate(bundle);
@@ -193,6 +258,10 @@ public class DeviceFragment extends Fragment implements
         mDefaultDeviceAddress = getArguments().getString(ARG_DEFAULT_DEVICE_ADDRESS, null);
         mDefaultDeviceName = getArguments().getString(ARG_DEFAULT_DEVICE_NAME, null);
         mServiceUuid = getArguments().getParcelable(ARG_SERVICE_UUID);
+        mServiceMatcher = new ServiceUuidMatcher(mServiceUuid.getUuid());
+        mConfigStore = ConfigStore.getInstance(getActivity());
+        mScanCapabilities = ScanCapabilities.getInstance(getActivity());
+        mDeviceInfoCache = DeviceInfoCache.getInstance(getActivity());
 
         final BluetoothManager bluetoothManager =
                 (BluetoothManager) getActivity().getSystemService(Context.BLUETOOTH_SERVICE);
@@ -220,13 +289,19 @@ public class DeviceFragment extends Fragment implements
         mSelectButton = (FloatingActionButton) rootView.findViewById(R.id.select_button);
         mSelectButton.setOnClickListener(this);
 
+        // Whether to stay connected to this lock as well as the default one
+        mKeepConnectedBox = (CheckBox) rootView.findViewById(R.id.details_keep_connected);
+        mKeepConnectedBox.setOnClickListener(this);
+
         Spinner deviceSpinner = (Spinner) rootView.findViewById(R.id.device_spinner);
         deviceSpinner.setAdapter(mLeDeviceListAdapter);
         deviceSpinner.setOnItemSelectedListener(this);
 
         if (mFirstTime) {
-            mFirstTime = false;
-            scanLeDevice(true);
+            // Posted to a view that isn't attached yet, so it runs once the first frame
+            // with the fragment in it has been drawn
+            mRootView = rootView;
+            rootView.post(mFirstScanRunnable);
         }
 
         return rootView;
@@ -263,6 +338,28 @@ public class DeviceFragment extends Fragment implements
         super.onDetach();
     }
 
+    private final Runnable mFirstScanRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mFirstTime = false;
+            mRootView = null;
+            scanLeDevice(true);
+        }
+    };
+
+    @Override
+    public void onDestroyView() {
+        if (mRootView != null) {
+            mRootView.removeCallbacks(mFirstScanRunnable);
+            mRootView = null;
+        }
+        if (mFrameScheduled) {
+            Choreographer.getInstance().removeFrameCallback(mFrameCallback);
+            mFrameScheduled = false;
+        }
+        super.onDestroyView();
+    }
+
     @Override
     public void onDestroy() {
         scanLeDevice(false);
@@ -288,6 +385,11 @@ public class DeviceFragment extends Fragment implements
     @Override
     public void onClick(View v) {
         if (mCurrentDevice == null) return;
+        if (v == mKeepConnectedBox) {
+            mCallback.onKeepConnectedChanged(mCurrentDevice.getDevice(),
+                    mKeepConnectedBox.isChecked());
+            return;
+        }
         mDefaultDeviceAddress = mCurrentDevice.getAddress();
         mCallback.onDeviceSelected(mCurrentDevice.getDevice());
         mLeDeviceListAdapter.notifyDataSetChanged();
@@ -311,32 +413,48 @@ public class DeviceFragment extends Fragment implements
                 mLeDeviceListAdapter.notifyDataSetChanged();
             }
 
-            // Stop any existing scan first
+            // Stop any existing scan first, along with its timeout
+            mHandler.removeCallbacksAndMessages(null);
             mBluetoothLeScanner.stopScan(mLeScanCallback);
             // Start low power BT-LE scanning
             Log.d(TAG, "mServiceUuid: " + mServiceUuid);
 
-            // We're using a null filter here, since it seems the offloaded
-            // filtering is broken (on the N6 at least).  We do the filter in
-            // the results callback instead.
-            //
-            // Some details here:
+            // Offloaded filtering is broken on some devices (the N6 at least), and just
+            // reports nothing.  Some details here:
             //    https://code.google.com/p/android/issues/detail?id=180675
+            //
+            // So we only filter in the controller where that hasn't been seen to fail,
+            // and always check results against our own matcher as well.
+            mHardwareFiltered = mBluetoothAdapter.isOffloadedFilteringSupported() &&
+                    !mHardwareFilterSuspect &&
+                    getHardwareFilterState() != ScanCapabilities.HARDWARE_FILTER_BROKEN;
+            mMatchCount = 0;
             final ScanFilter scanFilter = new ScanFilter.Builder()
-                    .setServiceUuid(null)
-                    .build();
-            final ScanSettings scanSettings = new ScanSettings.Builder()
-                    .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY)
+                    .setServiceUuid(mHardwareFiltered ? mServiceUuid : null)
                     .build();
+            final ScanSettings.Builder settingsBuilder = new ScanSettings.Builder()
+                    .setScanMode(ScanSettings.SCAN_MODE_LOW_LATENCY);
+            if (mBluetoothAdapter.isOffloadedScanBatchingSupported()) {
+                // Let the controller queue results up, rather than waking us for every
+                // advertisement.
+                settingsBuilder.setReportDelay(SCAN_REPORT_DELAY);
+            }
+            final ScanSettings scanSettings = settingsBuilder.build();
+            Log.d(TAG, "Scanning with " + (mHardwareFiltered ? "hardware" : "software") +
+                    " filtering");
 
-            // Stops scanning after a pre-defined scan period.
+            // Stops scanning after a pre-defined scan period.  Results the controller is
+            // still holding are flushed first; they're delivered asynchronously, so the scan
+            // is only stopped, and its results counted, once they've had time to arrive.
             mHandler.postDelayed(new Runnable() {
                 @Override
                 public void run() {
-                    mScanning = false;
-                    if (mBluetoothAdapter.isEnabled())
-                        mBluetoothLeScanner.stopScan(mLeScanCallback);
-                    updateProgressSpinner();
+                    if (!mBluetoothAdapter.isEnabled()) {
+                        mStopScanRunnable.run();
+                        return;
+                    }
+                    mBluetoothLeScanner.flushPendingScanResults(mLeScanCallback);
+                    mHandler.postDelayed(mStopScanRunnable, SCAN_REPORT_DELAY);
                 }
             }, SCAN_PERIOD);
 
@@ -353,6 +471,99 @@ public class DeviceFragment extends Fragment implements
         }
     }
 
+    private final Runnable mStopScanRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mScanning = false;
+            if (mBluetoothAdapter.isEnabled()) {
+                mBluetoothLeScanner.stopScan(mLeScanCallback);
+            }
+            onScanPeriodComplete();
+            updateProgressSpinner();
+        }
+    };
+
+    /**
+     * Adds a scan result to the device list if it advertises our service, or updates the
+     * entry for the device if it is already in the list.
+     */
+    private void addScanResult(ScanResult result) {
+        final byte[] scanRecord = result.getScanRecord() != null ?
+                result.getScanRecord().getBytes() : null;
+        if (!mServiceMatcher.matches(scanRecord)) {
+            if (mHardwareFiltered) {
+                // The controller let through something it should have filtered
+                Log.w(TAG, "Hardware scan filter passed a non-matching device");
+                setHardwareFilterState(ScanCapabilities.HARDWARE_FILTER_BROKEN);
+            }
+            return;
+        }
+        mMatchCount++;
+        final ScanResultWrapper device = mLeDeviceListAdapter.findDevice(result);
+        if (device == null) {
+            // Not seen yet, so the list itself changes
+            mLeDeviceListAdapter.addDevice(new ScanResultWrapper(result));
+            scheduleUpdate(true, false);
+        } else {
+            // The spinner only shows the name, and the details only show the RSSI and the
+            // minute the device was last seen, so most repeat advertisements change nothing
+            final int oldRssi = device.getRssi();
+            final long oldMinute = device.getTimeStampNanos() / NANOS_PER_MINUTE;
+            final boolean nameChanged = device.update(result);
+            final boolean detailsChanged = nameChanged || device.getRssi() != oldRssi ||
+                    device.getTimeStampNanos() / NANOS_PER_MINUTE != oldMinute;
+            scheduleUpdate(nameChanged, detailsChanged && device == mCurrentDevice);
+        }
+    }
+
+    private void scheduleUpdate(boolean listChanged, boolean detailsChanged) {
+        mListChanged |= listChanged;
+        mDetailsChanged |= detailsChanged;
+        if (!mFrameScheduled && (mListChanged || mDetailsChanged)) {
+            mFrameScheduled = true;
+            Choreographer.getInstance().postFrameCallback(mFrameCallback);
+        }
+    }
+
+    /**
+     * Updates what we know about hardware filtering, based on what a full scan period found.
+     */
+    private void onScanPeriodComplete() {
+        if (mHardwareFiltered) {
+            if (mMatchCount > 0) {
+                mHardwareFilterMisses = 0;
+                setHardwareFilterState(ScanCapabilities.HARDWARE_FILTER_WORKS);
+            } else if (getHardwareFilterState() != ScanCapabilities.HARDWARE_FILTER_WORKS) {
+                // Either there's no lock around, or the filter doesn't work.  Find out
+                // which on the next scan.
+                mHardwareFilterSuspect = true;
+            }
+        } else if (mHardwareFilterSuspect) {
+            mHardwareFilterSuspect = false;
+            if (mMatchCount == 0) {
+                // No lock around, so we learned nothing
+                return;
+            }
+            // Found without the filter what the filter didn't find
+            mHardwareFilterMisses++;
+            Log.w(TAG, "Hardware scan filter missed the lock, " + mHardwareFilterMisses +
+                    " time(s) in a row");
+            if (mHardwareFilterMisses >= HARDWARE_FILTER_MISSES_TO_BREAK) {
+                Log.w(TAG, "Hardware scan filtering appears to be broken");
+                setHardwareFilterState(ScanCapabilities.HARDWARE_FILTER_BROKEN);
+                mHardwareFilterMisses = 0;
+            }
+        }
+    }
+
+    private int getHardwareFilterState() {
+        return mScanCapabilities.getHardwareFilterState(System.currentTimeMillis());
+    }
+
+    private void setHardwareFilterState(int state) {
+        mScanCapabilities.setHardwareFilterState(state, System.currentTimeMillis());
+    }
+
     private void updateProgressSpinner() {
         if (mCallback != null) {
             mCallback.onScanningStatusChange(mScanning);
@@ -371,6 +582,10 @@ public class DeviceFragment extends Fragment implements
         String status = "--";
         String rssi = "--";
         String address = "--";
+        String model = "--";
+        String firmware = "--";
+        boolean keepConnected = false;
+        boolean canKeepConnected = false;
 
         if (mCurrentDevice != null) {
             if (mCurrentDevice.getRssi() != 0)
@@ -380,6 +595,9 @@ public class DeviceFragment extends Fragment implements
             if (!mCurrentDevice.getAddress().equals(mDefaultDeviceAddress)) {
                 mSelectButton.setVisibility(View.VISIBLE);
                 status = "Disconnected";
+                keepConnected = mConfigStore.get().mExtraAddresses.contains(
+                        mCurrentDevice.getAddress());
+                canKeepConnected = true;
                 lastSeenTimestamp = System.currentTimeMillis() -
                         SystemClock.elapsedRealtime() +
                         (mCurrentDevice.getTimeStampNanos() / 1000000);
@@ -390,6 +608,8 @@ public class DeviceFragment extends Fragment implements
             // Is the current default device
             } else {
                 mSelectButton.setVisibility(View.INVISIBLE);
+                // We always stay connected to the default device
+                keepConnected = true;
                 if (mConnectionState == DoorlockService.STATE_CONNECTED) {
                     status = "Connected";
                     lastSeenTimestamp = System.currentTimeMillis();
@@ -408,6 +628,14 @@ public class DeviceFragment extends Fragment implements
                 if (!TextUtils.isEmpty(mCurrentDevice.getAddress()))
                     address = mCurrentDevice.getAddress();
             }
+
+            // Remembered from when we last connected, if we ever have
+            final DeviceInfoCache.DeviceInfo info =
+                    mDeviceInfoCache.get(mCurrentDevice.getAddress());
+            if (info != null && info.hasDetails()) {
+                if (!TextUtils.isEmpty(info.mModel)) model = info.mModel;
+                if (!TextUtils.isEmpty(info.mFirmware)) firmware = info.mFirmware;
+            }
         }
 
         final TextView statusView = (TextView) getView().findViewById(R.id.details_status);
@@ -419,9 +647,18 @@ public class DeviceFragment extends Fragment implements
         final TextView addressView = (TextView) getView().findViewById(R.id.details_address);
         addressView.setText(address);
 
+        final TextView modelView = (TextView) getView().findViewById(R.id.details_model);
+        modelView.setText(model);
+
+        final TextView firmwareView = (TextView) getView().findViewById(R.id.details_firmware);
+        firmwareView.setText(firmware);
+
         final TextView rssiView = (TextView) getView().findViewById(R.id.details_rssi);
         rssiView.setText(rssi);
 
+        mKeepConnectedBox.setChecked(keepConnected);
+        mKeepConnectedBox.setEnabled(canKeepConnected);
+
         final TextView lastSeenView = (TextView) getView().findViewById(R.id.details_last_seen);
         final CharSequence lastSeenString = DateUtils.getRelativeDateTimeString(getActivity(),
                 lastSeenTimestamp,
@@ -434,21 +671,36 @@ public class DeviceFragment extends Fragment implements
             lastSeenView.setText("--");
     }
 
-    // Adapter for holding devices found through scanning.
+    // Adapter for holding devices found through scanning.  Devices are kept in the order
+    // they were found, and are also indexed by address so that repeat advertisements can
+    // be matched to their entry without searching the list.
     private class LeDeviceListAdapter extends BaseAdapter {
         private ArrayList<ScanResultWrapper> mLeDevices;
+        private HashMap<String, ScanResultWrapper> mDevicesByAddress;
         private LayoutInflater mInflator;
 
         public LeDeviceListAdapter() {
             super();
             mLeDevices = new ArrayList<ScanResultWrapper>();
+            mDevicesByAddress = new HashMap<String, ScanResultWrapper>();
             mInflator = getActivity().getLayoutInflater();
         }
 
-        public void addDevice(ScanResultWrapper result) {
-            if(!mLeDevices.contains(result)) {
-                mLeDevices.add(result);
+        public boolean addDevice(ScanResultWrapper result) {
+            if (mDevicesByAddress.containsKey(result.getAddress())) {
+                return false;
             }
+            mDevicesByAddress.put(result.getAddress(), result);
+            mLeDevices.add(result);
+            return true;
+        }
+
+        /**
+         * Returns the entry for the device in a scan result, or null if the device isn't in
+         * the list yet.
+         */
+        public ScanResultWrapper findDevice(ScanResult result) {
+            return mDevicesByAddress.get(result.getDevice().getAddress());
         }
 
         public ScanResultWrapper getDevice(int position) {
@@ -457,6 +709,7 @@ public class DeviceFragment extends Fragment implements
 
         public void clear() {
             mLeDevices.clear();
+            mDevicesByAddress.clear();
             notifyDataSetChanged();
         }
 
@@ -0,0 +1,194 @@
+package net.jpuderer.android.bluedoor;
+
+import android.content.Context;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+
+/**
+ * Remembers, on disk, what we've learned about each lock: the layout of its GATT services,
+ * and what it says about itself in the Device Information service.
+ *
+ * The Device Information fields are read once, on the first connection, and then kept
+ * across connections and restarts, so the device picker can show them without
+ * connecting.  They're only read again if the lock's service layout changes, which is
+ * what a firmware update looks like from here.  The file starts with a version; bumping
+ * {@link #VERSION} when what we store (or how we fingerprint layouts) changes throws away
+ * everything written by older versions.
+ *
+ * The whole cache is small, so it's read in full when created, and written out in full
+ * (to a temporary file, renamed over the old one) whenever it changes.  Not Android
+ * specific, so it can be tested on the JVM.  Thread safe.
+ */
+class DeviceInfoCache {
+    static final int VERSION = 1;
+
+    /**
+     * What we know about one lock.
+     */
+    static final class DeviceInfo {
+        final String mAddress;
+        // Fingerprint of the GATT layout, from GattLayoutCache
+        final String mLayout;
+        final int mServiceCount;
+        // Null until read from the lock
+        final String mModel;
+        final String mFirmware;
+        // When any of this last changed (ms since the epoch)
+        final long mUpdated;
+
+        DeviceInfo(String address, String layout, int serviceCount, String model,
+                   String firmware, long updated) {
+            mAddress = address;
+            mLayout = layout;
+            mServiceCount = serviceCount;
+            mModel = model;
+            mFirmware = firmware;
+            mUpdated = updated;
+        }
+
+        /**
+         * Returns whether the Device Information fields have been read.
+         */
+        boolean hasDetails() {
+            return mModel != null && mFirmware != null;
+        }
+    }
+
+    private static DeviceInfoCache sInstance;
+
+    private final File mFile;
+    private final HashMap<String, DeviceInfo> mDevices = new HashMap<String, DeviceInfo>();
+
+    public static synchronized DeviceInfoCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new DeviceInfoCache(new File(context.getApplicationContext()
+                    .getFilesDir(), "devices"));
+        }
+        return sInstance;
+    }
+
+    DeviceInfoCache(File file) {
+        mFile = file;
+        try {
+            load();
+        } catch (IOException e) {
+            // Unreadable, or from another version; start over
+            mDevices.clear();
+        }
+    }
+
+    public synchronized DeviceInfo get(String address) {
+        return mDevices.get(address);
+    }
+
+    /**
+     * Records the layout discovered for a lock.  If it differs from the one we had, the
+     * Device Information fields are dropped, so they're read again.
+     *
+     * @return Return true if the Device Information fields need reading.
+     */
+    public synchronized boolean putLayout(String address, String layout, int serviceCount,
+                                          long now) {
+        final DeviceInfo old = mDevices.get(address);
+        if (old != null && layout.equals(old.mLayout)) {
+            return !old.hasDetails();
+        }
+        mDevices.put(address, new DeviceInfo(address, layout, serviceCount, null, null, now));
+        save();
+        return true;
+    }
+
+    /**
+     * Records the Device Information fields read from a lock whose layout we know.  A null
+     * field wasn't read, and keeps whatever we had for it.
+     */
+    public synchronized void putDetails(String address, String model, String firmware,
+                                        long now) {
+        final DeviceInfo old = mDevices.get(address);
+        if (old == null) return;
+        mDevices.put(address, new DeviceInfo(address, old.mLayout, old.mServiceCount,
+                (model != null) ? model : old.mModel,
+                (firmware != null) ? firmware : old.mFirmware, now));
+        save();
+    }
+
+    public synchronized void forget(String address) {
+        if (mDevices.remove(address) != null) {
+            save();
+        }
+    }
+
+    private void load() throws IOException {
+        final DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        try {
+            if (in.readInt() != VERSION) {
+                return;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final String address = in.readUTF();
+                final String layout = in.readUTF();
+                final int serviceCount = in.readInt();
+                final String model = readOptionalString(in);
+                final String firmware = readOptionalString(in);
+                final long updated = in.readLong();
+                mDevices.put(address, new DeviceInfo(address, layout, serviceCount, model,
+                        firmware, updated));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    private void save() {
+        final File temp = new File(mFile.getPath() + ".tmp");
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temp)));
+            try {
+                out.writeInt(VERSION);
+                out.writeInt(mDevices.size());
+                for (DeviceInfo info : mDevices.values()) {
+                    out.writeUTF(info.mAddress);
+                    out.writeUTF(info.mLayout);
+                    out.writeInt(info.mServiceCount);
+                    writeOptionalString(out, info.mModel);
+                    writeOptionalString(out, info.mFirmware);
+                    out.writeLong(info.mUpdated);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(mFile)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            // What's in memory is still good; the next process just starts colder
+            temp.delete();
+        }
+    }
+
+    private static String readOptionalString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeOptionalString(DataOutputStream out, String value)
+            throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+}
@@ -0,0 +1,126 @@
+package net.jpuderer.android.bluedoor;
+
+import android.app.Activity;
+import android.app.Fragment;
+import android.os.Bundle;
+import android.os.Handler;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import java.util.Locale;
+
+public class DiagnosticsFragment extends Fragment {
+    private static final String TAG = "DiagnosticsFragment";
+
+    // How often the figures are refreshed while visible
+    private static final long REFRESH_PERIOD = 1000;
+
+    private TextView mLatencyView;
+    private TextView mScanView;
+    private TextView mConnectionView;
+    private final Handler mHandler = new Handler();
+
+    private final Runnable mRefreshRunnable = new Runnable() {
+        @Override
+        public void run() {
+            updateMetrics();
+            mHandler.postDelayed(this, REFRESH_PERIOD);
+        }
+    };
+
+    // Fragments need an empty default constructor
+    public DiagnosticsFragment() { }
+
+    public static Fragment newInstance() {
+        Fragment fragment = new DiagnosticsFragment();
+        return fragment;
+    }
+
+    DiagnosticsFragmentListener mCallback;
+
+    // Container Activity must implement this interface
+    public interface DiagnosticsFragmentListener {
+        /**
+         * Returns the metrics collected by the service, or null if it isn't bound yet.
+         */
+        public LockMetrics getLockMetrics();
+
+        /**
+         * Returns a description of the background scan policy, or null if the service
+         * isn't bound yet.
+         */
+        public String getScanDescription();
+
+        /**
+         * Returns a description of how connections to the lock have been going, or null if
+         * the service isn't bound yet.
+         */
+        public String getConnectionDescription();
+    }
+
+    @Override
+    public View onCreateView(LayoutInflater inflater, ViewGroup container,
+                             Bundle savedInstanceState) {
+        View rootView = inflater.inflate(R.layout.diagnostics_fragment, container, false);
+        mLatencyView = (TextView) rootView.findViewById(R.id.diagnostics_latency);
+        mScanView = (TextView) rootView.findViewById(R.id.diagnostics_scan);
+        mConnectionView = (TextView) rootView.findViewById(R.id.diagnostics_connection);
+        return rootView;
+    }
+
+    @Override
+    public void onAttach(Activity activity) {
+        super.onAttach(activity);
+
+        try {
+            mCallback = (DiagnosticsFragmentListener) activity;
+        } catch (ClassCastException e) {
+            throw new ClassCastException(activity.toString()
+                    + " must implement DiagnosticsFragmentListener");
+        }
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        mHandler.post(mRefreshRunnable);
+    }
+
+    @Override
+    public void onPause() {
+        mHandler.removeCallbacks(mRefreshRunnable);
+        super.onPause();
+    }
+
+    private void updateMetrics() {
+        final String scanDescription = mCallback.getScanDescription();
+        mScanView.setText(scanDescription != null ? scanDescription : "--");
+        final String connectionDescription = mCallback.getConnectionDescription();
+        mConnectionView.setText(connectionDescription != null ? connectionDescription : "--");
+
+        final LockMetrics metrics = mCallback.getLockMetrics();
+        if (metrics == null) {
+            mLatencyView.setText("--");
+            return;
+        }
+        final StringBuilder sb = new StringBuilder();
+        sb.append(String.format(Locale.US, "%-20s %5s %6s %6s %6s%n",
+                "", "n", "p50", "p90", "p99"));
+        for (int phase = 0; phase < LockMetrics.PHASE_COUNT; phase++) {
+            final long count = metrics.getCount(phase);
+            if (count == 0) {
+                sb.append(String.format(Locale.US, "%-20s %5d %6s %6s %6s%n",
+                        LockMetrics.getPhaseName(phase), 0, "--", "--", "--"));
+            } else {
+                sb.append(String.format(Locale.US, "%-20s %5d %6d %6d %6d%n",
+                        LockMetrics.getPhaseName(phase), count,
+                        metrics.getPercentile(phase, 50),
+                        metrics.getPercentile(phase, 90),
+                        metrics.getPercentile(phase, 99)));
+            }
+        }
+        mLatencyView.setText(sb.toString());
+    }
+}
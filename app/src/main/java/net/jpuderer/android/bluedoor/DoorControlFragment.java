@@ -80,12 +80,24 @@ public class DoorControlFragment extends Fragment implements View.OnClickListene
         }
     }
 
-    public void updateState(int connectionState, int doorState) {
+    /**
+     * @param stale Whether the door state is one remembered from before we lost touch with
+     *              the lock, and may no longer be true.
+     */
+    public void updateState(int connectionState, int doorState, boolean stale) {
         mConnectionState = connectionState;
         mDoorState = doorState;
         if (mConnectionState != DoorlockService.STATE_CONNECTED) {
+            // Show what we last knew, but don't offer to change it
             mLockButton.setEnabled(false);
-            mTextView.setText("");
+            mLockButton.setSelected(mDoorState == DoorlockService.DOOR_STATE_LOCKED);
+            if (mDoorState == DoorlockService.DOOR_STATE_LOCKED) {
+                mTextView.setText(stale ? "locked (stale)" : "locked");
+            } else if (mDoorState == DoorlockService.DOOR_STATE_UNLOCKED) {
+                mTextView.setText(stale ? "unlocked (stale)" : "unlocked");
+            } else {
+                mTextView.setText("");
+            }
         } else if (mDoorState == DoorlockService.DOOR_STATE_LOCKED) {
             mLockButton.setEnabled(true);
             mLockButton.setSelected(true);
@@ -0,0 +1,379 @@
+package net.jpuderer.android.bluedoor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * An append-only record of changes to the door state.
+ *
+ * Events are stored as fixed size binary records in a directory of segment files.  The
+ * segment being written is memory mapped, so an append is just a handful of stores into
+ * the page cache; the data survives the process dying as soon as the append returns.  Once
+ * a segment is full a new one is started.  Old segments are dropped (or, when only part of
+ * a segment has expired, rewritten without the expired events) by {@link #compact(long)}.
+ *
+ * Each record is 24 bytes, little endian:
+ * <pre>
+ *   0  timestamp (ms since the epoch)   8 bytes
+ *   8  device address                   6 bytes
+ *  14  event type                       1 byte
+ *  15  source                           1 byte
+ *  16  latency (ms, or -1)              4 bytes
+ *  20  check word                       4 bytes
+ * </pre>
+ * A record with a zero or mismatched check word marks the end of the data in a segment,
+ * which also takes care of a record that was only half written.
+ *
+ * Not Android specific, so it can be tested on the JVM.  Thread safe.
+ */
+class DoorEventJournal {
+    public static final int EVENT_LOCKED = 1;
+    public static final int EVENT_UNLOCKED = 2;
+
+    // A command we sent caused the change
+    public static final int SOURCE_APP = 1;
+    // The change was made at the lock itself (keypad or key)
+    public static final int SOURCE_LOCK = 2;
+
+    static final int RECORD_SIZE = 24;
+    static final int DEFAULT_RECORDS_PER_SEGMENT = 4096;
+    // With the default segment size this is over a million events (about 24MB)
+    static final int DEFAULT_MAX_SEGMENTS = 256;
+
+    private static final String SEGMENT_PREFIX = "events-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int CHECK_SEED = 0x5eed1e55;
+
+    /**
+     * A single journal entry.
+     */
+    static final class Event {
+        final long mTimestamp;
+        final String mAddress;
+        final int mType;
+        final int mSource;
+        final int mLatencyMs;
+
+        Event(long timestamp, String address, int type, int source, int latencyMs) {
+            mTimestamp = timestamp;
+            mAddress = address;
+            mType = type;
+            mSource = source;
+            mLatencyMs = latencyMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%d %s %s by %s (%dms)", mTimestamp, mAddress,
+                    mType == EVENT_LOCKED ? "locked" : "unlocked",
+                    mSource == SOURCE_APP ? "app" : "lock", mLatencyMs);
+        }
+    }
+
+    // What we know about a segment without reading it again
+    private static final class Segment {
+        final long mId;
+        final File mFile;
+        int mCount;
+        long mMinTimestamp = Long.MAX_VALUE;
+        long mMaxTimestamp = Long.MIN_VALUE;
+
+        Segment(long id, File file) {
+            mId = id;
+            mFile = file;
+        }
+
+        void include(long timestamp) {
+            mCount++;
+            mMinTimestamp = Math.min(mMinTimestamp, timestamp);
+            mMaxTimestamp = Math.max(mMaxTimestamp, timestamp);
+        }
+    }
+
+    private final File mDirectory;
+    private final int mRecordsPerSegment;
+    private final int mMaxSegments;
+    // Oldest first.  The last one is the segment being written.
+    private final ArrayList<Segment> mSegments = new ArrayList<Segment>();
+    private RandomAccessFile mActiveFile;
+    private MappedByteBuffer mActiveBuffer;
+
+    DoorEventJournal(File directory) throws IOException {
+        this(directory, DEFAULT_RECORDS_PER_SEGMENT, DEFAULT_MAX_SEGMENTS);
+    }
+
+    DoorEventJournal(File directory, int recordsPerSegment, int maxSegments)
+            throws IOException {
+        mDirectory = directory;
+        mRecordsPerSegment = recordsPerSegment;
+        mMaxSegments = maxSegments;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create journal directory " + directory);
+        }
+        load();
+    }
+
+    /**
+     * Appends an event.
+     *
+     * @param latencyMs How long the lock took to act on our command, or -1.
+     */
+    public synchronized void append(long timestamp, String address, int type, int source,
+                                    long latencyMs) throws IOException {
+        Segment active = mSegments.get(mSegments.size() - 1);
+        if (active.mCount == mRecordsPerSegment) {
+            active = rotate();
+        }
+        final ByteBuffer buffer = mActiveBuffer;
+        final int position = active.mCount * RECORD_SIZE;
+        final long packedAddress = packAddress(address);
+        final int latency = (int) Math.max(-1, Math.min(Integer.MAX_VALUE, latencyMs));
+        buffer.putLong(position, timestamp);
+        for (int i = 0; i < 6; i++) {
+            buffer.put(position + 8 + i, (byte) (packedAddress >>> (8 * i)));
+        }
+        buffer.put(position + 14, (byte) type);
+        buffer.put(position + 15, (byte) source);
+        buffer.putInt(position + 16, latency);
+        // The check word goes last, so a partly written record never looks valid
+        buffer.putInt(position + 20, check(buffer, position));
+        active.include(timestamp);
+    }
+
+    /**
+     * Returns the events with timestamps in {@code [fromMillis, toMillis)}, newest first.
+     *
+     * @param maxResults Stop after this many events.
+     */
+    public synchronized List<Event> query(long fromMillis, long toMillis, int maxResults)
+            throws IOException {
+        final ArrayList<Event> events = new ArrayList<Event>();
+        for (int s = mSegments.size() - 1; s >= 0 && events.size() < maxResults; s--) {
+            final Segment segment = mSegments.get(s);
+            if (segment.mCount == 0 || segment.mMaxTimestamp < fromMillis
+                    || segment.mMinTimestamp >= toMillis) {
+                continue;
+            }
+            final ByteBuffer buffer = (s == mSegments.size() - 1) ? mActiveBuffer :
+                    mapSegment(segment.mFile, FileChannel.MapMode.READ_ONLY);
+            for (int i = segment.mCount - 1; i >= 0 && events.size() < maxResults; i--) {
+                final int position = i * RECORD_SIZE;
+                final long timestamp = buffer.getLong(position);
+                if (timestamp >= fromMillis && timestamp < toMillis) {
+                    events.add(readEvent(buffer, position));
+                }
+            }
+        }
+        return events;
+    }
+
+    /**
+     * Drops events older than {@code cutoffMillis}.  Segments made up entirely of older
+     * events are deleted; a segment holding some are rewritten without them.  Also drops
+     * the oldest segments if there are more than we're allowed to keep.
+     */
+    public synchronized void compact(long cutoffMillis) throws IOException {
+        // Never touches the active segment, which rotation will eventually retire.
+        while (mSegments.size() > 1) {
+            final Segment oldest = mSegments.get(0);
+            if (oldest.mMaxTimestamp < cutoffMillis || mSegments.size() > mMaxSegments) {
+                deleteSegment(oldest);
+                mSegments.remove(0);
+                continue;
+            }
+            if (oldest.mMinTimestamp < cutoffMillis) {
+                rewriteSegment(oldest, cutoffMillis);
+            }
+            break;
+        }
+    }
+
+    public synchronized int size() {
+        int size = 0;
+        for (Segment segment : mSegments) {
+            size += segment.mCount;
+        }
+        return size;
+    }
+
+    public synchronized int getSegmentCount() {
+        return mSegments.size();
+    }
+
+    /**
+     * Releases the active segment.  The journal can't be used afterwards.
+     */
+    public synchronized void close() throws IOException {
+        mActiveBuffer = null;
+        if (mActiveFile != null) {
+            mActiveFile.close();
+            mActiveFile = null;
+        }
+    }
+
+    private void load() throws IOException {
+        final String[] names = mDirectory.list();
+        final ArrayList<Long> ids = new ArrayList<Long>();
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        ids.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                                name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException e) {
+                        // Not one of ours
+                    }
+                }
+            }
+        }
+        Collections.sort(ids);
+        for (long id : ids) {
+            final Segment segment = new Segment(id, segmentFile(id));
+            final ByteBuffer buffer = mapSegment(segment.mFile, FileChannel.MapMode.READ_ONLY);
+            // Recovers the write position after a crash: the data ends at the first
+            // record that doesn't check out.
+            final int capacity = Math.min(mRecordsPerSegment, buffer.capacity() / RECORD_SIZE);
+            for (int i = 0; i < capacity; i++) {
+                final int position = i * RECORD_SIZE;
+                final int check = buffer.getInt(position + 20);
+                if (check == 0 || check != check(buffer, position)) break;
+                segment.include(buffer.getLong(position));
+            }
+            mSegments.add(segment);
+        }
+        if (mSegments.isEmpty()) {
+            rotate();
+        } else {
+            openActive(mSegments.get(mSegments.size() - 1));
+        }
+    }
+
+    private Segment rotate() throws IOException {
+        final long id = mSegments.isEmpty() ? 1 : mSegments.get(mSegments.size() - 1).mId + 1;
+        final Segment segment = new Segment(id, segmentFile(id));
+        mSegments.add(segment);
+        openActive(segment);
+        if (mSegments.size() > mMaxSegments) {
+            deleteSegment(mSegments.remove(0));
+        }
+        return segment;
+    }
+
+    private void openActive(Segment segment) throws IOException {
+        close();
+        mActiveFile = new RandomAccessFile(segment.mFile, "rw");
+        // Mapping past the end of the file extends it with zeroes
+        mActiveBuffer = mActiveFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                (long) mRecordsPerSegment * RECORD_SIZE);
+        mActiveBuffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private void rewriteSegment(Segment segment, long cutoffMillis) throws IOException {
+        final ByteBuffer source = mapSegment(segment.mFile, FileChannel.MapMode.READ_ONLY);
+        final byte[] kept = new byte[mRecordsPerSegment * RECORD_SIZE];
+        final Segment rewritten = new Segment(segment.mId, segment.mFile);
+        int count = 0;
+        for (int i = 0; i < segment.mCount; i++) {
+            final int position = i * RECORD_SIZE;
+            final long timestamp = source.getLong(position);
+            if (timestamp < cutoffMillis) continue;
+            source.position(position);
+            source.get(kept, count * RECORD_SIZE, RECORD_SIZE);
+            rewritten.include(timestamp);
+            count++;
+        }
+        // Write the new contents alongside, then swap them in, so a crash part way through
+        // leaves either the old segment or the new one.
+        final File temp = new File(mDirectory, segment.mFile.getName() + ".tmp");
+        final RandomAccessFile file = new RandomAccessFile(temp, "rw");
+        try {
+            file.write(kept);
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        if (!temp.renameTo(segment.mFile)) {
+            temp.delete();
+            throw new IOException("Unable to replace segment " + segment.mFile);
+        }
+        mSegments.set(mSegments.indexOf(segment), rewritten);
+    }
+
+    private void deleteSegment(Segment segment) throws IOException {
+        if (!segment.mFile.delete() && segment.mFile.exists()) {
+            throw new IOException("Unable to delete segment " + segment.mFile);
+        }
+    }
+
+    private File segmentFile(long id) {
+        return new File(mDirectory, String.format(Locale.US, "%s%010d%s",
+                SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private static ByteBuffer mapSegment(File file, FileChannel.MapMode mode) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final MappedByteBuffer buffer = raf.getChannel().map(mode, 0, raf.length());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        } finally {
+            // The mapping stays valid after the file is closed
+            raf.close();
+        }
+    }
+
+    private static Event readEvent(ByteBuffer buffer, int position) {
+        long packedAddress = 0;
+        for (int i = 0; i < 6; i++) {
+            packedAddress |= (buffer.get(position + 8 + i) & 0xFFL) << (8 * i);
+        }
+        return new Event(buffer.getLong(position), unpackAddress(packedAddress),
+                buffer.get(position + 14), buffer.get(position + 15),
+                buffer.getInt(position + 16));
+    }
+
+    private static int check(ByteBuffer buffer, int position) {
+        int hash = CHECK_SEED;
+        for (int i = 0; i < 20; i += 4) {
+            hash = 31 * hash + buffer.getInt(position + i);
+            hash ^= hash >>> 15;
+        }
+        // Zero is reserved for empty space
+        return (hash != 0) ? hash : 1;
+    }
+
+    /**
+     * Packs a Bluetooth address ("00:11:22:AA:BB:CC") into the low 48 bits of a long.
+     */
+    static long packAddress(String address) {
+        long packed = 0;
+        if (address == null) return 0;
+        final String[] octets = address.split(":");
+        if (octets.length != 6) return 0;
+        for (String octet : octets) {
+            packed = (packed << 8) | (Integer.parseInt(octet, 16) & 0xFF);
+        }
+        return packed;
+    }
+
+    static String unpackAddress(long packed) {
+        final char[] chars = new char[17];
+        Arrays.fill(chars, ':');
+        for (int i = 0; i < 6; i++) {
+            final int octet = (int) (packed >>> (8 * (5 - i))) & 0xFF;
+            chars[i * 3] = Character.toUpperCase(Character.forDigit(octet >>> 4, 16));
+            chars[i * 3 + 1] = Character.toUpperCase(Character.forDigit(octet & 0xF, 16));
+        }
+        return new String(chars);
+    }
+}
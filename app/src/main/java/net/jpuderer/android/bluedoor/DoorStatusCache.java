@@ -0,0 +1,107 @@
+package net.jpuderer.android.bluedoor;
+
+import java.util.HashMap;
+
+/**
+ * Remembers the last door status each lock reported, and when.
+ *
+ * A status is fresh for a while after the lock reports it, and within that time it can be
+ * used in place of asking the lock again.  Status bytes pushed by the lock replace the
+ * entry and restart the clock.  Sending the lock a command invalidates its entry, since
+ * the status is about to change; the old value is kept, but is no longer fresh.
+ *
+ * Outside its time to live, an entry is still the best guess we have, so it's kept for
+ * showing to the user as stale.  Times are {@code SystemClock.elapsedRealtime()} values
+ * passed in by the caller.
+ *
+ * Only used on the service's event loop (and, before anything is posted to the loop, to
+ * restore the last known state).  Not thread safe.
+ */
+class DoorStatusCache {
+    /**
+     * A cached door status.  Immutable.
+     */
+    static final class Status {
+        final int mDoorState;
+        // When the lock reported it
+        final long mTime;
+        // False once something has happened that may have changed the door state
+        final boolean mValid;
+
+        Status(int doorState, long time, boolean valid) {
+            mDoorState = doorState;
+            mTime = time;
+            mValid = valid;
+        }
+
+        long getAge(long now) {
+            return now - mTime;
+        }
+    }
+
+    private final long mTtlMs;
+    private final HashMap<String, Status> mStatuses = new HashMap<String, Status>();
+
+    DoorStatusCache(long ttlMs) {
+        mTtlMs = ttlMs;
+    }
+
+    public long getTtl() {
+        return mTtlMs;
+    }
+
+    /**
+     * Records a status reported by the lock.  Unknown states aren't recorded.
+     */
+    public void put(String address, int doorState, long now) {
+        if (doorState == DoorlockService.DOOR_STATE_UNKNOWN) return;
+        mStatuses.put(address, new Status(doorState, now, true));
+    }
+
+    /**
+     * Records a status remembered from an earlier run, which is never fresh.  Does nothing
+     * if we already have a status for the lock, or the state is unknown.
+     */
+    public void restore(String address, int doorState, long now) {
+        if (doorState == DoorlockService.DOOR_STATE_UNKNOWN) return;
+        if (mStatuses.containsKey(address)) return;
+        mStatuses.put(address, new Status(doorState, now, false));
+    }
+
+    /**
+     * Marks the status of a lock as no longer fresh, keeping the value.
+     */
+    public void invalidate(String address) {
+        final Status status = mStatuses.get(address);
+        if (status != null && status.mValid) {
+            mStatuses.put(address, new Status(status.mDoorState, status.mTime, false));
+        }
+    }
+
+    /**
+     * Returns the last status of a lock, however old, or null if we've never had one.
+     */
+    public Status get(String address) {
+        return mStatuses.get(address);
+    }
+
+    /**
+     * Returns the status of a lock if it's fresh enough to use without asking the lock,
+     * otherwise null.
+     */
+    public Status getFresh(String address, long now) {
+        final Status status = mStatuses.get(address);
+        return (status != null && isFresh(status, now)) ? status : null;
+    }
+
+    public boolean isFresh(Status status, long now) {
+        return status.mValid && status.getAge(now) < mTtlMs;
+    }
+
+    /**
+     * Returns how long until a fresh status goes stale, or 0 if it already is.
+     */
+    public long getRemainingTtl(Status status, long now) {
+        return isFresh(status, now) ? mTtlMs - status.getAge(now) : 0;
+    }
+}
@@ -16,76 +16,110 @@
 
 package net.jpuderer.android.bluedoor;
 
-import android.app.Notification;
-import android.app.NotificationManager;
-import android.app.PendingIntent;
 import android.app.Service;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothGatt;
-import android.bluetooth.BluetoothGattCallback;
-import android.bluetooth.BluetoothGattCharacteristic;
-import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
-import android.bluetooth.BluetoothProfile;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
 import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
+import android.content.IntentFilter;
 import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
-import android.support.v4.content.LocalBroadcastManager;
+import android.os.Looper;
+import android.os.PowerManager;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.text.TextUtils;
+import android.text.format.DateUtils;
 import android.util.Log;
 
-import java.io.UnsupportedEncodingException;
-import java.util.Arrays;
+import net.jpuderer.bluedoor.protocol.LockProtocol;
+import net.jpuderer.bluedoor.protocol.LockStateMachine;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
 import java.util.UUID;
 
 /**
- * Service for managing connection and data communication with a GATT server hosted on a
- * given Bluetooth LE device.
+ * Service for managing connection and data communication with the GATT servers hosted on
+ * our locks.  Each configured lock gets its own {@link LockSession}, so several locks can
+ * stay connected at once.
+ *
+ * All the Bluetooth work is done on a single event loop thread, which owns the sessions
+ * and the rest of the mutable state here.  GATT and scan callbacks, broadcasts, and calls
+ * from the UI are all posted to it, so none of that state needs locking, and nothing slow
+ * happens on the main thread.  Readers elsewhere get what the loop publishes: the state of
+ * the default lock as an immutable {@link LockStateStore.Snapshot}, and the diagnostics as
+ * strings.
  */
 public class DoorlockService extends Service {
     private final static String TAG = DoorlockService.class.getSimpleName();
 
-    private BluetoothManager mBluetoothManager;
-    private BluetoothAdapter mBluetoothAdapter;
-    private BluetoothLeScanner mBluetoothLeScanner;
-    private String mBluetoothDeviceAddress;
-    private BluetoothGatt mBluetoothGatt;
-    private int mConnectionState = STATE_DISCONNECTED;
-    private int mDoorState = DOOR_STATE_UNKNOWN;
-    private BluetoothGattService mGattBlunoService;
-    private BluetoothGattService mGattDeviceInfoService;
-    private SharedPreferences mSharedPreferences;
+    // Set up on the main thread, and used on the event loop
+    private volatile BluetoothManager mBluetoothManager;
+    private volatile BluetoothAdapter mBluetoothAdapter;
+    private volatile BluetoothLeScanner mBluetoothLeScanner;
+    private ConfigStore mConfigStore;
+    private LockSessionManager mSessionManager;
+    private LockNotificationController mNotificationController;
+    private LockStateCache mLockStateCache;
+    private LockWidgetController mWidgetController;
+    private volatile DoorEventJournal mJournal;
+    private final GattLayoutCache mGattLayoutCache = new GattLayoutCache();
+    private final DoorStatusCache mStatusCache = new DoorStatusCache(STATUS_TTL_MS);
+    private final LockMetrics mMetrics = new LockMetrics();
+    private final ScanScheduler mScanScheduler = new ScanScheduler();
+    // Only used on the event loop
+    private final ProximityEngine mProximity = new ProximityEngine();
+    private final ConnectionSupervisor mSupervisor = new ConnectionSupervisor();
+    // The event loop
+    private HandlerThread mEventThread;
+    private Handler mHandler;
+    // Where callers hear how their transfers went
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private ScanScheduler.Policy mScanPolicy;
+    private boolean mAppForeground;
+    private boolean mScanning;
+    // Between the scan windows of a duty cycled scan policy
+    private boolean mScanPaused;
+    // Locks the current scan is looking for
+    private List<String> mScanAddresses = Collections.emptyList();
+    // Published by the event loop for the diagnostics
+    private volatile String mScanDescription = "";
+    private volatile String mConnectionDescription = "";
+    // Door state a tap on the widget or notification asked for, until the lock reports it
+    private int mTapDoorState = DOOR_STATE_UNKNOWN;
 
     private final IBinder mBinder = new LocalBinder();
+    private final LockStateStore mStateStore = new LockStateStore();
+
+    public static final int STATE_DISCONNECTED = LockStateMachine.STATE_DISCONNECTED;
+    public static final int STATE_CONNECTING = LockStateMachine.STATE_CONNECTING;
+    public static final int STATE_CONNECTED = LockStateMachine.STATE_CONNECTED;
 
-    public final static String ACTION_CONNECTION_STATE_CHANGED =
-            "net.jpuderer.android.bluedoor.ACTION_CONNECTION_STATE_CHANGED";
-    public final static String EXTRA_CONNECTION_STATE =
-            "net.jpuderer.android.bluedoor.EXTRA_CONNECTION_STATE";
-    public static final int STATE_DISCONNECTED = 0;
-    public static final int STATE_CONNECTING = 1;
-    public static final int STATE_CONNECTED = 2;
-
-    public final static String ACTION_DOOR_STATE_CHANGED =
-            "net.jpuderer.android.bluedoor.ACTION_DOOR_STATE_CHANGED";
-    public final static String EXTRA_DOOR_STATE =
-            "net.jpuderer.android.bluedoor.EXTRA_CONNECTION_STATE";
-    public static final int DOOR_STATE_UNKNOWN = 0;
-    public static final int DOOR_STATE_LOCKED = 1;
-    public static final int DOOR_STATE_UNLOCKED = 2;
+    public static final int DOOR_STATE_UNKNOWN = LockStateMachine.DOOR_STATE_UNKNOWN;
+    public static final int DOOR_STATE_LOCKED = LockStateMachine.DOOR_STATE_LOCKED;
+    public static final int DOOR_STATE_UNLOCKED = LockStateMachine.DOOR_STATE_UNLOCKED;
 
     public final static String ACTION_LOCK =
             "net.jpuderer.android.bluedoor.ACTION_LOCK";
     public final static String ACTION_UNLOCK =
             "net.jpuderer.android.bluedoor.ACTION_UNLOCK";
+    public final static String ACTION_REFRESH_WIDGETS =
+            "net.jpuderer.android.bluedoor.ACTION_REFRESH_WIDGETS";
 
     public final static UUID HID_SERVICE_UUID =
             UUID.fromString("00001812-0000-1000-8000-00805f9b34fb");
@@ -99,6 +133,8 @@ public class DoorlockService extends Service {
             UUID.fromString("0000dfb2-0000-1000-8000-00805f9b34fb");
     public static final UUID MODEL_NUMBER_STRING_CHARACTERISTIC_UUID =
             UUID.fromString("00002a24-0000-1000-8000-00805f9b34fb");
+    public static final UUID FIRMWARE_REVISION_STRING_CHARACTERISTIC_UUID =
+            UUID.fromString("00002a26-0000-1000-8000-00805f9b34fb");
     public static final UUID CLIENT_CHARACTERISTIC_CONFIG_UUID =
             UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 
@@ -108,120 +144,116 @@ public class DoorlockService extends Service {
             "PREF_DEFAULT_DEVICE_NAME";
     public static final String PREF_LOCK_PASSCODE =
             "PREF_LOCK_PASSCODE";
+    // Addresses of any other locks to keep connected, besides the default device
+    public static final String PREF_LOCK_ADDRESSES =
+            "PREF_LOCK_ADDRESSES";
 
     public static final String DEFAULT_LOCK_PASSCODE = "0000";
 
+    // How long door events are kept in the journal
+    private static final long JOURNAL_RETENTION_MS = 5 * 365 * DateUtils.DAY_IN_MILLIS;
+    // How long a door status the lock reported can be trusted without asking again.  The
+    // lock pushes every change while we're connected, so this only matters across
+    // reconnects; a door locked by hand while we weren't listening is the risk.
+    private static final long STATUS_TTL_MS = DateUtils.MINUTE_IN_MILLIS;
+    // How often we read the signal strength of connected locks, to tell when we're leaving
+    private static final long RSSI_POLL_MS = 2000;
+
     // Maximum length we allow for the passcode
-    public static final int MAX_PASSCODE_LENGTH = 16;
-
-    // Bluno serial characteristic can not receive more than 17 characters
-    // at once.
-    private static final int MAX_SERIAL_TX_SIZE = 17;
-
-    // Keys and commands to send to door
-
-    public static final byte GET_STATUS_COMMAND = 0x00;
-    public static final byte KEYPAD_COMMAND_LOCK = 0x41;
-    public static final byte KEYPAD_COMMAND_KEY_0 = 0x30;
-    public static final byte KEYPAD_COMMAND_KEY_1 = 0x31;
-    public static final byte KEYPAD_COMMAND_KEY_2 = 0x32;
-    public static final byte KEYPAD_COMMAND_KEY_3 = 0x33;
-    public static final byte KEYPAD_COMMAND_KEY_4 = 0x34;
-    public static final byte KEYPAD_COMMAND_KEY_5 = 0x35;
-    public static final byte KEYPAD_COMMAND_KEY_6 = 0x36;
-    public static final byte KEYPAD_COMMAND_KEY_7 = 0x37;
-    public static final byte KEYPAD_COMMAND_KEY_8 = 0x38;
-    public static final byte KEYPAD_COMMAND_KEY_9 = 0x39;
-    public static final byte KEYPAD_COMMAND_KEY_ENTER = 0x23;
-    public static final byte KEYPAD_COMMAND_KEY_CANCEL = 0x2A;
+    public static final int MAX_PASSCODE_LENGTH = LockProtocol.MAX_PASSCODE_LENGTH;
 
+    // Keys and commands to send to door.  The protocol itself lives in LockProtocol; these
+    // are kept here for the UI.
+    public static final byte GET_STATUS_COMMAND = LockProtocol.GET_STATUS_COMMAND;
+    public static final byte KEYPAD_COMMAND_LOCK = LockProtocol.KEYPAD_COMMAND_LOCK;
+    public static final byte KEYPAD_COMMAND_KEY_0 = LockProtocol.KEYPAD_COMMAND_KEY_0;
+    public static final byte KEYPAD_COMMAND_KEY_1 = LockProtocol.KEYPAD_COMMAND_KEY_1;
+    public static final byte KEYPAD_COMMAND_KEY_2 = LockProtocol.KEYPAD_COMMAND_KEY_2;
+    public static final byte KEYPAD_COMMAND_KEY_3 = LockProtocol.KEYPAD_COMMAND_KEY_3;
+    public static final byte KEYPAD_COMMAND_KEY_4 = LockProtocol.KEYPAD_COMMAND_KEY_4;
+    public static final byte KEYPAD_COMMAND_KEY_5 = LockProtocol.KEYPAD_COMMAND_KEY_5;
+    public static final byte KEYPAD_COMMAND_KEY_6 = LockProtocol.KEYPAD_COMMAND_KEY_6;
+    public static final byte KEYPAD_COMMAND_KEY_7 = LockProtocol.KEYPAD_COMMAND_KEY_7;
+    public static final byte KEYPAD_COMMAND_KEY_8 = LockProtocol.KEYPAD_COMMAND_KEY_8;
+    public static final byte KEYPAD_COMMAND_KEY_9 = LockProtocol.KEYPAD_COMMAND_KEY_9;
+    public static final byte KEYPAD_COMMAND_KEY_ENTER = LockProtocol.KEYPAD_COMMAND_KEY_ENTER;
+    public static final byte KEYPAD_COMMAND_KEY_CANCEL = LockProtocol.KEYPAD_COMMAND_KEY_CANCEL;
 
     // Status bytes to receive from door
-    public static final byte LOCK_STATUS_BYTE = 0x61;
-    public static final byte UNLOCK_STATUS_BYTE = 0x62;
-    public static final byte ERROR_STATUS_BYTE = 0x66;
+    public static final byte LOCK_STATUS_BYTE = LockProtocol.LOCK_STATUS_BYTE;
+    public static final byte UNLOCK_STATUS_BYTE = LockProtocol.UNLOCK_STATUS_BYTE;
+    public static final byte ERROR_STATUS_BYTE = LockProtocol.ERROR_STATUS_BYTE;
 
-    // Implements callback methods for GATT events that the app cares about.  For example,
-    // connection change and services discovered.
-    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+    private final LockSession.Listener mSessionListener = new LockSession.Listener() {
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            String intentAction = ACTION_CONNECTION_STATE_CHANGED;
-            if (newState == BluetoothProfile.STATE_CONNECTED) {
-                Log.d(TAG, "onConnectionStateChange: Connected");
-                mConnectionState = STATE_CONNECTED;
-                // Stop any active scan
-                mBluetoothLeScanner.stopScan(mScanCallback);
-                broadcastConnectionUpdate();
-                Log.i(TAG, "Connected to GATT server.");
-                // Attempts to discover services after successful connection.
-                Log.i(TAG, "Attempting to start service discovery:" +
-                        mBluetoothGatt.discoverServices());
-
-            } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
-                Log.d(TAG, "onConnectionStateChange: Disconnected");
-                mConnectionState = STATE_DISCONNECTED;
-                mDoorState = DOOR_STATE_UNKNOWN;
-                mGattBlunoService = null;
-                mGattDeviceInfoService = null;
-                Log.i(TAG, "Disconnected from GATT server.");
-                broadcastConnectionUpdate();
-                broadcastDoorUpdate();
-                // Restart Bluetooth scan
-                if (mBluetoothAdapter.isEnabled()) {
-                    startBluetoothLeScan();
+        public void onConnectionStateChanged(LockSession session) {
+            final long now = SystemClock.elapsedRealtime();
+            if (session.getConnectionState() == STATE_CONNECTED) {
+                mSupervisor.onConnected(session.getAddress(), now);
+            } else if (session.getConnectionState() == STATE_DISCONNECTED) {
+                mSupervisor.onDisconnected(session.getAddress(), now);
+            }
+            if (session.getConnectionState() == STATE_DISCONNECTED) {
+                // Scan harder for a while, since we're likely still near the door.
+                mScanScheduler.onDisconnected(SystemClock.elapsedRealtime());
+                if (isDefaultSession(session)) {
+                    cancelTap();
                 }
             }
-            updateNotification();
+            // What we scan for depends on which locks are connected
+            mHandler.post(mUpdateScanRunnable);
+            if (session.getConnectionState() == STATE_CONNECTED) {
+                mHandler.post(mRssiPollRunnable);
+            }
+            if (isDefaultSession(session)) {
+                publishState();
+                updateNotification();
+            }
         }
 
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
-            Log.d(TAG, "onServicesDiscovered");
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                mGattBlunoService = mBluetoothGatt.getService(BLUNO_SERVICE_UUID);
-                mGattDeviceInfoService = mBluetoothGatt.getService(DEVICE_INFORMATION_SERVICE_UUID);
-
-                BluetoothGattCharacteristic characteristic =
-                        mGattBlunoService.getCharacteristic(SERIAL_PORT_CHARACTERISTIC_UUID);
-                mBluetoothGatt.setCharacteristicNotification(characteristic, true);
-                sendSerial(GET_STATUS_COMMAND);
-            } else {
-                Log.w(TAG, "onServicesDiscovered status: " + status);
+        public void onDoorStateChanged(LockSession session) {
+            if (isDefaultSession(session)) {
+                if (mTapDoorState != DOOR_STATE_UNKNOWN
+                        && session.getDoorState() == mTapDoorState) {
+                    mTapDoorState = DOOR_STATE_UNKNOWN;
+                    mMetrics.end(LockMetrics.PHASE_TAP_TO_STATUS);
+                }
+                publishState();
+                updateNotification();
             }
         }
 
         @Override
-        public void onCharacteristicRead(BluetoothGatt gatt,
-                                         BluetoothGattCharacteristic characteristic,
-                                         int status) {
-            if (status == BluetoothGatt.GATT_SUCCESS) {
-                if (characteristic.getUuid().equals(SERIAL_PORT_CHARACTERISTIC_UUID)) {
-                    onReceiveSerial(characteristic.getValue());
-                }
-            } else {
-                Log.w(TAG, "onCharacteristicRead status: " + status);
+        public void onDoorTransition(LockSession session, int doorState, long commandLatencyMs) {
+            if (mJournal == null) return;
+            try {
+                mJournal.append(System.currentTimeMillis(), session.getAddress(),
+                        doorState == DOOR_STATE_LOCKED ? DoorEventJournal.EVENT_LOCKED :
+                                DoorEventJournal.EVENT_UNLOCKED,
+                        commandLatencyMs >= 0 ? DoorEventJournal.SOURCE_APP :
+                                DoorEventJournal.SOURCE_LOCK,
+                        commandLatencyMs);
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to record door event", e);
             }
         }
 
         @Override
-        public void onCharacteristicChanged(BluetoothGatt gatt,
-                                            BluetoothGattCharacteristic characteristic) {
-            if (!characteristic.getUuid().equals(SERIAL_PORT_CHARACTERISTIC_UUID))
-                return;
-            onReceiveSerial(characteristic.getValue());
+        public void onRemoteRssi(LockSession session, int rssi) {
+            onConnectedRssi(session, rssi);
         }
     };
 
     private final ScanCallback mScanCallback = new ScanCallback() {
         @Override
-        public void onScanResult(int callbackType, ScanResult result) {
-            Log.d(TAG, "onScanCallback");
-            // If we found the default device, connect to it
-            if (result.getDevice().getAddress().equals(getDefaultDeviceAddress())) {
-                Log.d(TAG, "onScanCallback: Found default device");
-                connect(result.getDevice().getAddress());
-            }
+        public void onScanResult(int callbackType, final ScanResult result) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleScanResult(result);
+                }
+            });
         }
 
         @Override
@@ -230,52 +262,287 @@ public class DoorlockService extends Service {
         }
     };
 
-    private final SharedPreferences.OnSharedPreferenceChangeListener mPreferenceChangeListener =
-            new SharedPreferences.OnSharedPreferenceChangeListener() {
+    // Registered to run on the event loop
+    private final BroadcastReceiver mScreenReceiver = new BroadcastReceiver() {
         @Override
-        public void onSharedPreferenceChanged(SharedPreferences sharedPreferences, String key) {
-            if (PREF_DEFAULT_DEVICE_ADDRESS.equals(key)) {
-                final String address = getDefaultDeviceAddress();
-                if (!TextUtils.isEmpty(address)) {
-                    connect(address);
+        public void onReceive(Context context, Intent intent) {
+            mScanScheduler.setScreenOn(Intent.ACTION_SCREEN_ON.equals(intent.getAction()));
+            updateBluetoothLeScan();
+        }
+    };
+
+    // Reads the signal strength of connected locks, for as long as there are any
+    private final Runnable mRssiPollRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mHandler.removeCallbacks(this);
+            boolean connected = false;
+            for (LockSession session : mSessionManager.getSessions()) {
+                if (session.getConnectionState() == STATE_CONNECTED) {
+                    session.readRemoteRssi();
+                    connected = true;
                 }
             }
+            if (connected) {
+                mHandler.postDelayed(this, RSSI_POLL_MS);
+            }
+        }
+    };
+
+    private final Runnable mUpdateScanRunnable = new Runnable() {
+        @Override
+        public void run() {
+            updateBluetoothLeScan();
+        }
+    };
+
+    // Ends the scan window of a duty cycled scan policy
+    private final Runnable mScanWindowEndRunnable = new Runnable() {
+        @Override
+        public void run() {
+            stopScanning();
+            mScanPaused = true;
+            mHandler.postDelayed(mScanWindowStartRunnable,
+                    mScanPolicy.mPeriodMs - mScanPolicy.mWindowMs);
+        }
+    };
+
+    private final Runnable mScanWindowStartRunnable = new Runnable() {
+        @Override
+        public void run() {
+            startScanWindow();
+        }
+    };
+
+    private final Runnable mRefreshScanDescriptionRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mScanDescription = describeScan();
         }
     };
 
-    public void broadcastConnectionUpdate() {
-        final Intent intent = new Intent(ACTION_CONNECTION_STATE_CHANGED);
-        intent.putExtra(EXTRA_CONNECTION_STATE, mConnectionState);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+    private final Runnable mRefreshConnectionDescriptionRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mConnectionDescription = describeConnection();
+        }
+    };
+
+    private final ConfigStore.Listener mConfigListener = new ConfigStore.Listener() {
+        @Override
+        public void onConfigChanged(final LockConfig oldConfig, final LockConfig newConfig) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleConfigChanged(oldConfig, newConfig);
+                }
+            });
+        }
+    };
+
+    private void handleScanResult(ScanResult result) {
+        Log.d(TAG, "onScanCallback");
+        // If we found one of our locks that we're not connected to, and we seem to be
+        // heading for it, connect to it
+        final String address = result.getDevice().getAddress();
+        if (!mScanAddresses.contains(address)) {
+            return;
+        }
+        final LockSession session = mSessionManager.peek(address);
+        if (session != null && session.getConnectionState() != STATE_DISCONNECTED) {
+            return;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        final boolean sighting = mProximity.getTracker(address, now) == null;
+        final int action = mProximity.onRssi(address, result.getRssi(), now, false);
+        // With the app open, the user wants the lock now, wherever they are
+        if (action != ProximityEngine.ACTION_CONNECT && !mAppForeground) {
+            if (sighting && mScanScheduler.onLockSighted(now)) {
+                // Scan harder while we work out whether we're approaching
+                updateBluetoothLeScan();
+            }
+            return;
+        }
+        if (mSupervisor.getRetryDelay(address, now) > 0) {
+            // Failed recently; keep the advertisements from turning into a storm
+            return;
+        }
+        if (mConfigStore.get().isDefaultAddress(address)) {
+            Log.d(TAG, "onScanCallback: Found default device");
+            mMetrics.end(LockMetrics.PHASE_SCAN);
+        }
+        connect(address, false);
+    }
+
+    private void handleConfigChanged(LockConfig oldConfig, LockConfig newConfig) {
+        if (!TextUtils.equals(oldConfig.mDefaultAddress, newConfig.mDefaultAddress)) {
+            final String address = newConfig.mDefaultAddress;
+            publishState();
+            if (!TextUtils.isEmpty(address)) {
+                connect(address);
+            }
+        } else if (!oldConfig.getLockAddresses().equals(newConfig.getLockAddresses())) {
+            updateBluetoothLeScan();
+        }
     }
 
-    public void broadcastDoorUpdate() {
-        final Intent intent = new Intent(ACTION_DOOR_STATE_CHANGED);
-        intent.putExtra(EXTRA_DOOR_STATE, mDoorState);
-        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+    /**
+     * Publishes the state of the default lock to the state store.
+     */
+    private void publishState() {
+        final String address = getDefaultDeviceAddress();
+        final int connectionState = getConnectionState(address);
+        final int doorState = getDoorState(address);
+        final boolean stale = isDoorStateStale(address);
+        mStateStore.update(address, connectionState, doorState, stale);
+        mWidgetController.update(connectionState, doorState, stale);
+        // For the first frame of the next cold start
+        mLockStateCache.put(address, doorState, System.currentTimeMillis());
+        // Publish again when a remembered status goes stale
+        mHandler.removeCallbacks(mPublishStateRunnable);
+        final DoorStatusCache.Status status = (address != null) ? mStatusCache.get(address) : null;
+        final long remaining = (status != null) ?
+                mStatusCache.getRemainingTtl(status, SystemClock.elapsedRealtime()) : 0;
+        if (remaining > 0) {
+            mHandler.postDelayed(mPublishStateRunnable, remaining);
+        }
     }
 
+    private final Runnable mPublishStateRunnable = new Runnable() {
+        @Override
+        public void run() {
+            publishState();
+        }
+    };
+
+    private final Runnable mRefreshWidgetsRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mWidgetController.refresh(null);
+        }
+    };
+
     public class LocalBinder extends Binder {
         DoorlockService getService() {
             return DoorlockService.this;
         }
+
+        /**
+         * Returns the given percentile (0-100) of a {@link LockMetrics} phase latency, in
+         * milliseconds, or -1 if the phase hasn't completed yet.
+         */
+        public long getLatencyPercentile(int phase, double percentile) {
+            return mMetrics.getPercentile(phase, percentile);
+        }
+
+        public LockMetrics getMetrics() {
+            return mMetrics;
+        }
+
+        /**
+         * Registers for changes to the state of the default lock.  The listener is called
+         * with the current state before this returns.  Must be called on the main thread.
+         */
+        public void registerStateListener(LockStateStore.Listener listener) {
+            mStateStore.registerListener(listener);
+        }
+
+        public void unregisterStateListener(LockStateStore.Listener listener) {
+            mStateStore.unregisterListener(listener);
+        }
+
+        public LockStateStore.Snapshot getState() {
+            return mStateStore.getSnapshot();
+        }
     }
 
     @Override
     public void onCreate() {
         Log.d(TAG, "onCreate");
-        mSharedPreferences = getSharedPreferences(getPackageName(), Context.MODE_PRIVATE);
-        mSharedPreferences.registerOnSharedPreferenceChangeListener(mPreferenceChangeListener);
+        Trace.beginSection("DoorlockService.onCreate");
+        mEventThread = new HandlerThread(TAG);
+        mEventThread.start();
+        mHandler = new Handler(mEventThread.getLooper());
+        mConfigStore = ConfigStore.getInstance(this);
+        mConfigStore.registerListener(mConfigListener);
+        mSessionManager = new LockSessionManager(this, mHandler, mSessionListener,
+                mGattLayoutCache, mStatusCache, DeviceInfoCache.getInstance(this), mMetrics,
+                LockSessionManager.MAX_SESSIONS);
+        mNotificationController = new LockNotificationController(this);
+        mWidgetController = new LockWidgetController(this);
+        mLockStateCache = LockStateCache.getInstance(this);
+        restoreLockState();
+        mHandler.post(mPublishStateRunnable);
+        // Compacting reads the whole journal, so keep it off the main thread; nothing is
+        // appended until we've connected, and queries see no events until it's open.
+        mHandler.post(mOpenJournalRunnable);
+
+        final PowerManager powerManager = (PowerManager) getSystemService(POWER_SERVICE);
+        mScanScheduler.setScreenOn(powerManager.isInteractive());
+        final IntentFilter screenFilter = new IntentFilter(Intent.ACTION_SCREEN_ON);
+        screenFilter.addAction(Intent.ACTION_SCREEN_OFF);
+        registerReceiver(mScreenReceiver, screenFilter, null, mHandler);
+        Trace.endSection();
+    }
+
+    /**
+     * Starts a new process off with the door state remembered from the last one, shown as
+     * stale, rather than nothing until the lock says otherwise.  Called before the event
+     * loop has anything to do, so it may touch the state store.
+     */
+    private void restoreLockState() {
+        final LockStateCache.State state = mLockStateCache.get();
+        final String address = mConfigStore.get().mDefaultAddress;
+        if (state == null || address == null || !address.equals(state.mAddress)
+                || state.mDoorState == DOOR_STATE_UNKNOWN) {
+            return;
+        }
+        mStatusCache.restore(address, state.mDoorState, SystemClock.elapsedRealtime());
+        mStateStore.update(address, STATE_DISCONNECTED, state.mDoorState, true);
     }
 
+    private final Runnable mOpenJournalRunnable = new Runnable() {
+        @Override
+        public void run() {
+            try {
+                final DoorEventJournal journal =
+                        new DoorEventJournal(new File(getFilesDir(), "journal"));
+                journal.compact(System.currentTimeMillis() - JOURNAL_RETENTION_MS);
+                mJournal = journal;
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to open door event journal", e);
+            }
+        }
+    };
+
     @Override
     public void onDestroy() {
         Log.d(TAG, "onDestroy");
-        if (mBluetoothGatt == null) {
-            return;
+        unregisterReceiver(mScreenReceiver);
+        mConfigStore.unregisterListener(mConfigListener);
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                stopBluetoothLeScan();
+                mSessionManager.closeAll();
+                // Whatever else was coming, including the next scan window or RSSI poll
+                mHandler.removeCallbacksAndMessages(null);
+                closeJournal();
+            }
+        });
+        // Lets the above run first
+        mEventThread.quitSafely();
+    }
+
+    private void closeJournal() {
+        final DoorEventJournal journal = mJournal;
+        if (journal == null) return;
+        mJournal = null;
+        try {
+            journal.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to close door event journal", e);
         }
-        mBluetoothGatt.close();
-        mBluetoothGatt = null;
     }
 
     @Override
@@ -286,43 +553,261 @@ public class DoorlockService extends Service {
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "onStartCommand");
+        final String action = (intent != null) ? intent.getAction() : null;
+        if (ACTION_REFRESH_WIDGETS.equals(action)) {
+            mHandler.post(mRefreshWidgetsRunnable);
+        }
+
+        // The widget and notification fire intents to lock/unlock the door
+        final boolean tap = ACTION_LOCK.equals(action) || ACTION_UNLOCK.equals(action);
+        if (tap) {
+            mMetrics.begin(LockMetrics.PHASE_TAP_TO_STATUS);
+            final BluetoothAdapter adapter = mBluetoothAdapter;
+            if (adapter != null && adapter.isEnabled()) {
+                // Already up and running, so straight to the command path.  There's
+                // nothing to set up, and the scan is fine as it is.
+                onTap(action);
+                return START_STICKY;
+            }
+        }
+
         final boolean initialized = initialize();
 
-        // If Bluetooth is enabled *and* we have a default device configured
+        // If Bluetooth is enabled *and* we have a lock configured
         // start scanning in low power mode
-        final boolean hasDefaultDevice = !TextUtils.isEmpty(getDefaultDeviceAddress());
-        if (!initialized || !hasDefaultDevice) {
+        final boolean hasLocks = !getLockAddresses().isEmpty();
+        if (!initialized || !hasLocks) {
             // Nothing to do, so just stop ourselves until something changes
+            mMetrics.cancel(LockMetrics.PHASE_TAP_TO_STATUS);
             stopSelf();
             return START_NOT_STICKY;
         }
 
-        // The notification fires an intent to lock/unlock the door
-        if (intent != null && mConnectionState == STATE_CONNECTED) {
-            if (ACTION_UNLOCK.equals(intent.getAction())) {
-                unlockDoor();
-            } else if (ACTION_LOCK.equals(intent.getAction())) {
-                lockDoor();
+        if (tap) {
+            onTap(action);
+        }
+        mHandler.post(mUpdateScanRunnable);
+        return START_STICKY;
+    }
+
+    /**
+     * Sends the command for a tap on the widget or notification.  If the lock isn't
+     * connected, it's connected to straight away, and sent the command when it's ready.
+     */
+    private void onTap(String action) {
+        final int doorState = ACTION_UNLOCK.equals(action) ?
+                DOOR_STATE_UNLOCKED : DOOR_STATE_LOCKED;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (getDoorState(getDefaultDeviceAddress()) == doorState) {
+                    // The door won't change, so there's nothing to time
+                    mTapDoorState = DOOR_STATE_UNKNOWN;
+                    mMetrics.cancel(LockMetrics.PHASE_TAP_TO_STATUS);
+                } else {
+                    mTapDoorState = doorState;
+                }
             }
+        });
+        if (doorState == DOOR_STATE_UNLOCKED) {
+            unlockDoor();
+        } else {
+            lockDoor();
         }
+    }
 
-        startBluetoothLeScan();
-        return START_STICKY;
+    /**
+     * The tap we were timing won't get its door state; don't count the wait.
+     */
+    private void cancelTap() {
+        if (mTapDoorState == DOOR_STATE_UNKNOWN) return;
+        mTapDoorState = DOOR_STATE_UNKNOWN;
+        mMetrics.cancel(LockMetrics.PHASE_TAP_TO_STATUS);
+    }
+
+    /**
+     * Starts, stops or adjusts the background scan for our locks, according to which of
+     * them are connected and the policy chosen by the {@link ScanScheduler}.
+     */
+    private void updateBluetoothLeScan() {
+        mHandler.removeCallbacks(mUpdateScanRunnable);
+        final List<String> addresses = getAddressesToScan();
+        if (mBluetoothLeScanner == null || !mBluetoothAdapter.isEnabled()
+                || addresses.isEmpty()) {
+            stopBluetoothLeScan();
+            return;
+        }
+
+        final long now = SystemClock.elapsedRealtime();
+        final ScanScheduler.Policy policy = mScanScheduler.getPolicy(now);
+        if (!policy.sameAs(mScanPolicy) || !isScanCycleActive()
+                || !addresses.equals(mScanAddresses)) {
+            Log.i(TAG, "Scan policy: " + policy + " for " + addresses);
+            stopBluetoothLeScan();
+            mScanPolicy = policy;
+            mScanAddresses = addresses;
+            startScanWindow();
+        }
+
+        // Come back when the policy would change on its own
+        final long nextChange = mScanScheduler.getNextPolicyChange(now);
+        if (nextChange != 0) {
+            mHandler.postDelayed(mUpdateScanRunnable, nextChange - now);
+        }
+    }
+
+    /**
+     * Returns the configured locks that aren't connected, and that we have room for
+     * without closing another session.  The default device always gets a look in.
+     */
+    private List<String> getAddressesToScan() {
+        final ArrayList<String> addresses = new ArrayList<String>();
+        final String defaultAddress = getDefaultDeviceAddress();
+        for (String address : getLockAddresses()) {
+            final LockSession session = mSessionManager.peek(address);
+            if (session != null && session.getConnectionState() != STATE_DISCONNECTED) {
+                continue;
+            }
+            if (address.equals(defaultAddress) || mSessionManager.hasRoomFor(address)) {
+                addresses.add(address);
+            }
+        }
+        return addresses;
+    }
+
+    private boolean isScanCycleActive() {
+        return mScanning || mScanPaused;
+    }
+
+    private void startScanWindow() {
+        mScanPaused = false;
+        startScanning(mScanPolicy.mScanMode);
+        if (!mScanPolicy.isContinuous()) {
+            mHandler.postDelayed(mScanWindowEndRunnable, mScanPolicy.mWindowMs);
+        }
     }
 
-    private void startBluetoothLeScan() {
+    private void startScanning(int scanMode) {
         Log.d(TAG, "startBluetoothLeScan");
         // Stop any existing scan first
         mBluetoothLeScanner.stopScan(mScanCallback);
-        // Start low power BT-LE scanning
-        final ScanFilter scanFilter = new ScanFilter.Builder()
-                .setDeviceAddress(getDefaultDeviceAddress())
-                .build();
+        if (mScanAddresses.contains(getDefaultDeviceAddress())) {
+            mMetrics.begin(LockMetrics.PHASE_SCAN);
+        }
+        final ArrayList<ScanFilter> scanFilters = new ArrayList<ScanFilter>();
+        for (String address : mScanAddresses) {
+            scanFilters.add(new ScanFilter.Builder()
+                    .setDeviceAddress(address)
+                    .build());
+        }
         final ScanSettings scanSettings = new ScanSettings.Builder()
-                .setScanMode(ScanSettings.SCAN_MODE_LOW_POWER)
+                .setScanMode(scanMode)
                 .build();
-        mBluetoothLeScanner.startScan(Arrays.asList(scanFilter),
-                scanSettings, mScanCallback);
+        mBluetoothLeScanner.startScan(scanFilters, scanSettings, mScanCallback);
+        mScanning = true;
+        mScanScheduler.onScanStarted(SystemClock.elapsedRealtime(), scanMode);
+    }
+
+    private void stopScanning() {
+        if (!mScanning) return;
+        mScanning = false;
+        mScanScheduler.onScanStopped(SystemClock.elapsedRealtime());
+        mMetrics.cancel(LockMetrics.PHASE_SCAN);
+        if (mBluetoothAdapter.isEnabled()) {
+            mBluetoothLeScanner.stopScan(mScanCallback);
+        }
+    }
+
+    private void stopBluetoothLeScan() {
+        mHandler.removeCallbacks(mScanWindowEndRunnable);
+        mHandler.removeCallbacks(mScanWindowStartRunnable);
+        mScanPaused = false;
+        stopScanning();
+        mScanPolicy = null;
+        mScanAddresses = Collections.emptyList();
+    }
+
+    /**
+     * Lets the service know whether the app is in the foreground, where we want to find
+     * the lock as quickly as possible.
+     */
+    public void setAppForeground(final boolean foreground) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mAppForeground = foreground;
+                mScanScheduler.setAppForeground(foreground);
+                updateBluetoothLeScan();
+            }
+        });
+    }
+
+    /**
+     * Lets a connected lock go once we're clearly walking away from it, so the link isn't
+     * held open (and the lock awake) for nothing.  We'll connect again when we come back.
+     */
+    private void onConnectedRssi(LockSession session, int rssi) {
+        if (session.getConnectionState() != STATE_CONNECTED) {
+            return;
+        }
+        final String address = session.getAddress();
+        final int action = mProximity.onRssi(address, rssi, SystemClock.elapsedRealtime(),
+                true);
+        if (action != ProximityEngine.ACTION_DISCONNECT || mAppForeground || session.isBusy()) {
+            return;
+        }
+        Log.i(TAG, "Leaving " + address + " (" +
+                mProximity.getTracker(address, SystemClock.elapsedRealtime()) +
+                "), disconnecting");
+        mSupervisor.onDisconnectRequested(address, SystemClock.elapsedRealtime());
+        session.disconnect();
+    }
+
+    /**
+     * Returns a description of the current scan policy, the duty cycle measured so far, and
+     * how close the default lock seems to be.  Safe to call from any thread; the description
+     * is the one the event loop last put together, and asking has it put together another.
+     */
+    public String getScanDescription() {
+        mHandler.post(mRefreshScanDescriptionRunnable);
+        return mScanDescription;
+    }
+
+    private String describeScan() {
+        final long now = SystemClock.elapsedRealtime();
+        final String policy = (mScanPolicy != null) ? mScanPolicy.toString() : "not scanning";
+        final String address = getDefaultDeviceAddress();
+        final ProximityEngine.Tracker tracker =
+                (address != null) ? mProximity.getTracker(address, now) : null;
+        return String.format(Locale.US, "%s; measured duty %.1f%%; lock %s", policy,
+                mScanScheduler.getMeasuredDutyCycle(now) * 100,
+                (tracker != null) ? tracker.toString() : "out of range");
+    }
+
+    /**
+     * Returns a description of how connections to the default lock have been going, and
+     * how long the last one took.  Safe to call from any thread; like
+     * {@link #getScanDescription()}, it's the one the event loop last put together.
+     */
+    public String getConnectionDescription() {
+        mHandler.post(mRefreshConnectionDescriptionRunnable);
+        return mConnectionDescription;
+    }
+
+    private String describeConnection() {
+        final String address = getDefaultDeviceAddress();
+        if (address == null) {
+            return "no lock configured";
+        }
+        final String supervisor =
+                mSupervisor.getDescription(address, SystemClock.elapsedRealtime());
+        final LockSession session = getDefaultSession();
+        final long latency = (session != null) ? session.getLastConnectLatencyMillis() : -1;
+        if (latency < 0) {
+            return supervisor + "; no connection completed";
+        }
+        return String.format(Locale.US, "%s; last ready %dms after connect (%s)", supervisor,
+                latency, LockSession.getConnectPathName(session.getLastConnectPath()));
     }
 
     /**
@@ -362,7 +847,9 @@ public class DoorlockService extends Service {
     }
 
     /**
-     * Connects to the GATT server hosted on the Bluetooth LE device.
+     * Connects to the GATT server hosted on the Bluetooth LE device.  If we're already
+     * holding as many sessions as we can, the least recently used idle one is closed.
+     * Must be called on the event loop.
      *
      * @param address The device address of the destination device.
      *
@@ -371,171 +858,308 @@ public class DoorlockService extends Service {
      *         {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
      *         callback.
      */
-    public boolean connect(final String address) {
+    private boolean connect(final String address) {
+        return connect(address, true);
+    }
+
+    private boolean connect(String address, boolean userInitiated) {
         Log.d(TAG, "connect");
         if (mBluetoothAdapter == null || address == null) {
             Log.w(TAG, "BluetoothAdapter not initialized or unspecified address.");
             return false;
         }
-
-        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
-        if (device == null) {
-            Log.w(TAG, "Device not found.  Unable to connect.");
+        final LockSession session = mSessionManager.obtain(address);
+        if (session == null) {
             return false;
         }
+        return connect(session, userInitiated);
+    }
 
-        // Disconnect before creating a new connection.  Otherwise, the device seems to remain
-        // connected, but we no longer have a handle to it.
-        if (mConnectionState != STATE_DISCONNECTED) {
-            mBluetoothGatt.disconnect();
+    /**
+     * Starts connecting to a lock, unless the {@link ConnectionSupervisor} says otherwise:
+     * an attempt is already in flight, or we're backing off after a failure and the user
+     * isn't waiting.
+     */
+    private boolean connect(LockSession session, boolean userInitiated) {
+        final String address = session.getAddress();
+        if (!mSupervisor.startAttempt(address, SystemClock.elapsedRealtime(), userInitiated)) {
+            Log.d(TAG, "Not connecting to " + address + ", " + ConnectionSupervisor.getStateName(
+                    mSupervisor.getState(address)));
+            return false;
+        }
+        final BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+        if (device == null || !session.connect(device)) {
+            Log.w(TAG, "Unable to connect to " + address);
+            mSupervisor.onAttemptAbandoned(address, SystemClock.elapsedRealtime());
+            return false;
         }
-
-        // We want to directly connect to the device, so we are setting the autoConnect
-        // parameter to false.
-        mBluetoothGatt = device.connectGatt(this, false, mGattCallback);
-        Log.d(TAG, "Trying to create a new connection.");
-        mBluetoothDeviceAddress = address;
-        mConnectionState = STATE_CONNECTING;
-        broadcastConnectionUpdate();
         return true;
     }
 
     /**
-     * Disconnects an existing connection or cancel a pending connection. The disconnection result
-     * is reported asynchronously through the
+     * Disconnects an existing connection or cancel a pending connection to the default
+     * device. The disconnection result is reported asynchronously through the
      * {@code BluetoothGattCallback#onConnectionStateChange(android.bluetooth.BluetoothGatt, int, int)}
      * callback.
      */
     public void disconnect() {
-        Log.d(TAG, "disconnect");
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Log.d(TAG, "disconnect");
+                final LockSession session = getDefaultSession();
+                if (mBluetoothAdapter == null || session == null) {
+                    Log.w(TAG, "BluetoothAdapter not initialized");
+                    return;
+                }
+                mSupervisor.onDisconnectRequested(session.getAddress(),
+                        SystemClock.elapsedRealtime());
+                session.disconnect();
+            }
+        });
+    }
+
+    /**
+     * Returns the connection state of a lock, one of the {@code STATE_*} values.  Must be
+     * called on the event loop; elsewhere, use the published {@link LockStateStore.Snapshot}.
+     */
+    private int getConnectionState(String address) {
+        final LockSession session = (address != null) ? mSessionManager.peek(address) : null;
+        return (session != null) ? session.getConnectionState() : STATE_DISCONNECTED;
+    }
+
+    /**
+     * Returns the state of the door for a lock, one of the {@code DOOR_STATE_*} values.
+     * While the lock isn't telling us, this is the last state it reported, if any; see
+     * {@link #isDoorStateStale(String)}.  Must be called on the event loop.
+     */
+    private int getDoorState(String address) {
+        if (address == null) return DOOR_STATE_UNKNOWN;
+        final LockSession session = mSessionManager.peek(address);
+        final int doorState = (session != null) ? session.getDoorState() : DOOR_STATE_UNKNOWN;
+        if (doorState != DOOR_STATE_UNKNOWN) {
+            return doorState;
+        }
+        final DoorStatusCache.Status status = mStatusCache.get(address);
+        return (status != null) ? status.mDoorState : DOOR_STATE_UNKNOWN;
+    }
+
+    /**
+     * Returns whether {@link #getDoorState(String)} is a remembered state that's too old to
+     * be trusted.  Must be called on the event loop.
+     */
+    private boolean isDoorStateStale(String address) {
+        if (address == null) return false;
+        final LockSession session = mSessionManager.peek(address);
+        if (session != null && session.getDoorState() != DOOR_STATE_UNKNOWN) {
+            return false;
+        }
+        final DoorStatusCache.Status status = mStatusCache.get(address);
+        return status != null && !mStatusCache.isFresh(status, SystemClock.elapsedRealtime());
+    }
+
+    public void lockDoor() {
+        lockDoor(getDefaultDeviceAddress());
+    }
+
+    public void unlockDoor() {
+        unlockDoor(getDefaultDeviceAddress());
+    }
+
+    public void lockDoor(String address) {
+        postCommand(address, new byte[] { KEYPAD_COMMAND_LOCK }, true, null);
+    }
+
+    public void unlockDoor(String address) {
+        final byte[] command = LockProtocol.encodeUnlock(mConfigStore.get().mPasscode);
+        if (command == null) {
+            Log.w(TAG, "Invalid passcode configured, not unlocking");
             return;
         }
-        mBluetoothGatt.disconnect();
+        postCommand(address, command, true, null);
     }
 
-    public void sendSerial(byte b) {
-        final byte[] data = {b};
-        sendSerial(data);
+    /**
+     * Sends digits typed on the keypad, followed by enter, to the default lock as a single
+     * transfer.  If the lock isn't connected, we connect and send them once it's ready.
+     *
+     * @param listener Optional listener for progress and completion, called on the main
+     *                 thread.
+     */
+    public void enterKeys(CharSequence digits, SerialTransmitter.Listener listener) {
+        // Same key presses as an unlock with the digits as the passcode
+        final byte[] command = LockProtocol.encodeUnlock(digits);
+        if (command == null) {
+            Log.w(TAG, "Invalid keypad entry, not sending");
+            if (listener != null) listener.onComplete(false);
+            return;
+        }
+        sendSerial(command, listener);
+    }
+
+    /**
+     * Sends a sequence of bytes to the default lock.  Sequences of any length are accepted;
+     * they're split into frames the Bluno can handle and streamed out in order, behind
+     * anything sent before.  If the lock isn't connected, we connect and send them once
+     * it's ready.
+     *
+     * @param listener Optional listener for progress and completion, called on the main
+     *                 thread.  A transfer that's refused (too much already waiting, or no
+     *                 lock to send to) or lost with the connection completes unsuccessfully.
+     */
+    public void sendSerial(byte[] data, SerialTransmitter.Listener listener) {
+        postCommand(getDefaultDeviceAddress(), data, false, listener);
     }
 
-    public void sendSerial(byte[] data) {
-        if (mBluetoothAdapter == null || mBluetoothGatt == null) {
-            Log.w(TAG, "BluetoothAdapter not initialized");
+    /**
+     * Gets the default lock ready for a command we expect shortly, by connecting now
+     * rather than when the command is sent.
+     */
+    public void warmUp() {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                final String address = getDefaultDeviceAddress();
+                if (TextUtils.isEmpty(address) || mBluetoothAdapter == null) {
+                    return;
+                }
+                mScanScheduler.onLockActivity(SystemClock.elapsedRealtime());
+                if (getConnectionState(address) == STATE_DISCONNECTED) {
+                    connect(address);
+                }
+            }
+        });
+    }
+
+    private void postCommand(final String address, final byte[] command,
+                             final boolean replaceable, SerialTransmitter.Listener listener) {
+        final SerialTransmitter.Listener mainListener =
+                (listener != null) ? onMainThread(listener) : null;
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                sendCommand(address, command, replaceable, mainListener);
+            }
+        });
+    }
+
+    /**
+     * Sends a command to a lock.  If the lock isn't connected, we connect and send the
+     * command once it's ready.  See {@link LockSession#sendCommand}.
+     */
+    private void sendCommand(String address, byte[] command, boolean replaceable,
+                             SerialTransmitter.Listener listener) {
+        if (TextUtils.isEmpty(address) || mBluetoothAdapter == null) {
+            if (listener != null) listener.onComplete(false);
             return;
         }
-        if ((mGattBlunoService == null) || (mGattDeviceInfoService == null)) {
-            Log.w(TAG, "Bluetooth service has not been discovered");
+        mScanScheduler.onLockActivity(SystemClock.elapsedRealtime());
+        final LockSession session = mSessionManager.obtain(address);
+        if (session == null) {
+            if (listener != null) listener.onComplete(false);
             return;
         }
-        if (data.length > MAX_SERIAL_TX_SIZE) {
-            Log.w(TAG, "Maximum data size exceeded.  Cannot send more than " +
-                    MAX_SERIAL_TX_SIZE + " bytes");
+        if (!session.sendCommand(command, replaceable, listener)) {
             return;
         }
-        BluetoothGattCharacteristic characteristic =
-                mGattBlunoService.getCharacteristic(SERIAL_PORT_CHARACTERISTIC_UUID);
-        characteristic.setValue(data);
-        mBluetoothGatt.writeCharacteristic(characteristic);
-    }
-
-    private void onReceiveSerial(byte[] data) {
-        // The most recent command byte in the buffer is the only one we're interested in
-        for (int i = (data.length - 1); i >= 0; i--) {
-            final byte b = data[i];
-            Log.d(TAG, String.format("byte: 0x%x", b));
-            switch (data[i]) {
-                case LOCK_STATUS_BYTE:
-                    mDoorState = DOOR_STATE_LOCKED;
-                    broadcastDoorUpdate();
-                    updateNotification();
-                    break;
-                case UNLOCK_STATUS_BYTE:
-                    mDoorState = DOOR_STATE_UNLOCKED;
-                    broadcastDoorUpdate();
-                    updateNotification();
-                    break;
-                case ERROR_STATUS_BYTE:
-                    Log.w(TAG, "Error status received from lock.");
-                    break;
-                case ((byte) 0xFF):
-                    // Command start byte, ignore
-                    break;
-                default:
-                    Log.w(TAG, String.format("Unknown command byte received from lock: 0x%x", data[i]));
-                    break;
-            }
+        if (session.getConnectionState() == STATE_DISCONNECTED) {
+            connect(session, true);
         }
     }
 
-    public void lockDoor() {
-        sendSerial(KEYPAD_COMMAND_LOCK);
+    /**
+     * Wraps a transfer listener so it's called on the main thread.
+     */
+    private SerialTransmitter.Listener onMainThread(final SerialTransmitter.Listener listener) {
+        return new SerialTransmitter.Listener() {
+            @Override
+            public void onProgress(final int bytesSent, final int totalBytes) {
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onProgress(bytesSent, totalBytes);
+                    }
+                });
+            }
+
+            @Override
+            public void onComplete(final boolean success) {
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onComplete(success);
+                    }
+                });
+            }
+        };
     }
 
-    public void unlockDoor() {
-        String passcode = mSharedPreferences.getString(PREF_LOCK_PASSCODE,
-                DEFAULT_LOCK_PASSCODE) + '#';
-        if (passcode.length() <= 1)
-            return;
+    public LockMetrics getMetrics() {
+        return mMetrics;
+    }
 
-        byte[] command;
+    /**
+     * Returns the recorded door events with timestamps in {@code [fromMillis, toMillis)},
+     * newest first.
+     */
+    public List<DoorEventJournal.Event> queryDoorEvents(long fromMillis, long toMillis,
+                                                       int maxResults) {
+        final DoorEventJournal journal = mJournal;
+        if (journal == null) {
+            return Collections.emptyList();
+        }
         try {
-            command = passcode.getBytes("UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            Log.e(TAG, "Unexpected error encoding passcode", e);
-            return;
+            return journal.query(fromMillis, toMillis, maxResults);
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to read door event journal", e);
+            return Collections.emptyList();
         }
-        sendSerial(command);
     }
 
-    private String getDefaultDeviceAddress() {
-        return mSharedPreferences.getString(
-                PREF_DEFAULT_DEVICE_ADDRESS, null);
+    /**
+     * Returns the addresses of all the locks we keep connected, default device first.
+     */
+    public Set<String> getLockAddresses() {
+        return mConfigStore.get().getLockAddresses();
     }
 
-    private void setDefaultDeviceAddress(String address) {
-        mSharedPreferences.edit().putString(
-                PREF_DEFAULT_DEVICE_ADDRESS, address).commit();
+    /**
+     * Adds a lock to the set we keep connected.
+     */
+    public void addLock(String address) {
+        mConfigStore.setExtraAddress(address, true);
     }
 
-    private void updateNotification() {
-        NotificationManager notificationManager =
-                (NotificationManager) getSystemService(NOTIFICATION_SERVICE);
-
-        if ((mConnectionState != STATE_CONNECTED) || (mDoorState == DOOR_STATE_UNKNOWN)) {
-            notificationManager.cancelAll();
-            return;
+    /**
+     * Removes a lock from the set we keep connected, closing its session.
+     */
+    public void removeLock(final String address) {
+        mConfigStore.setExtraAddress(address, false);
+        if (!mConfigStore.get().isDefaultAddress(address)) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mSessionManager.remove(address);
+                }
+            });
         }
+    }
 
-        Intent intent = new Intent(this, DoorlockService.class);
-
-        Notification notification;
-        if (mDoorState == DOOR_STATE_LOCKED) {
-            intent.setAction(ACTION_UNLOCK);
-            PendingIntent pIntent = PendingIntent.getService(this,
-                    (int) System.currentTimeMillis(), intent, 0);
-            notification = new Notification.Builder(this)
-                    .setContentTitle("Door is locked")
-                    .setContentText("Press to unlock")
-                    .setSmallIcon(R.drawable.ic_door_locked)
-                    .setColor(getResources().getColor(android.R.color.holo_red_dark))
-                    .setContentIntent(pIntent)
-                    .setOngoing(true)
-                    .build();
-        } else {
-            intent.setAction(ACTION_UNLOCK);
-            PendingIntent pIntent = PendingIntent.getService(this,
-                    (int) System.currentTimeMillis(), intent, 0);
-            notification = new Notification.Builder(this)
-                    .setContentTitle("Door is unlocked")
-                    .setContentText("Press to lock")
-                    .setSmallIcon(R.drawable.ic_door_unlocked)
-                    .setColor(getResources().getColor(android.R.color.holo_green_dark))
-                    .setContentIntent(pIntent)
-                    .setOngoing(true)
-                    .build();
-        }
-        notificationManager.notify(0, notification);
+    private LockSession getDefaultSession() {
+        final String address = getDefaultDeviceAddress();
+        return (address != null) ? mSessionManager.peek(address) : null;
+    }
+
+    private boolean isDefaultSession(LockSession session) {
+        return mConfigStore.get().isDefaultAddress(session.getAddress());
+    }
+
+    private String getDefaultDeviceAddress() {
+        return mConfigStore.get().mDefaultAddress;
+    }
+
+    private void updateNotification() {
+        final String address = getDefaultDeviceAddress();
+        mNotificationController.update(getConnectionState(address), getDoorState(address));
     }
 }
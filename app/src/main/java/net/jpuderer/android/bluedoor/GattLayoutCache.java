@@ -0,0 +1,59 @@
+package net.jpuderer.android.bluedoor;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Remembers which devices we've discovered a usable GATT layout for.
+ *
+ * A {@link BluetoothGatt} keeps the services it discovered across a disconnect and
+ * reconnect, so for these devices a reused client can skip service discovery.  Nothing
+ * here can tell whether the layout is still right: the client's service list is the one
+ * it discovered last time, whatever the device has done since.  What validates it is the
+ * first acknowledged write after reconnecting (the status request, or enabling
+ * notifications); if that fails, the session forgets the device and discovers again.
+ *
+ * Only used on the service's event loop.  Not thread safe.
+ */
+class GattLayoutCache {
+    private final HashSet<String> mAddresses = new HashSet<String>();
+
+    /**
+     * Remembers that the device's client holds a discovered layout we can use.
+     */
+    public void remember(String address) {
+        mAddresses.add(address);
+    }
+
+    public void forget(String address) {
+        mAddresses.remove(address);
+    }
+
+    public boolean contains(String address) {
+        return mAddresses.contains(address);
+    }
+
+    /**
+     * Returns a string that identifies a service layout, for comparing with others.
+     */
+    static String fingerprint(List<BluetoothGattService> services) {
+        final ArrayList<String> entries = new ArrayList<String>();
+        if (services != null) {
+            for (BluetoothGattService service : services) {
+                for (BluetoothGattCharacteristic characteristic : service.getCharacteristics()) {
+                    entries.add(service.getUuid() + "/" + characteristic.getUuid() + ":" +
+                            characteristic.getProperties());
+                }
+            }
+        }
+        // Service order isn't guaranteed to be stable between discoveries
+        Collections.sort(entries);
+        return entries.toString();
+    }
+}
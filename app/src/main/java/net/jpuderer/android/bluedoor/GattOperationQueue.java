@@ -0,0 +1,371 @@
+package net.jpuderer.android.bluedoor;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Serializes GATT operations on a single {@link BluetoothGatt} connection.
+ *
+ * Android only allows one outstanding GATT operation per connection, and silently drops
+ * anything issued while another operation is in flight.  Operations are queued here and
+ * the next one is only started once the previous one has completed, as reported through
+ * the {@code BluetoothGattCallback} (see {@link #onOperationComplete(int, Object, int)}).
+ * Completions are matched to the operation in flight by type and by the characteristic
+ * or descriptor they're for.
+ *
+ * An operation that times out is reported as failed, but the stack may well still be
+ * working on it, and anything issued in the meantime would be dropped.  So the queue
+ * stalls: nothing more is issued until the late completion turns up.  If it doesn't turn
+ * up either, the connection is wedged, and the {@link Listener} is told so it can be
+ * reset.
+ *
+ * Confined to the event loop of the {@link LockSession} that owns it: every method must be
+ * called on the thread of the {@link Handler} it was created with, which is also where
+ * timeouts run and callbacks are made.  Not thread safe.
+ */
+class GattOperationQueue {
+    private final static String TAG = GattOperationQueue.class.getSimpleName();
+
+    public static final int OP_WRITE_CHARACTERISTIC = 1;
+    public static final int OP_READ_CHARACTERISTIC = 2;
+    public static final int OP_WRITE_DESCRIPTOR = 3;
+    public static final int OP_REQUEST_MTU = 4;
+    public static final int OP_REQUEST_CONNECTION_PRIORITY = 5;
+    public static final int OP_READ_REMOTE_RSSI = 6;
+
+    // How long we wait for the completion callback before giving up on an operation
+    public static final long DEFAULT_TIMEOUT_MS = 2000;
+    // How much longer we wait for a timed out operation, before giving up on the connection
+    public static final long STALL_TIMEOUT_MS = 3000;
+
+    // Maximum number of operations waiting to be issued.  Anything beyond this is refused,
+    // rather than letting a misbehaving caller build up an unbounded backlog.
+    public static final int MAX_QUEUE_DEPTH = 32;
+
+    /**
+     * Notified when a queued operation has finished, successfully or not.
+     */
+    interface Callback {
+        /**
+         * @param status The GATT status of the operation.  Operations that could not be
+         *               issued, or that timed out, report {@code BluetoothGatt.GATT_FAILURE}.
+         */
+        void onOperationComplete(int status);
+    }
+
+    /**
+     * Notified when the queue can't make progress on its connection.
+     */
+    interface Listener {
+        /**
+         * An operation timed out, and its completion never arrived.  The connection should
+         * be reset; the queue issues nothing further until it's attached to one again.
+         */
+        void onStalled();
+    }
+
+    /**
+     * A single GATT operation waiting to be issued.
+     */
+    static class Operation {
+        final int mType;
+        final BluetoothGattCharacteristic mCharacteristic;
+        final BluetoothGattDescriptor mDescriptor;
+        final byte[] mValue;
+        // The MTU, connection priority, or write type, depending on the operation
+        final int mArg;
+        final long mTimeoutMs;
+        // Whether an identical pending operation makes this one redundant
+        final boolean mCoalesce;
+        final Callback mCallback;
+
+        private Operation(int type, BluetoothGattCharacteristic characteristic,
+                          BluetoothGattDescriptor descriptor, byte[] value, int arg,
+                          long timeoutMs, boolean coalesce, Callback callback) {
+            mType = type;
+            mCharacteristic = characteristic;
+            mDescriptor = descriptor;
+            mValue = value;
+            mArg = arg;
+            mTimeoutMs = timeoutMs;
+            mCoalesce = coalesce;
+            mCallback = callback;
+        }
+
+        void complete(int status) {
+            if (mCallback != null) {
+                mCallback.onOperationComplete(status);
+            }
+        }
+
+        /**
+         * Returns whether a completion callback is for this operation.
+         */
+        boolean isCompletedBy(int type, Object target) {
+            if (mType != type) return false;
+            switch (type) {
+                case OP_WRITE_CHARACTERISTIC:
+                case OP_READ_CHARACTERISTIC:
+                    return mCharacteristic == target;
+                case OP_WRITE_DESCRIPTOR:
+                    return mDescriptor == target;
+                default:
+                    return true;
+            }
+        }
+
+        boolean isSameAs(Operation other) {
+            return mType == other.mType
+                    && mCharacteristic == other.mCharacteristic
+                    && mDescriptor == other.mDescriptor
+                    && mArg == other.mArg
+                    && Arrays.equals(mValue, other.mValue);
+        }
+    }
+
+    private final ArrayDeque<Operation> mQueue = new ArrayDeque<Operation>();
+    private final Handler mHandler;
+    private final Listener mListener;
+    private BluetoothGatt mBluetoothGatt;
+    private Operation mCurrentOperation;
+    // The operation that timed out, while we wait for its late completion
+    private Operation mStalledOperation;
+
+    private final Runnable mTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mCurrentOperation == null) return;
+            final Operation op = mCurrentOperation;
+            Log.w(TAG, "Timed out waiting for GATT operation " + op.mType);
+            mCurrentOperation = null;
+            mStalledOperation = op;
+            mHandler.postDelayed(mStallRunnable, STALL_TIMEOUT_MS);
+            // Whoever's waiting hears about it now; the next operation waits for the stack
+            op.complete(BluetoothGatt.GATT_FAILURE);
+        }
+    };
+
+    private final Runnable mStallRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mStalledOperation == null) return;
+            Log.w(TAG, "GATT operation " + mStalledOperation.mType + " never completed");
+            mListener.onStalled();
+        }
+    };
+
+    /**
+     * @param handler The event loop, where GATT callbacks are handled and timeouts run.
+     */
+    GattOperationQueue(Handler handler, Listener listener) {
+        mHandler = handler;
+        mListener = listener;
+    }
+
+    /**
+     * Attaches the queue to a new connection.  Anything still queued for a previous
+     * connection is discarded.
+     */
+    public void setGatt(BluetoothGatt gatt) {
+        clear();
+        mBluetoothGatt = gatt;
+    }
+
+    /**
+     * Discards all pending operations, including the one currently in flight.
+     */
+    public void clear() {
+        checkOnLoop();
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        mHandler.removeCallbacks(mStallRunnable);
+        mQueue.clear();
+        mCurrentOperation = null;
+        mStalledOperation = null;
+    }
+
+    public int size() {
+        return mQueue.size() + (mCurrentOperation != null ? 1 : 0);
+    }
+
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value) {
+        return writeCharacteristic(characteristic, value, null);
+    }
+
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value,
+                                       Callback callback) {
+        return writeCharacteristic(characteristic, value,
+                BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT, callback);
+    }
+
+    /**
+     * Queues a characteristic write of the given type.  Writes without response still
+     * complete through {@code onCharacteristicWrite}, once the stack has room for the next
+     * one, so they're paced the same way; but the status only says the write was sent, not
+     * that the peripheral took it.
+     *
+     * @param writeType One of the {@code BluetoothGattCharacteristic.WRITE_TYPE_*} values.
+     */
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic, byte[] value,
+                                       int writeType, Callback callback) {
+        return enqueue(new Operation(OP_WRITE_CHARACTERISTIC, characteristic, null,
+                value, writeType, DEFAULT_TIMEOUT_MS, false, callback));
+    }
+
+    /**
+     * Queues a characteristic write that is dropped if an identical write is already queued
+     * or in flight.  Used for idempotent requests, like polling the door status.
+     */
+    public boolean writeCharacteristicCoalesced(BluetoothGattCharacteristic characteristic,
+                                                byte[] value) {
+        return enqueue(new Operation(OP_WRITE_CHARACTERISTIC, characteristic, null,
+                value, BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT, DEFAULT_TIMEOUT_MS,
+                true, null));
+    }
+
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return enqueue(new Operation(OP_READ_CHARACTERISTIC, characteristic, null,
+                null, 0, DEFAULT_TIMEOUT_MS, true, null));
+    }
+
+    public boolean writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value) {
+        return writeDescriptor(descriptor, value, null);
+    }
+
+    public boolean writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value,
+                                   Callback callback) {
+        return enqueue(new Operation(OP_WRITE_DESCRIPTOR, null, descriptor,
+                value, 0, DEFAULT_TIMEOUT_MS, true, callback));
+    }
+
+    public boolean requestMtu(int mtu) {
+        return enqueue(new Operation(OP_REQUEST_MTU, null, null,
+                null, mtu, DEFAULT_TIMEOUT_MS, true, null));
+    }
+
+    public boolean requestConnectionPriority(int priority) {
+        return enqueue(new Operation(OP_REQUEST_CONNECTION_PRIORITY, null, null,
+                null, priority, DEFAULT_TIMEOUT_MS, true, null));
+    }
+
+    public boolean readRemoteRssi() {
+        return enqueue(new Operation(OP_READ_REMOTE_RSSI, null, null,
+                null, 0, DEFAULT_TIMEOUT_MS, true, null));
+    }
+
+    private boolean enqueue(Operation op) {
+        checkOnLoop();
+        if (mBluetoothGatt == null) {
+            Log.w(TAG, "No GATT connection, dropping operation " + op.mType);
+            return false;
+        }
+        if (op.mCoalesce) {
+            if (mCurrentOperation != null && mCurrentOperation.isSameAs(op)) {
+                return true;
+            }
+            for (Operation pending : mQueue) {
+                if (pending.isSameAs(op)) {
+                    return true;
+                }
+            }
+        }
+        if (mQueue.size() >= MAX_QUEUE_DEPTH) {
+            Log.w(TAG, "GATT operation queue full, refusing operation " + op.mType);
+            return false;
+        }
+        mQueue.add(op);
+        issueNext();
+        return true;
+    }
+
+    /**
+     * Should be called from the {@code BluetoothGattCallback} whenever an operation
+     * completes, so that the next one can be issued.
+     *
+     * @param type The type of the operation that completed (one of the {@code OP_*} values)
+     * @param target The characteristic or descriptor the callback is for, or null for
+     *               operations on the connection as a whole
+     * @param status The GATT status reported by the callback
+     */
+    public void onOperationComplete(int type, Object target, int status) {
+        checkOnLoop();
+        if (mStalledOperation != null && mStalledOperation.isCompletedBy(type, target)) {
+            // Late, but the stack is free again.  The caller has already been told it
+            // failed.
+            Log.i(TAG, "Timed out GATT operation " + type + " completed after all");
+            mHandler.removeCallbacks(mStallRunnable);
+            mStalledOperation = null;
+            issueNext();
+            return;
+        }
+        if (mCurrentOperation == null || !mCurrentOperation.isCompletedBy(type, target)) {
+            // Something we didn't issue, so there is nothing waiting on it
+            return;
+        }
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            Log.w(TAG, "GATT operation " + type + " failed with status: " + status);
+        }
+        mHandler.removeCallbacks(mTimeoutRunnable);
+        final Operation op = mCurrentOperation;
+        mCurrentOperation = null;
+        // The callback may queue more work itself, which issues it straight away; if it
+        // doesn't, the next queued operation goes now.
+        op.complete(status);
+        issueNext();
+    }
+
+    private void issueNext() {
+        while (mCurrentOperation == null && mStalledOperation == null && !mQueue.isEmpty()) {
+            final Operation op = mQueue.poll();
+            if (issue(op)) {
+                if (op.mType == OP_REQUEST_CONNECTION_PRIORITY) {
+                    // There's no completion callback for connection priority requests.
+                    op.complete(BluetoothGatt.GATT_SUCCESS);
+                    continue;
+                }
+                mCurrentOperation = op;
+                mHandler.postDelayed(mTimeoutRunnable, op.mTimeoutMs);
+            } else {
+                Log.w(TAG, "Failed to issue GATT operation " + op.mType);
+                op.complete(BluetoothGatt.GATT_FAILURE);
+            }
+        }
+    }
+
+    private void checkOnLoop() {
+        if (Looper.myLooper() != mHandler.getLooper()) {
+            throw new IllegalStateException("GattOperationQueue used off the event loop");
+        }
+    }
+
+    private boolean issue(Operation op) {
+        switch (op.mType) {
+            case OP_WRITE_CHARACTERISTIC:
+                // The value and write type are held by the (shared) characteristic
+                // object, so they must only be set once we're actually ready to send it.
+                op.mCharacteristic.setValue(op.mValue);
+                op.mCharacteristic.setWriteType(op.mArg);
+                return mBluetoothGatt.writeCharacteristic(op.mCharacteristic);
+            case OP_READ_CHARACTERISTIC:
+                return mBluetoothGatt.readCharacteristic(op.mCharacteristic);
+            case OP_WRITE_DESCRIPTOR:
+                op.mDescriptor.setValue(op.mValue);
+                return mBluetoothGatt.writeDescriptor(op.mDescriptor);
+            case OP_REQUEST_MTU:
+                return mBluetoothGatt.requestMtu(op.mArg);
+            case OP_REQUEST_CONNECTION_PRIORITY:
+                return mBluetoothGatt.requestConnectionPriority(op.mArg);
+            case OP_READ_REMOTE_RSSI:
+                return mBluetoothGatt.readRemoteRssi();
+            default:
+                Log.e(TAG, "Unknown GATT operation " + op.mType);
+                return false;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package net.jpuderer.android.bluedoor;
+
+import android.app.Activity;
+import android.app.Fragment;
+import android.os.AsyncTask;
+import android.os.Bundle;
+import android.text.format.DateUtils;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.BaseAdapter;
+import android.widget.ImageView;
+import android.widget.ListView;
+import android.widget.TextView;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class HistoryFragment extends Fragment {
+    private static final String TAG = "HistoryFragment";
+
+    // How far back, and how many events, the history screen shows
+    private static final long HISTORY_PERIOD = 90 * DateUtils.DAY_IN_MILLIS;
+    private static final int HISTORY_MAX_EVENTS = 500;
+
+    private ListView mListView;
+    private TextView mEmptyView;
+    private EventListAdapter mAdapter;
+    private QueryTask mQueryTask;
+
+    // Fragments need an empty default constructor
+    public HistoryFragment() { }
+
+    public static Fragment newInstance() {
+        Fragment fragment = new HistoryFragment();
+        return fragment;
+    }
+
+    HistoryFragmentListener mCallback;
+
+    // Container Activity must implement this interface
+    public interface HistoryFragmentListener {
+        /**
+         * Returns the door events with timestamps in {@code [fromMillis, toMillis)}, newest
+         * first.  Called on a background thread; reads the journal from disk.
+         */
+        public List<DoorEventJournal.Event> queryDoorEvents(long fromMillis, long toMillis,
+                                                           int maxResults);
+    }
+
+    @Override
+    public View onCreateView(LayoutInflater inflater, ViewGroup container,
+                             Bundle savedInstanceState) {
+        View rootView = inflater.inflate(R.layout.history_fragment, container, false);
+        mListView = (ListView) rootView.findViewById(R.id.history_list);
+        mEmptyView = (TextView) rootView.findViewById(R.id.history_empty);
+        mAdapter = new EventListAdapter(inflater);
+        mListView.setAdapter(mAdapter);
+        return rootView;
+    }
+
+    @Override
+    public void onAttach(Activity activity) {
+        super.onAttach(activity);
+
+        try {
+            mCallback = (HistoryFragmentListener) activity;
+        } catch (ClassCastException e) {
+            throw new ClassCastException(activity.toString()
+                    + " must implement HistoryFragmentListener");
+        }
+    }
+
+    @Override
+    public void onResume() {
+        super.onResume();
+        refresh();
+    }
+
+    @Override
+    public void onPause() {
+        if (mQueryTask != null) {
+            mQueryTask.cancel(false);
+            mQueryTask = null;
+        }
+        super.onPause();
+    }
+
+    /**
+     * Reloads the history.  The journal is read off the main thread.
+     */
+    public void refresh() {
+        if (mQueryTask != null) {
+            mQueryTask.cancel(false);
+        }
+        mQueryTask = new QueryTask(mCallback);
+        mQueryTask.execute(System.currentTimeMillis());
+    }
+
+    private void onEventsLoaded(List<DoorEventJournal.Event> events) {
+        mQueryTask = null;
+        mAdapter.setEvents(events);
+        mEmptyView.setVisibility(events.isEmpty() ? View.VISIBLE : View.GONE);
+    }
+
+    private class QueryTask extends AsyncTask<Long, Void, List<DoorEventJournal.Event>> {
+        private final HistoryFragmentListener mListener;
+
+        QueryTask(HistoryFragmentListener listener) {
+            mListener = listener;
+        }
+
+        @Override
+        protected List<DoorEventJournal.Event> doInBackground(Long... now) {
+            final long to = now[0] + 1;
+            return mListener.queryDoorEvents(to - HISTORY_PERIOD, to, HISTORY_MAX_EVENTS);
+        }
+
+        @Override
+        protected void onPostExecute(List<DoorEventJournal.Event> events) {
+            if (isCancelled() || getView() == null) return;
+            onEventsLoaded(events);
+        }
+    }
+
+    private class EventListAdapter extends BaseAdapter {
+        private final LayoutInflater mInflator;
+        private List<DoorEventJournal.Event> mEvents = new ArrayList<DoorEventJournal.Event>();
+
+        EventListAdapter(LayoutInflater inflater) {
+            mInflator = inflater;
+        }
+
+        public void setEvents(List<DoorEventJournal.Event> events) {
+            mEvents = events;
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public int getCount() {
+            return mEvents.size();
+        }
+
+        @Override
+        public Object getItem(int i) {
+            return mEvents.get(i);
+        }
+
+        @Override
+        public long getItemId(int i) {
+            return i;
+        }
+
+        @Override
+        public View getView(int i, View view, ViewGroup viewGroup) {
+            ViewHolder viewHolder;
+            if (view == null) {
+                view = mInflator.inflate(R.layout.listitem_event, viewGroup, false);
+                viewHolder = new ViewHolder();
+                viewHolder.icon = (ImageView) view.findViewById(R.id.event_icon);
+                viewHolder.title = (TextView) view.findViewById(R.id.event_title);
+                viewHolder.details = (TextView) view.findViewById(R.id.event_details);
+                view.setTag(viewHolder);
+            } else {
+                viewHolder = (ViewHolder) view.getTag();
+            }
+
+            final DoorEventJournal.Event event = mEvents.get(i);
+            final boolean locked = event.mType == DoorEventJournal.EVENT_LOCKED;
+            viewHolder.icon.setImageResource(locked ? R.drawable.ic_door_locked :
+                    R.drawable.ic_door_unlocked);
+            viewHolder.title.setText(getString(locked ? R.string.history_locked :
+                    R.string.history_unlocked) + "  " + DateUtils.formatDateTime(getActivity(),
+                    event.mTimestamp, DateUtils.FORMAT_SHOW_DATE | DateUtils.FORMAT_SHOW_TIME));
+            final String source = (event.mSource == DoorEventJournal.SOURCE_APP) ?
+                    getString(R.string.history_source_app, event.mLatencyMs) :
+                    getString(R.string.history_source_lock);
+            viewHolder.details.setText(event.mAddress + " " + source);
+            return view;
+        }
+    }
+
+    static class ViewHolder {
+        ImageView icon;
+        TextView title;
+        TextView details;
+    }
+}
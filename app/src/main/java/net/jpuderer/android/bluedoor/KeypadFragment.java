@@ -15,6 +15,12 @@ public class KeypadFragment extends Fragment implements View.OnClickListener {
     private int mConnectionState = DoorlockService.STATE_DISCONNECTED;
     private int mDoorState = DoorlockService.DOOR_STATE_UNKNOWN;
 
+    // Digits typed so far.  They're sent to the lock all at once when enter is pressed,
+    // rather than a write per key.
+    private final StringBuilder mEntry =
+            new StringBuilder(DoorlockService.MAX_PASSCODE_LENGTH);
+    private TextView mEntryView;
+
     // Fragments need an empty default contructor
     public KeypadFragment() { }
 
@@ -27,7 +33,16 @@ public class KeypadFragment extends Fragment implements View.OnClickListener {
 
     // Container Activity must implement this interface
     public interface KeypadFragmentListener {
-        public void onSendCommand(byte b);
+        /**
+         * Sends the digits entered, followed by enter, to the lock.
+         */
+        public void onKeypadEntry(String digits);
+
+        /**
+         * The keypad is on screen, so a command is likely soon.  Connect to the lock now.
+         */
+        public void onWarmConnection();
+
         public void onUpdateView();
     }
 
@@ -52,6 +67,8 @@ public class KeypadFragment extends Fragment implements View.OnClickListener {
         rootView.findViewById(R.id.key_9).setOnClickListener(this);
         rootView.findViewById(R.id.key_enter).setOnClickListener(this);
         rootView.findViewById(R.id.key_cancel).setOnClickListener(this);
+        mEntryView = (TextView) rootView.findViewById(R.id.text_keypad_entry);
+        updateEntryView();
 
         return rootView;
     }
@@ -70,6 +87,7 @@ public class KeypadFragment extends Fragment implements View.OnClickListener {
 
     @Override
     public void onResume() {
+        mCallback.onWarmConnection();
         mCallback.onUpdateView();
         super.onResume();
     }
@@ -77,40 +95,44 @@ public class KeypadFragment extends Fragment implements View.OnClickListener {
     public void onClick(View view) {
         switch (view.getId()) {
             case R.id.key_0:
-                mCallback.onSendCommand(DoorlockService.KEYPAD_COMMAND_KEY_0);
+                onDigit(0);
                 break;
             case R.id.key_1:
-                mCallback.onSendCommand(DoorlockService.KEYPAD_COMMAND_KEY_1);
+                onDigit(1);
                 break;
             case R.id.key_2:
-                mCallback.onSendCommand(DoorlockService.KEYPAD_COMMAND_KEY_2);
+                onDigit(2);
                 break;
             case R.id.key_3:
-                mCallback.onSendCommand(DoorlockService.KEYPAD_COMMAND_KEY_3);
+                onDigit(3);
                 break;
             case R.id.key_4:
-                mCallback.onSendCommand(DoorlockService.KEYPAD_COMMAND_KEY_4);
+                onDigit(4);
                 break;
             case R.id.key_5:
-                mCallback.onSendCommand(DoorlockService.KEYPAD_COMMAND_KEY_5);
+                onDigit(5);
                 break;
             case R.id.key_6:
-                mCallback.onSendCommand(DoorlockService.KEYPAD_COMMAND_KEY_6);
+                onDigit(6);
                 break;
             case R.id.key_7:
-                mCallback.onSendCommand(DoorlockService.KEYPAD_COMMAND_KEY_7);
+                onDigit(7);
                 break;
             case R.id.key_8:
-                mCallback.onSendCommand(DoorlockService.KEYPAD_COMMAND_KEY_8);
+                onDigit(8);
                 break;
             case R.id.key_9:
-                mCallback.onSendCommand(DoorlockService.KEYPAD_COMMAND_KEY_9);
+                onDigit(9);
                 break;
             case R.id.key_enter:
-                mCallback.onSendCommand(DoorlockService.KEYPAD_COMMAND_KEY_ENTER);
+                if (mEntry.length() > 0) {
+                    mCallback.onKeypadEntry(mEntry.toString());
+                    clearEntry();
+                }
                 break;
             case R.id.key_cancel:
-                mCallback.onSendCommand(DoorlockService.KEYPAD_COMMAND_KEY_CANCEL);
+                // Nothing has been sent yet, so there's nothing to cancel at the lock
+                clearEntry();
                 break;
             default:
                 Log.w(TAG, "Unexpected click event");
@@ -118,7 +140,30 @@ public class KeypadFragment extends Fragment implements View.OnClickListener {
         }
     }
 
-    public void updateState(int connectionState, int doorState) {
+    private void onDigit(int digit) {
+        if (mEntry.length() >= DoorlockService.MAX_PASSCODE_LENGTH) {
+            return;
+        }
+        mEntry.append((char) ('0' + digit));
+        updateEntryView();
+    }
+
+    private void clearEntry() {
+        mEntry.setLength(0);
+        updateEntryView();
+    }
+
+    private void updateEntryView() {
+        if (mEntryView == null) return;
+        // One dot per digit, like the passcode preference
+        final StringBuilder dots = new StringBuilder(mEntry.length());
+        for (int i = 0; i < mEntry.length(); i++) {
+            dots.appendCodePoint(8226);
+        }
+        mEntryView.setText(dots.toString());
+    }
+
+    public void updateState(int connectionState, int doorState, boolean stale) {
         mConnectionState = connectionState;
         mDoorState = doorState;
         TextView connectionStatus = (TextView) getView().findViewById(R.id.text_connection_status);
@@ -130,9 +175,9 @@ public class KeypadFragment extends Fragment implements View.OnClickListener {
 
         TextView doorStatus = (TextView) getView().findViewById(R.id.text_door_status);
         if (mDoorState == DoorlockService.DOOR_STATE_UNLOCKED) {
-            doorStatus.setText("Unlocked");
+            doorStatus.setText(stale ? "Unlocked (stale)" : "Unlocked");
         } else if (mDoorState == DoorlockService.DOOR_STATE_LOCKED) {
-            doorStatus.setText("Locked");
+            doorStatus.setText(stale ? "Locked (stale)" : "Locked");
         } else {
             doorStatus.setText("--");
         }
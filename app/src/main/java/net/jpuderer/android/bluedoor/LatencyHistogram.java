@@ -0,0 +1,86 @@
+package net.jpuderer.android.bluedoor;
+
+/**
+ * Fixed size histogram of latencies, in milliseconds.
+ *
+ * Values below {@link #LINEAR_LIMIT} get a bucket each; above that, every power of two is
+ * split into {@link #SUB_BUCKETS} buckets, so percentiles are accurate to within about 12%.
+ * Recording never allocates.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LINEAR_LIMIT = 2 * SUB_BUCKETS;
+    // Latencies beyond 2^MAX_EXPONENT ms (~17 minutes) all land in the last bucket
+    private static final int MAX_EXPONENT = 20;
+    private static final int BUCKET_COUNT =
+            LINEAR_LIMIT + (MAX_EXPONENT - SUB_BUCKET_BITS - 1) * SUB_BUCKETS;
+
+    private final long[] mCounts = new long[BUCKET_COUNT];
+    private long mTotalCount;
+    private long mMax;
+    private long mSum;
+
+    public synchronized void record(long valueMs) {
+        if (valueMs < 0) valueMs = 0;
+        mCounts[bucketFor(valueMs)]++;
+        mTotalCount++;
+        mSum += valueMs;
+        if (valueMs > mMax) mMax = valueMs;
+    }
+
+    public synchronized long getCount() {
+        return mTotalCount;
+    }
+
+    public synchronized long getMax() {
+        return mMax;
+    }
+
+    public synchronized long getMean() {
+        return mTotalCount == 0 ? 0 : mSum / mTotalCount;
+    }
+
+    /**
+     * Returns the latency below which the given percentage of recorded values fall, or -1
+     * if nothing has been recorded.
+     *
+     * @param percentile Between 0 and 100.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (mTotalCount == 0) return -1;
+        long rank = (long) Math.ceil(percentile / 100.0 * mTotalCount);
+        if (rank < 1) rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), mMax);
+            }
+        }
+        return mMax;
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) mCounts[i] = 0;
+        mTotalCount = 0;
+        mMax = 0;
+        mSum = 0;
+    }
+
+    private static int bucketFor(long value) {
+        if (value < LINEAR_LIMIT) return (int) value;
+        final int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent >= MAX_EXPONENT) return BUCKET_COUNT - 1;
+        final int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return LINEAR_LIMIT + (exponent - SUB_BUCKET_BITS - 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < LINEAR_LIMIT) return bucket;
+        final int exponent = (bucket - LINEAR_LIMIT) / SUB_BUCKETS + SUB_BUCKET_BITS + 1;
+        final int subBucket = (bucket - LINEAR_LIMIT) % SUB_BUCKETS;
+        final long width = 1L << (exponent - SUB_BUCKET_BITS);
+        return (1L << exponent) + (subBucket + 1) * width - 1;
+    }
+}
@@ -0,0 +1,62 @@
+package net.jpuderer.android.bluedoor;
+
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * An immutable snapshot of the user's lock configuration.
+ *
+ * Changes are made by creating a modified copy with one of the {@code with} methods, and
+ * handing it to the {@link ConfigStore}.
+ */
+final class LockConfig {
+    // Address and name of the lock the app controls, or null if none is chosen
+    final String mDefaultAddress;
+    final String mDefaultName;
+    final String mPasscode;
+    // Any other locks to keep connected, besides the default device
+    final Set<String> mExtraAddresses;
+    // The default device followed by the others
+    private final Set<String> mLockAddresses;
+
+    static final LockConfig EMPTY = new LockConfig(null, null,
+            DoorlockService.DEFAULT_LOCK_PASSCODE, Collections.<String>emptySet());
+
+    LockConfig(String defaultAddress, String defaultName, String passcode,
+               Set<String> extraAddresses) {
+        mDefaultAddress = defaultAddress;
+        mDefaultName = defaultName;
+        mPasscode = (passcode != null) ? passcode : DoorlockService.DEFAULT_LOCK_PASSCODE;
+        mExtraAddresses = Collections.unmodifiableSet(new LinkedHashSet<String>(extraAddresses));
+        final LinkedHashSet<String> addresses = new LinkedHashSet<String>();
+        if (defaultAddress != null && !defaultAddress.isEmpty()) {
+            addresses.add(defaultAddress);
+        }
+        addresses.addAll(extraAddresses);
+        mLockAddresses = Collections.unmodifiableSet(addresses);
+    }
+
+    LockConfig withDefaultDevice(String address, String name) {
+        return new LockConfig(address, name, mPasscode, mExtraAddresses);
+    }
+
+    LockConfig withPasscode(String passcode) {
+        return new LockConfig(mDefaultAddress, mDefaultName, passcode, mExtraAddresses);
+    }
+
+    LockConfig withExtraAddresses(Set<String> extraAddresses) {
+        return new LockConfig(mDefaultAddress, mDefaultName, mPasscode, extraAddresses);
+    }
+
+    /**
+     * Returns the addresses of all the locks we keep connected, default device first.
+     */
+    Set<String> getLockAddresses() {
+        return mLockAddresses;
+    }
+
+    boolean isDefaultAddress(String address) {
+        return address != null && address.equals(mDefaultAddress);
+    }
+}
@@ -0,0 +1,148 @@
+package net.jpuderer.android.bluedoor;
+
+import android.os.SystemClock;
+
+import java.util.Arrays;
+
+/**
+ * Latency of each phase of talking to the lock, from finding it in a scan to seeing the
+ * door react to a command.
+ *
+ * A phase is started with {@link #begin(int)} and finished with {@link #end(int)}; ending a
+ * phase that was never started is ignored, so callers don't need to track that themselves.
+ * Connections that run concurrently each time their phases with their own {@link Timer}.
+ */
+public class LockMetrics {
+    // Scan started, until the lock is seen in a scan
+    public static final int PHASE_SCAN = 0;
+    // Connection requested, until the GATT connection is up
+    public static final int PHASE_CONNECT = 1;
+    // Service discovery started, until services are discovered
+    public static final int PHASE_DISCOVERY = 2;
+    // Notification descriptor write queued, until it completes
+    public static final int PHASE_NOTIFICATION_ENABLE = 3;
+    // Lock or unlock command queued, until it has been written
+    public static final int PHASE_COMMAND_WRITE = 4;
+    // Lock or unlock command queued, until the lock reports the new door state
+    public static final int PHASE_COMMAND_STATUS = 5;
+    // Connection requested, until the lock first reports its status
+    public static final int PHASE_CONNECT_TO_READY = 6;
+    // Lock or unlock tapped on the widget or notification, until the lock reports the new
+    // door state
+    public static final int PHASE_TAP_TO_STATUS = 7;
+    public static final int PHASE_COUNT = 8;
+
+    private static final String[] PHASE_NAMES = {
+            "Scan match",
+            "GATT connect",
+            "Service discovery",
+            "Notification enable",
+            "Command write",
+            "Command to status",
+            "Connect to ready",
+            "Tap to status",
+    };
+
+    /**
+     * Start times for a set of phases in progress.  Latencies from all timers are recorded
+     * in the same histograms.
+     */
+    public class Timer {
+        private final long[] mStartTimes = new long[PHASE_COUNT];
+
+        public void begin(int phase) {
+            synchronized (LockMetrics.this) {
+                mStartTimes[phase] = SystemClock.elapsedRealtime();
+            }
+        }
+
+        public void cancel(int phase) {
+            synchronized (LockMetrics.this) {
+                mStartTimes[phase] = 0;
+            }
+        }
+
+        /**
+         * Finishes a phase, recording its latency.
+         *
+         * @return The latency of the phase, or -1 if the phase wasn't started.
+         */
+        public long end(int phase) {
+            synchronized (LockMetrics.this) {
+                if (mStartTimes[phase] == 0) return -1;
+                final long latency = SystemClock.elapsedRealtime() - mStartTimes[phase];
+                mStartTimes[phase] = 0;
+                mHistograms[phase].record(latency);
+                return latency;
+            }
+        }
+
+        private void clear() {
+            Arrays.fill(mStartTimes, 0);
+        }
+    }
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[PHASE_COUNT];
+    private final Timer mTimer = new Timer();
+
+    public LockMetrics() {
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            mHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    public Timer newTimer() {
+        return new Timer();
+    }
+
+    public static String getPhaseName(int phase) {
+        return PHASE_NAMES[phase];
+    }
+
+    public void begin(int phase) {
+        mTimer.begin(phase);
+    }
+
+    public void cancel(int phase) {
+        mTimer.cancel(phase);
+    }
+
+    /**
+     * Finishes a phase, recording its latency.
+     *
+     * @return The latency of the phase, or -1 if the phase wasn't started.
+     */
+    public long end(int phase) {
+        return mTimer.end(phase);
+    }
+
+    /**
+     * Records the latency of a phase timed elsewhere.
+     */
+    public void record(int phase, long latencyMs) {
+        mHistograms[phase].record(latencyMs);
+    }
+
+    public long getCount(int phase) {
+        return mHistograms[phase].getCount();
+    }
+
+    /**
+     * Returns the given percentile (0-100) of the phase latency in milliseconds, or -1 if
+     * the phase hasn't completed yet.
+     */
+    public long getPercentile(int phase, double percentile) {
+        return mHistograms[phase].getPercentile(percentile);
+    }
+
+    public long getMax(int phase) {
+        return mHistograms[phase].getMax();
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            mHistograms[i].reset();
+        }
+        mTimer.clear();
+    }
+}
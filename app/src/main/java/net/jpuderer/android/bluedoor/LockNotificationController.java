@@ -0,0 +1,102 @@
+package net.jpuderer.android.bluedoor;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Shows the ongoing notification that lets the user lock or unlock the door.
+ *
+ * The lock reports its status often, and almost always the same status.  The locked and
+ * unlocked notifications are built once up front, each with a PendingIntent that stays the
+ * same for the life of the service, and the notification manager is only called when what
+ * the user sees actually changes.
+ */
+class LockNotificationController {
+    private static final int NOTIFICATION_ID = 0;
+
+    // Request codes keep the PendingIntents for each action distinct
+    private static final int REQUEST_LOCK = 1;
+    private static final int REQUEST_UNLOCK = 2;
+
+    private static final int SHOWN_NONE = 0;
+    private static final int SHOWN_LOCKED = 1;
+    private static final int SHOWN_UNLOCKED = 2;
+
+    private final NotificationManager mNotificationManager;
+    private final Notification mLockedNotification;
+    private final Notification mUnlockedNotification;
+    private int mShown = SHOWN_NONE;
+
+    LockNotificationController(Context context) {
+        mNotificationManager =
+                (NotificationManager) context.getSystemService(Context.NOTIFICATION_SERVICE);
+
+        // When locked, pressing the notification unlocks, and vice versa
+        mLockedNotification = new Notification.Builder(context)
+                .setContentTitle("Door is locked")
+                .setContentText("Press to unlock")
+                .setSmallIcon(R.drawable.ic_door_locked)
+                .setColor(context.getResources().getColor(android.R.color.holo_red_dark))
+                .setContentIntent(getServiceIntent(context, DoorlockService.ACTION_UNLOCK,
+                        REQUEST_UNLOCK))
+                .setOngoing(true)
+                .build();
+        mUnlockedNotification = new Notification.Builder(context)
+                .setContentTitle("Door is unlocked")
+                .setContentText("Press to lock")
+                .setSmallIcon(R.drawable.ic_door_unlocked)
+                .setColor(context.getResources().getColor(android.R.color.holo_green_dark))
+                .setContentIntent(getServiceIntent(context, DoorlockService.ACTION_LOCK,
+                        REQUEST_LOCK))
+                .setOngoing(true)
+                .build();
+    }
+
+    private static PendingIntent getServiceIntent(Context context, String action,
+                                                  int requestCode) {
+        final Intent intent = new Intent(context, DoorlockService.class);
+        intent.setAction(action);
+        return PendingIntent.getService(context, requestCode, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Shows the notification for the given state, or hides it if we aren't connected or
+     * don't know the door state.  Does nothing if that's what is already shown.
+     */
+    public synchronized void update(int connectionState, int doorState) {
+        final int shown;
+        if (connectionState != DoorlockService.STATE_CONNECTED) {
+            shown = SHOWN_NONE;
+        } else if (doorState == DoorlockService.DOOR_STATE_LOCKED) {
+            shown = SHOWN_LOCKED;
+        } else if (doorState == DoorlockService.DOOR_STATE_UNLOCKED) {
+            shown = SHOWN_UNLOCKED;
+        } else {
+            shown = SHOWN_NONE;
+        }
+        if (shown == mShown) {
+            return;
+        }
+        mShown = shown;
+        switch (shown) {
+            case SHOWN_LOCKED:
+                mNotificationManager.notify(NOTIFICATION_ID, mLockedNotification);
+                break;
+            case SHOWN_UNLOCKED:
+                mNotificationManager.notify(NOTIFICATION_ID, mUnlockedNotification);
+                break;
+            default:
+                mNotificationManager.cancel(NOTIFICATION_ID);
+                break;
+        }
+    }
+
+    public synchronized void cancel() {
+        mShown = SHOWN_NONE;
+        mNotificationManager.cancel(NOTIFICATION_ID);
+    }
+}
@@ -1,8 +1,6 @@
 package net.jpuderer.android.bluedoor;
 
 import android.app.Fragment;
-import android.content.Context;
-import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.preference.EditTextPreference;
 import android.preference.Preference;
@@ -12,7 +10,7 @@ public class LockPreferenceFragment extends PreferenceFragment
         implements Preference.OnPreferenceChangeListener {
 
     private EditTextPreference mPasscodePreference;
-    SharedPreferences mSharedPreferences;
+    ConfigStore mConfigStore;
 
     public static Fragment newInstance() {
         Fragment fragment = new LockPreferenceFragment();
@@ -31,13 +29,11 @@ public class LockPreferenceFragment extends PreferenceFragment
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
 
-        mSharedPreferences = getActivity().getSharedPreferences(
-                getActivity().getPackageName(), Context.MODE_PRIVATE);
+        mConfigStore = ConfigStore.getInstance(getActivity());
         mPasscodePreference = (EditTextPreference)
                 findPreference("passcode");
         mPasscodePreference.setOnPreferenceChangeListener(this);
-        final String passcode = mSharedPreferences.getString(DoorlockService.PREF_LOCK_PASSCODE,
-                DoorlockService.DEFAULT_LOCK_PASSCODE);
+        final String passcode = mConfigStore.get().mPasscode;
         mPasscodePreference.setText(passcode);
         mPasscodePreference.setSummary(passwordString(passcode.length()));
     }
@@ -46,8 +42,7 @@ public class LockPreferenceFragment extends PreferenceFragment
     public boolean onPreferenceChange(Preference preference, Object newValue) {
         if (preference.equals(mPasscodePreference)) {
             final String passcode = (String) newValue;
-            mSharedPreferences.edit().putString(
-                    DoorlockService.PREF_LOCK_PASSCODE, passcode).apply();
+            mConfigStore.setPasscode(passcode);
             mPasscodePreference.setSummary(passwordString(passcode.length()));
         }
         return true;
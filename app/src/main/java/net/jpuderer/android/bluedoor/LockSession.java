@@ -0,0 +1,1033 @@
+package net.jpuderer.android.bluedoor;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
+
+import net.jpuderer.bluedoor.protocol.LockStateMachine;
+import net.jpuderer.bluedoor.protocol.StatusDecoder;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * A GATT connection to a single lock, along with everything we know about that lock.
+ *
+ * Each session has its own {@link BluetoothGatt} client, operation queue and state machine,
+ * so several locks can be connected at the same time.  The client is kept across
+ * disconnects, so that reconnecting to the lock can reuse the services it already knows
+ * about (see {@link GattLayoutCache}).
+ *
+ * Confined to the service's event loop: every method must be called on the thread of the
+ * {@link Handler} the session was created with, and the stack's callbacks are handed over
+ * to it.  Not thread safe.
+ */
+class LockSession {
+    private final static String TAG = LockSession.class.getSimpleName();
+
+    // Bluno serial characteristic can not receive more than 17 characters
+    // at once.  Longer sequences are split into frames of this size, unless the lock
+    // agrees to a larger MTU.
+    private static final int MAX_SERIAL_TX_SIZE = 17;
+    // MTU every connection starts with, and the one we ask for.  The lock may settle
+    // for anything in between.
+    private static final int DEFAULT_MTU = 23;
+    private static final int REQUESTED_MTU = 185;
+    // Bytes of each ATT write taken up by the opcode and handle
+    private static final int ATT_WRITE_HEADER_SIZE = 3;
+    // How long the link stays at high priority after the last command, before going back
+    // to a balanced connection interval
+    private static final long HIGH_PRIORITY_HOLD_MS = 3000;
+    // How long to give the old client to reconnect.  BluetoothGatt.connect() reconnects in
+    // the background, which is slow and never gives up, so after this we connect directly.
+    private static final long FAST_RECONNECT_TIMEOUT_MS = 1500;
+    // How long any connection attempt gets before we give up on it.  The stack would
+    // otherwise leave it pending for as long as the lock stays out of reach.
+    static final long CONNECT_TIMEOUT_MS = 10000;
+
+    // How the last connection attempt was made
+    static final int CONNECT_PATH_NONE = 0;
+    // A new client, connecting directly
+    static final int CONNECT_PATH_DIRECT = 1;
+    // The old client, reconnecting with its known layout
+    static final int CONNECT_PATH_REUSED = 2;
+    // The old client didn't reconnect in time, so a new one connected directly
+    static final int CONNECT_PATH_FALLBACK = 3;
+
+    private static final byte[] STATUS_REQUEST = { DoorlockService.GET_STATUS_COMMAND };
+
+    // Most commands held while connecting; any more are refused
+    static final int MAX_PENDING_COMMANDS = 4;
+
+    /**
+     * Notified of changes to the session.  Calls are made on the event loop.
+     */
+    interface Listener {
+        void onConnectionStateChanged(LockSession session);
+        void onDoorStateChanged(LockSession session);
+
+        /**
+         * The door went from locked to unlocked or back, either while we were connected,
+         * or while we weren't.
+         *
+         * @param commandLatencyMs How long after our command the lock reported the change,
+         *                         or -1 if the change wasn't made by a command of ours.
+         */
+        void onDoorTransition(LockSession session, int doorState, long commandLatencyMs);
+
+        /**
+         * The signal strength of the connection was read (see {@link #readRemoteRssi()}).
+         */
+        void onRemoteRssi(LockSession session, int rssi);
+    }
+
+    private final String mAddress;
+    private final Context mContext;
+    private final Listener mListener;
+    private final GattLayoutCache mGattLayoutCache;
+    private final DoorStatusCache mStatusCache;
+    private final DeviceInfoCache mDeviceInfoCache;
+    private final LockMetrics mMetrics;
+    private final LockMetrics.Timer mTimer;
+    private final LockStateMachine mStateMachine = new LockStateMachine();
+    private final Handler mHandler;
+    private final GattOperationQueue mGattQueue;
+    private final SerialTransmitter mSerialTransmitter;
+    private final StatusDecoder mSerialDecoder = new StatusDecoder();
+
+    private BluetoothGatt mBluetoothGatt;
+    private BluetoothGattService mGattBlunoService;
+    private BluetoothGattService mGattDeviceInfoService;
+
+    // Commands waiting for the connection to be ready, oldest first
+    private final ArrayDeque<PendingCommand> mPendingCommands = new ArrayDeque<PendingCommand>();
+    // Bytes we didn't understand in the current notification, and the last of them
+    private int mUnknownOpcodes;
+    private int mLastUnknownOpcode;
+    // Last door state the lock reported, kept across disconnects
+    private int mLastKnownDoorState = DoorlockService.DOOR_STATE_UNKNOWN;
+
+    // Whether the current connection attempt reuses a known GATT layout
+    private boolean mFastReconnect;
+    // When the current connection attempt started, or 0 once the lock is ready
+    private long mConnectStartTime;
+    private long mLastConnectLatency = -1;
+    private int mConnectPath = CONNECT_PATH_NONE;
+    private int mLastConnectPath = CONNECT_PATH_NONE;
+    private long mLastUsedTime;
+    // MTU agreed for the current connection
+    private int mMtu = DEFAULT_MTU;
+    // Whether we've asked for a high priority connection, and not yet relaxed it
+    private boolean mHighPriority;
+    // Device Information reads still outstanding, and the fields read so far.  A field
+    // stays null unless the lock actually gave us a value (or doesn't have it at all).
+    private int mDeviceInfoReads;
+    private String mModelNumber;
+    private String mFirmwareRevision;
+
+    private final Runnable mFastReconnectTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            fallBackToDirectConnect();
+        }
+    };
+
+    private final Runnable mConnectTimeoutRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (mStateMachine.getConnectionState() != DoorlockService.STATE_CONNECTING) return;
+            Log.w(TAG, "Connection to " + mAddress + " timed out after " +
+                    CONNECT_TIMEOUT_MS + "ms");
+            failConnection();
+        }
+    };
+
+    private final Runnable mRelaxPriorityRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (!mHighPriority) return;
+            if (isBusy()) {
+                mHandler.postDelayed(this, HIGH_PRIORITY_HOLD_MS);
+                return;
+            }
+            mHighPriority = false;
+            mGattQueue.requestConnectionPriority(BluetoothGatt.CONNECTION_PRIORITY_BALANCED);
+        }
+    };
+
+    // Registered with the stack.  Callbacks arrive on a binder thread, and are handed over
+    // to the event loop, where everything else to do with the session happens.  Values are
+    // taken from characteristics straight away, since the stack may overwrite them before
+    // the loop gets to run.
+    private final BluetoothGattCallback mGattCallback = new BluetoothGattCallback() {
+        @Override
+        public void onConnectionStateChange(final BluetoothGatt gatt, final int status,
+                                            final int newState) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleConnectionStateChange(gatt, status, newState);
+                }
+            });
+        }
+
+        @Override
+        public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    handleServicesDiscovered(gatt, status);
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt,
+                                         final BluetoothGattCharacteristic characteristic,
+                                         final int status) {
+            final UUID uuid = characteristic.getUuid();
+            final byte[] value = characteristic.getValue();
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mGattQueue.onOperationComplete(GattOperationQueue.OP_READ_CHARACTERISTIC,
+                            characteristic, status);
+                    if (status != BluetoothGatt.GATT_SUCCESS) {
+                        Log.w(TAG, "onCharacteristicRead status: " + status);
+                        onDeviceInfoRead(uuid, null);
+                    } else if (uuid.equals(DoorlockService.SERIAL_PORT_CHARACTERISTIC_UUID)) {
+                        onReceiveSerial(value);
+                    } else {
+                        onDeviceInfoRead(uuid, value);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt,
+                                          final BluetoothGattCharacteristic characteristic,
+                                          final int status) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mGattQueue.onOperationComplete(GattOperationQueue.OP_WRITE_CHARACTERISTIC,
+                            characteristic, status);
+                }
+            });
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, final BluetoothGattDescriptor descriptor,
+                                      final int status) {
+            final boolean clientConfig = descriptor.getUuid().equals(
+                    DoorlockService.CLIENT_CHARACTERISTIC_CONFIG_UUID);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mGattQueue.onOperationComplete(GattOperationQueue.OP_WRITE_DESCRIPTOR,
+                            descriptor, status);
+                    if (clientConfig) {
+                        mTimer.end(LockMetrics.PHASE_NOTIFICATION_ENABLE);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onMtuChanged(final BluetoothGatt gatt, final int mtu, final int status) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mGattQueue.onOperationComplete(GattOperationQueue.OP_REQUEST_MTU, null,
+                            status);
+                    if (status == BluetoothGatt.GATT_SUCCESS && gatt == mBluetoothGatt) {
+                        onMtuNegotiated(mtu);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onReadRemoteRssi(final BluetoothGatt gatt, final int rssi, final int status) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    mGattQueue.onOperationComplete(GattOperationQueue.OP_READ_REMOTE_RSSI, null,
+                            status);
+                    if (status == BluetoothGatt.GATT_SUCCESS && gatt == mBluetoothGatt) {
+                        mListener.onRemoteRssi(LockSession.this, rssi);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt,
+                                            BluetoothGattCharacteristic characteristic) {
+            if (!characteristic.getUuid().equals(DoorlockService.SERIAL_PORT_CHARACTERISTIC_UUID))
+                return;
+            final byte[] value = characteristic.getValue();
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onReceiveSerial(value);
+                }
+            });
+        }
+    };
+
+    private void handleConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+        if (gatt != mBluetoothGatt) {
+            // Late callback for a connection we've already abandoned
+            return;
+        }
+        if (newState == BluetoothProfile.STATE_CONNECTED) {
+            Log.d(TAG, "onConnectionStateChange: Connected to " + mAddress);
+            mHandler.removeCallbacks(mFastReconnectTimeoutRunnable);
+            mHandler.removeCallbacks(mConnectTimeoutRunnable);
+            mTimer.end(LockMetrics.PHASE_CONNECT);
+            mStateMachine.onConnected();
+            // Discovery and setup go quicker over a short connection interval
+            boostConnectionPriority();
+            mListener.onConnectionStateChanged(this);
+            if (mFastReconnect && !gatt.getServices().isEmpty()) {
+                // Skip discovery and use the services the client still holds.  Whether
+                // they're still right only shows once the first write is acknowledged;
+                // see rediscover().
+                Log.i(TAG, "Reusing known GATT layout");
+                onGattServicesReady(gatt);
+            } else {
+                mFastReconnect = false;
+                // Attempts to discover services after successful connection.
+                mTimer.begin(LockMetrics.PHASE_DISCOVERY);
+                Log.i(TAG, "Attempting to start service discovery:" +
+                        gatt.discoverServices());
+            }
+        } else if (newState == BluetoothProfile.STATE_DISCONNECTED) {
+            Log.d(TAG, "onConnectionStateChange: Disconnected from " + mAddress);
+            // Commands held for this connection attempt go with it
+            dropPendingCommands();
+            mStateMachine.onDisconnected();
+            resetConnection();
+            cancelConnectionMetrics();
+            if (status != BluetoothGatt.GATT_SUCCESS
+                    && !mGattLayoutCache.contains(mAddress)) {
+                // The client is no use for a fast reconnect, so give its slot in
+                // the stack back now rather than on the next attempt
+                Log.w(TAG, "Connection to " + mAddress + " failed, status " + status);
+                mBluetoothGatt.close();
+                mBluetoothGatt = null;
+                mGattQueue.setGatt(null);
+            }
+            mListener.onConnectionStateChanged(this);
+            mListener.onDoorStateChanged(this);
+        }
+    }
+
+    private void handleServicesDiscovered(BluetoothGatt gatt, int status) {
+        Log.d(TAG, "onServicesDiscovered");
+        if (gatt != mBluetoothGatt) {
+            return;
+        }
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            mTimer.end(LockMetrics.PHASE_DISCOVERY);
+            if (gatt.getService(DoorlockService.BLUNO_SERVICE_UUID) == null) {
+                Log.w(TAG, "Device does not have the Bluno serial service");
+                mGattLayoutCache.forget(mAddress);
+                return;
+            }
+            mGattLayoutCache.remember(mAddress);
+            final List<BluetoothGattService> services = gatt.getServices();
+            mDeviceInfoCache.putLayout(mAddress, GattLayoutCache.fingerprint(services),
+                    services.size(), System.currentTimeMillis());
+            onGattServicesReady(gatt);
+        } else {
+            Log.w(TAG, "onServicesDiscovered status: " + status);
+        }
+    }
+
+    private final StatusDecoder.Listener mSerialListener = new StatusDecoder.Listener() {
+        @Override
+        public void onDoorLocked() {
+            setDoorState(DoorlockService.DOOR_STATE_LOCKED);
+        }
+
+        @Override
+        public void onDoorUnlocked() {
+            setDoorState(DoorlockService.DOOR_STATE_UNLOCKED);
+        }
+
+        @Override
+        public void onLockError() {
+            Log.w(TAG, "Error status received from lock " + mAddress);
+        }
+
+        @Override
+        public void onUnknownOpcode(int opcode) {
+            // The firmware relays keypad echoes this way, so these come a byte at a time;
+            // just count them, and say something once per notification
+            mUnknownOpcodes++;
+            mLastUnknownOpcode = opcode;
+        }
+    };
+
+    LockSession(Context context, Handler handler, String address, Listener listener,
+                GattLayoutCache gattLayoutCache, DoorStatusCache statusCache,
+                DeviceInfoCache deviceInfoCache, LockMetrics metrics) {
+        mContext = context;
+        mHandler = handler;
+        mGattQueue = new GattOperationQueue(handler, new GattOperationQueue.Listener() {
+            @Override
+            public void onStalled() {
+                // The stack is stuck on something; start the connection over
+                Log.w(TAG, "GATT queue for " + mAddress + " stalled, dropping the connection");
+                failConnection();
+            }
+        });
+        mSerialTransmitter = new SerialTransmitter(mGattQueue, MAX_SERIAL_TX_SIZE);
+        mAddress = address;
+        mListener = listener;
+        mGattLayoutCache = gattLayoutCache;
+        mStatusCache = statusCache;
+        mDeviceInfoCache = deviceInfoCache;
+        mMetrics = metrics;
+        mTimer = metrics.newTimer();
+        mLastUsedTime = SystemClock.elapsedRealtime();
+    }
+
+    public String getAddress() {
+        return mAddress;
+    }
+
+    public int getConnectionState() {
+        return mStateMachine.getConnectionState();
+    }
+
+    public int getDoorState() {
+        return mStateMachine.getDoorState();
+    }
+
+    public boolean isConnected() {
+        return mStateMachine.isConnected();
+    }
+
+    /**
+     * Returns whether the session is in the middle of something that evicting it would
+     * interrupt: connecting, or sending a command.
+     */
+    public boolean isBusy() {
+        return mStateMachine.getConnectionState() == DoorlockService.STATE_CONNECTING
+                || !mPendingCommands.isEmpty()
+                || mSerialTransmitter.getPendingBytes() > 0;
+    }
+
+    public long getLastUsedTime() {
+        return mLastUsedTime;
+    }
+
+    /**
+     * Connects to the lock, reusing the existing client if we can.
+     *
+     * @return Return true if the connection is initiated successfully.
+     */
+    public boolean connect(BluetoothDevice device) {
+        checkOnLoop();
+        if (mStateMachine.getConnectionState() != DoorlockService.STATE_DISCONNECTED) {
+            // Starting over would abandon the client mid-connection, and leak it
+            Log.d(TAG, "Already connecting or connected to " + mAddress);
+            return true;
+        }
+        if (!startConnecting(device)) return false;
+        final int changed = mStateMachine.onConnecting();
+        if ((changed & LockStateMachine.CHANGED_DOOR_STATE) != 0) {
+            mListener.onDoorStateChanged(this);
+        }
+        mListener.onConnectionStateChanged(this);
+        return true;
+    }
+
+    private boolean startConnecting(BluetoothDevice device) {
+        Log.d(TAG, "connect " + mAddress);
+        mConnectStartTime = SystemClock.elapsedRealtime();
+        resetConnection();
+        cancelConnectionMetrics();
+        mTimer.begin(LockMetrics.PHASE_CONNECT);
+
+        if (mBluetoothGatt != null
+                && mStateMachine.getConnectionState() == DoorlockService.STATE_DISCONNECTED
+                && mGattLayoutCache.contains(mAddress)) {
+            // Reconnecting to the same device.  Reuse the existing client, which keeps the
+            // services it discovered, so we may be able to skip discovery entirely.  That's
+            // only worth it if it's quick, so it gets a deadline.
+            mFastReconnect = mBluetoothGatt.connect();
+            if (mFastReconnect) {
+                mConnectPath = CONNECT_PATH_REUSED;
+                mGattQueue.setGatt(mBluetoothGatt);
+                mHandler.postDelayed(mFastReconnectTimeoutRunnable, FAST_RECONNECT_TIMEOUT_MS);
+            }
+        } else {
+            mFastReconnect = false;
+        }
+
+        if (!mFastReconnect) {
+            // Close the old connection before creating a new one.  Otherwise, the device
+            // seems to remain connected, but we no longer have a handle to it.
+            if (mBluetoothGatt != null) {
+                mBluetoothGatt.disconnect();
+                mBluetoothGatt.close();
+            }
+            // We want to directly connect to the device, so we are setting the autoConnect
+            // parameter to false.
+            mBluetoothGatt = device.connectGatt(mContext, false, mGattCallback);
+            if (mBluetoothGatt == null) {
+                Log.w(TAG, "Unable to create GATT client for " + mAddress);
+                mTimer.cancel(LockMetrics.PHASE_CONNECT);
+                return false;
+            }
+            mConnectPath = CONNECT_PATH_DIRECT;
+            mGattQueue.setGatt(mBluetoothGatt);
+        }
+        mHandler.postDelayed(mConnectTimeoutRunnable, CONNECT_TIMEOUT_MS);
+        Log.d(TAG, "Trying to create a new connection.");
+        return true;
+    }
+
+    /**
+     * The old client didn't reconnect in time, so gives up on it and connects directly
+     * with a new one.  The new client has to discover services.
+     */
+    private void fallBackToDirectConnect() {
+        if (mBluetoothGatt == null || mConnectPath != CONNECT_PATH_REUSED
+                || mStateMachine.getConnectionState() != DoorlockService.STATE_CONNECTING) {
+            return;
+        }
+        Log.i(TAG, "Reconnect to " + mAddress + " not done after " +
+                FAST_RECONNECT_TIMEOUT_MS + "ms, connecting directly");
+        final BluetoothDevice device = mBluetoothGatt.getDevice();
+        mBluetoothGatt.disconnect();
+        mBluetoothGatt.close();
+        mFastReconnect = false;
+        mConnectPath = CONNECT_PATH_FALLBACK;
+        mBluetoothGatt = device.connectGatt(mContext, false, mGattCallback);
+        mGattQueue.setGatt(mBluetoothGatt);
+        if (mBluetoothGatt == null) {
+            Log.w(TAG, "Unable to create GATT client for " + mAddress);
+            failConnection();
+        }
+    }
+
+    /**
+     * Drops the connection, or gives up on the attempt in flight, as if the lock had gone
+     * away.  The client is closed, so the next attempt starts afresh.
+     */
+    private void failConnection() {
+        if (mBluetoothGatt != null) {
+            mBluetoothGatt.disconnect();
+            mBluetoothGatt.close();
+            mBluetoothGatt = null;
+            mGattQueue.setGatt(null);
+        }
+        dropPendingCommands();
+        mStateMachine.onDisconnected();
+        resetConnection();
+        cancelConnectionMetrics();
+        mListener.onConnectionStateChanged(this);
+        mListener.onDoorStateChanged(this);
+    }
+
+    /**
+     * Disconnects an existing connection or cancel a pending connection.  The client is
+     * kept, so a later {@link #connect(BluetoothDevice)} can reuse it.
+     */
+    public void disconnect() {
+        checkOnLoop();
+        if (mBluetoothGatt != null) {
+            mBluetoothGatt.disconnect();
+        }
+    }
+
+    /**
+     * Tears the session down for good, releasing the GATT client.
+     */
+    public void close() {
+        checkOnLoop();
+        dropPendingCommands();
+        resetConnection();
+        cancelConnectionMetrics();
+        if (mBluetoothGatt != null) {
+            mBluetoothGatt.disconnect();
+            mBluetoothGatt.close();
+            mBluetoothGatt = null;
+        }
+        if (mStateMachine.onDisconnected() == LockStateMachine.CHANGED_NOTHING) {
+            return;
+        }
+        mListener.onConnectionStateChanged(this);
+        mListener.onDoorStateChanged(this);
+    }
+
+    /**
+     * Sends a command, timing how long the lock takes to act on it.  If the connection
+     * isn't ready yet, the command is held until it is, behind any others already held.
+     *
+     * @param replaceable Whether a later replaceable command makes this one pointless, as
+     *                    with lock and unlock: only the last one held is sent.
+     * @param listener Optional listener for progress and completion.  A command that's
+     *                 refused, replaced or dropped with the connection is reported as
+     *                 failed.
+     *
+     * @return Return false if the command was refused.
+     */
+    public boolean sendCommand(byte[] command, boolean replaceable,
+                               SerialTransmitter.Listener listener) {
+        checkOnLoop();
+        mLastUsedTime = SystemClock.elapsedRealtime();
+        // Whatever we knew about the door is about to change
+        mStatusCache.invalidate(mAddress);
+        if (getSerialCharacteristic() != null) {
+            return transmitCommand(command, listener);
+        }
+        if (replaceable) {
+            final Iterator<PendingCommand> it = mPendingCommands.iterator();
+            while (it.hasNext()) {
+                final PendingCommand pending = it.next();
+                if (pending.mReplaceable) {
+                    it.remove();
+                    pending.fail();
+                }
+            }
+        }
+        if (mPendingCommands.size() >= MAX_PENDING_COMMANDS) {
+            Log.w(TAG, "Too many commands held for " + mAddress + ", refusing");
+            if (listener != null) listener.onComplete(false);
+            return false;
+        }
+        mPendingCommands.add(new PendingCommand(command, replaceable, listener));
+        return true;
+    }
+
+    private boolean transmitCommand(byte[] command, final SerialTransmitter.Listener listener) {
+        boostConnectionPriority();
+        mTimer.begin(LockMetrics.PHASE_COMMAND_WRITE);
+        mTimer.begin(LockMetrics.PHASE_COMMAND_STATUS);
+        final boolean queued = mSerialTransmitter.send(command, new SerialTransmitter.Listener() {
+            @Override
+            public void onProgress(int bytesSent, int totalBytes) {
+                if (listener != null) listener.onProgress(bytesSent, totalBytes);
+            }
+
+            @Override
+            public void onComplete(boolean success) {
+                if (success) {
+                    mTimer.end(LockMetrics.PHASE_COMMAND_WRITE);
+                } else {
+                    mTimer.cancel(LockMetrics.PHASE_COMMAND_WRITE);
+                    mTimer.cancel(LockMetrics.PHASE_COMMAND_STATUS);
+                }
+                if (listener != null) listener.onComplete(success);
+            }
+        });
+        if (!queued) {
+            mTimer.cancel(LockMetrics.PHASE_COMMAND_WRITE);
+            mTimer.cancel(LockMetrics.PHASE_COMMAND_STATUS);
+            if (listener != null) listener.onComplete(false);
+        }
+        return queued;
+    }
+
+    /**
+     * Fails every held command.  Cleared first, in case a listener sends another.
+     */
+    private void dropPendingCommands() {
+        final PendingCommand[] dropped =
+                mPendingCommands.toArray(new PendingCommand[mPendingCommands.size()]);
+        mPendingCommands.clear();
+        for (PendingCommand pending : dropped) {
+            pending.fail();
+        }
+    }
+
+    /**
+     * Asks the lock for the current door status, unless the status we have is still fresh.
+     * Redundant requests are coalesced, so this is cheap to call whenever we want to be
+     * sure our view of the door is current.
+     */
+    private void requestStatus() {
+        if (mStatusCache.getFresh(mAddress, SystemClock.elapsedRealtime()) != null) {
+            return;
+        }
+        final BluetoothGattCharacteristic characteristic = getSerialCharacteristic();
+        if (characteristic == null) {
+            return;
+        }
+        mGattQueue.writeCharacteristicCoalesced(characteristic, STATUS_REQUEST);
+    }
+
+    /**
+     * Reads the signal strength of the connection, reported to
+     * {@link Listener#onRemoteRssi(LockSession, int)}.  Only reads the controller's own
+     * measurement, so nothing goes over the air.
+     */
+    public void readRemoteRssi() {
+        checkOnLoop();
+        if (mStateMachine.isConnected()) {
+            mGattQueue.readRemoteRssi();
+        }
+    }
+
+    /**
+     * Returns the time from starting the last connection attempt until the lock reported
+     * its status, or -1 if no connection has completed yet.
+     */
+    public long getLastConnectLatencyMillis() {
+        return mLastConnectLatency;
+    }
+
+    /**
+     * Returns how the last completed connection was made, one of the
+     * {@code CONNECT_PATH_*} values.
+     */
+    public int getLastConnectPath() {
+        return mLastConnectPath;
+    }
+
+    static String getConnectPathName(int path) {
+        switch (path) {
+            case CONNECT_PATH_NONE:
+                return "none";
+            case CONNECT_PATH_DIRECT:
+                return "direct";
+            case CONNECT_PATH_REUSED:
+                return "reused client";
+            case CONNECT_PATH_FALLBACK:
+                return "direct, after reuse timed out";
+            default:
+                return "path " + path;
+        }
+    }
+
+    /**
+     * Starts talking to the lock once we know its services, either from discovery, or from
+     * the layout remembered from a previous connection.
+     */
+    private void onGattServicesReady(final BluetoothGatt gatt) {
+        mGattBlunoService = gatt.getService(DoorlockService.BLUNO_SERVICE_UUID);
+        mGattDeviceInfoService = gatt.getService(DoorlockService.DEVICE_INFORMATION_SERVICE_UUID);
+
+        final BluetoothGattCharacteristic characteristic = mGattBlunoService.getCharacteristic(
+                DoorlockService.SERIAL_PORT_CHARACTERISTIC_UUID);
+        gatt.setCharacteristicNotification(characteristic, true);
+        mSerialTransmitter.setCharacteristic(characteristic);
+        // Commands don't need each frame acknowledged: the lock answers them with a status
+        // notification.  The status request below stays acknowledged, since on a fast
+        // reconnect it's what tells us the remembered layout still works.
+        final boolean noResponse = (characteristic.getProperties()
+                & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0;
+        mSerialTransmitter.setWriteType(noResponse ?
+                BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE :
+                BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+
+        // If we heard from the lock recently enough, there's no need to ask for the status.
+        // Otherwise ask for it first, and enable notifications right behind it.  The Bluno
+        // notifies whether or not the descriptor has been written, so the status reply
+        // can arrive while the descriptor write is still in flight.
+        final BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
+                DoorlockService.CLIENT_CHARACTERISTIC_CONFIG_UUID);
+        final boolean statusCached = descriptor != null
+                && mStatusCache.getFresh(mAddress, SystemClock.elapsedRealtime()) != null;
+        if (!statusCached) {
+            mGattQueue.writeCharacteristic(characteristic, STATUS_REQUEST,
+                    new GattOperationQueue.Callback() {
+                @Override
+                public void onOperationComplete(int status) {
+                    if (status != BluetoothGatt.GATT_SUCCESS && mFastReconnect) {
+                        rediscover(gatt);
+                    }
+                }
+            });
+        }
+        if (descriptor != null) {
+            mTimer.begin(LockMetrics.PHASE_NOTIFICATION_ENABLE);
+            mGattQueue.writeDescriptor(descriptor,
+                    BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE,
+                    new GattOperationQueue.Callback() {
+                @Override
+                public void onOperationComplete(int status) {
+                    if (!statusCached) {
+                        return;
+                    }
+                    // Without a status request, this write is what tells us the
+                    // connection works.
+                    if (status != BluetoothGatt.GATT_SUCCESS && mFastReconnect) {
+                        rediscover(gatt);
+                    } else {
+                        applyCachedStatus();
+                    }
+                }
+            });
+        }
+
+        // In the order they were sent
+        while (!mPendingCommands.isEmpty()) {
+            final PendingCommand pending = mPendingCommands.poll();
+            transmitCommand(pending.mCommand, pending.mListener);
+        }
+        // Behind everything else, so a held command doesn't wait on it
+        if (mMtu == DEFAULT_MTU) {
+            mGattQueue.requestMtu(REQUESTED_MTU);
+        }
+        // Only once per lock, or after its layout changes
+        final DeviceInfoCache.DeviceInfo info = mDeviceInfoCache.get(mAddress);
+        if (info != null && !info.hasDetails()) {
+            readDeviceInfo(info);
+        }
+    }
+
+    /**
+     * Reads whichever of the model number and firmware revision the {@link DeviceInfoCache}
+     * doesn't have yet.  A field the lock doesn't have is recorded as empty.  One we
+     * couldn't read (the queue refused it, or the read failed) is left unknown, so it's
+     * tried again on the next connection.
+     */
+    private void readDeviceInfo(DeviceInfoCache.DeviceInfo info) {
+        if (mGattDeviceInfoService == null || mDeviceInfoReads > 0) return;
+        mModelNumber = (info.mModel != null) ? info.mModel : startDeviceInfoRead(
+                DoorlockService.MODEL_NUMBER_STRING_CHARACTERISTIC_UUID);
+        mFirmwareRevision = (info.mFirmware != null) ? info.mFirmware : startDeviceInfoRead(
+                DoorlockService.FIRMWARE_REVISION_STRING_CHARACTERISTIC_UUID);
+        storeDeviceInfo();
+    }
+
+    /**
+     * @return Return "" if the lock doesn't have the field, and null otherwise, until the
+     * read completes.
+     */
+    private String startDeviceInfoRead(UUID uuid) {
+        final BluetoothGattCharacteristic characteristic =
+                mGattDeviceInfoService.getCharacteristic(uuid);
+        if (characteristic == null) return "";
+        if (mGattQueue.readCharacteristic(characteristic)) {
+            mDeviceInfoReads++;
+        } else {
+            Log.w(TAG, "Couldn't queue read of " + uuid);
+        }
+        return null;
+    }
+
+    /**
+     * @param value The value read, or null if the read failed.
+     */
+    private void onDeviceInfoRead(UUID uuid, byte[] value) {
+        if (mDeviceInfoReads == 0) return;
+        final boolean model = uuid.equals(DoorlockService.MODEL_NUMBER_STRING_CHARACTERISTIC_UUID);
+        if (!model && !uuid.equals(DoorlockService.FIRMWARE_REVISION_STRING_CHARACTERISTIC_UUID)) {
+            return;
+        }
+        mDeviceInfoReads--;
+        if (value != null) {
+            final String text = new String(value, StandardCharsets.UTF_8).trim();
+            if (model) {
+                mModelNumber = text;
+            } else {
+                mFirmwareRevision = text;
+            }
+        }
+        storeDeviceInfo();
+    }
+
+    /**
+     * Once no reads are outstanding, saves whatever we learned.  Anything still unknown
+     * leaves the cache wanting details, so it's read next time.
+     */
+    private void storeDeviceInfo() {
+        if (mDeviceInfoReads > 0) return;
+        if (mModelNumber == null && mFirmwareRevision == null) return;
+        Log.i(TAG, "Lock " + mAddress + " is model \"" + mModelNumber + "\", firmware \"" +
+                mFirmwareRevision + "\"");
+        mDeviceInfoCache.putDetails(mAddress, mModelNumber, mFirmwareRevision,
+                System.currentTimeMillis());
+    }
+
+    /**
+     * Sizes frames to fill whatever MTU the lock agreed to.
+     */
+    private void onMtuNegotiated(int mtu) {
+        mMtu = mtu;
+        final int frameSize = (mtu > DEFAULT_MTU) ?
+                mtu - ATT_WRITE_HEADER_SIZE : MAX_SERIAL_TX_SIZE;
+        mSerialTransmitter.setFrameSize(frameSize);
+        Log.i(TAG, "MTU for " + mAddress + " is " + mtu + ", sending " + frameSize +
+                " byte frames");
+    }
+
+    /**
+     * Shortens the connection interval while we've got something to say, so a command
+     * and the lock's reply each take fewer connection events.  Goes back to balanced once
+     * the session has been idle for a while.
+     */
+    private void boostConnectionPriority() {
+        mHandler.removeCallbacks(mRelaxPriorityRunnable);
+        mHandler.postDelayed(mRelaxPriorityRunnable, HIGH_PRIORITY_HOLD_MS);
+        if (mHighPriority) return;
+        mHighPriority = mGattQueue.requestConnectionPriority(
+                BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+    }
+
+    /**
+     * The first acknowledged write on a reused layout failed, which is how a stale layout
+     * shows up, so falls back to service discovery.
+     */
+    private void rediscover(BluetoothGatt gatt) {
+        Log.w(TAG, "GATT operation failed on fast reconnect, rediscovering");
+        mFastReconnect = false;
+        mGattLayoutCache.forget(mAddress);
+        resetConnection();
+        boostConnectionPriority();
+        mTimer.begin(LockMetrics.PHASE_DISCOVERY);
+        gatt.discoverServices();
+    }
+
+    /**
+     * Uses the cached status in place of asking the lock, provided it's still fresh and
+     * the lock hasn't told us anything newer.
+     */
+    private void applyCachedStatus() {
+        final DoorStatusCache.Status status =
+                mStatusCache.getFresh(mAddress, SystemClock.elapsedRealtime());
+        markReady();
+        if (status == null || mStateMachine.getDoorState() != DoorlockService.DOOR_STATE_UNKNOWN) {
+            // Gone stale in the meantime; ask after all
+            if (status == null) requestStatus();
+            return;
+        }
+        Log.d(TAG, "Using door status cached " +
+                status.getAge(SystemClock.elapsedRealtime()) + "ms ago");
+        if (mStateMachine.onDoorStatus(status.mDoorState) != LockStateMachine.CHANGED_NOTHING) {
+            mListener.onDoorStateChanged(this);
+        }
+    }
+
+    /**
+     * Records how long the connection took, the first time we know the lock is ready for
+     * commands.
+     */
+    private void markReady() {
+        if (mConnectStartTime == 0) {
+            return;
+        }
+        mLastConnectLatency = SystemClock.elapsedRealtime() - mConnectStartTime;
+        mLastConnectPath = mConnectPath;
+        mConnectStartTime = 0;
+        mMetrics.record(LockMetrics.PHASE_CONNECT_TO_READY, mLastConnectLatency);
+        Log.i(TAG, "Lock " + mAddress + " ready " + mLastConnectLatency +
+                "ms after connect (" + getConnectPathName(mLastConnectPath) + ")");
+    }
+
+    /**
+     * Forgets everything about the current connection's services and pending I/O.
+     */
+    private void resetConnection() {
+        mGattBlunoService = null;
+        mGattDeviceInfoService = null;
+        mSerialTransmitter.setCharacteristic(null);
+        mSerialDecoder.reset();
+        mGattQueue.clear();
+        mMtu = DEFAULT_MTU;
+        mSerialTransmitter.setFrameSize(MAX_SERIAL_TX_SIZE);
+        mHighPriority = false;
+        mHandler.removeCallbacks(mRelaxPriorityRunnable);
+        mHandler.removeCallbacks(mFastReconnectTimeoutRunnable);
+        mHandler.removeCallbacks(mConnectTimeoutRunnable);
+        mDeviceInfoReads = 0;
+    }
+
+    private BluetoothGattCharacteristic getSerialCharacteristic() {
+        if (mBluetoothGatt == null) {
+            Log.w(TAG, "Not connected to " + mAddress);
+            return null;
+        }
+        if ((mGattBlunoService == null) || (mGattDeviceInfoService == null)) {
+            Log.w(TAG, "Bluetooth service has not been discovered");
+            return null;
+        }
+        return mGattBlunoService.getCharacteristic(
+                DoorlockService.SERIAL_PORT_CHARACTERISTIC_UUID);
+    }
+
+    private void onReceiveSerial(byte[] data) {
+        mSerialDecoder.feed(data);
+        mSerialDecoder.drain(mSerialListener);
+        if (mUnknownOpcodes > 0) {
+            if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, "Ignored " + mUnknownOpcodes + " unknown byte(s) from lock, last 0x"
+                        + Integer.toHexString(mLastUnknownOpcode));
+            }
+            mUnknownOpcodes = 0;
+        }
+        final int dropped = mSerialDecoder.takeDroppedBytes();
+        if (dropped > 0) {
+            Log.w(TAG, "Receive buffer overflow, dropped " + dropped + " bytes");
+        }
+    }
+
+    private void setDoorState(int doorState) {
+        final long commandLatency = mTimer.end(LockMetrics.PHASE_COMMAND_STATUS);
+        final boolean transition;
+        transition = mLastKnownDoorState != DoorlockService.DOOR_STATE_UNKNOWN
+                && mLastKnownDoorState != doorState;
+        mLastKnownDoorState = doorState;
+        mStatusCache.put(mAddress, doorState, SystemClock.elapsedRealtime());
+        // The first status after connecting means the lock is ready for commands
+        markReady();
+        if (transition) {
+            mListener.onDoorTransition(this, doorState, commandLatency);
+        }
+        if (mStateMachine.onDoorStatus(doorState) == LockStateMachine.CHANGED_NOTHING) {
+            return;
+        }
+        mListener.onDoorStateChanged(this);
+    }
+
+    private void checkOnLoop() {
+        if (Looper.myLooper() != mHandler.getLooper()) {
+            throw new IllegalStateException("LockSession used off the event loop");
+        }
+    }
+
+    private void cancelConnectionMetrics() {
+        mTimer.cancel(LockMetrics.PHASE_CONNECT);
+        mTimer.cancel(LockMetrics.PHASE_DISCOVERY);
+        mTimer.cancel(LockMetrics.PHASE_NOTIFICATION_ENABLE);
+        mTimer.cancel(LockMetrics.PHASE_COMMAND_WRITE);
+        mTimer.cancel(LockMetrics.PHASE_COMMAND_STATUS);
+    }
+
+    private static final class PendingCommand {
+        final byte[] mCommand;
+        final boolean mReplaceable;
+        final SerialTransmitter.Listener mListener;
+
+        PendingCommand(byte[] command, boolean replaceable, SerialTransmitter.Listener listener) {
+            mCommand = command;
+            mReplaceable = replaceable;
+            mListener = listener;
+        }
+
+        void fail() {
+            if (mListener != null) mListener.onComplete(false);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package net.jpuderer.android.bluedoor;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Keeps a {@link LockSession} for each lock we're talking to.
+ *
+ * Phones only support a handful of simultaneous LE links, so the number of sessions is
+ * capped.  When a new session is needed and we're at the cap, the least recently used
+ * session that isn't in the middle of something is closed to make room.
+ *
+ * Confined to the event loop, like the sessions themselves: every method must be called on
+ * the thread of the {@link Handler} the manager was created with.  Not thread safe.
+ */
+class LockSessionManager {
+    private final static String TAG = LockSessionManager.class.getSimpleName();
+
+    // Most sessions we keep at once.  Comfortably below what the controllers we care about
+    // support, leaving room for other apps.
+    public static final int MAX_SESSIONS = 3;
+
+    private final Context mContext;
+    private final Handler mHandler;
+    private final LockSession.Listener mListener;
+    private final GattLayoutCache mGattLayoutCache;
+    private final DoorStatusCache mStatusCache;
+    private final DeviceInfoCache mDeviceInfoCache;
+    private final LockMetrics mMetrics;
+    private final int mMaxSessions;
+
+    // Sessions by address, least recently used first
+    private final LinkedHashMap<String, LockSession> mSessions =
+            new LinkedHashMap<String, LockSession>();
+
+    LockSessionManager(Context context, Handler handler, LockSession.Listener listener,
+                       GattLayoutCache gattLayoutCache, DoorStatusCache statusCache,
+                       DeviceInfoCache deviceInfoCache, LockMetrics metrics, int maxSessions) {
+        mContext = context;
+        mHandler = handler;
+        mListener = listener;
+        mGattLayoutCache = gattLayoutCache;
+        mStatusCache = statusCache;
+        mDeviceInfoCache = deviceInfoCache;
+        mMetrics = metrics;
+        mMaxSessions = maxSessions;
+    }
+
+    /**
+     * Returns the session for a lock, without counting it as a use.
+     */
+    public LockSession peek(String address) {
+        checkOnLoop();
+        return mSessions.get(address);
+    }
+
+    /**
+     * Returns the session for a lock, creating it if needed, and marks it as the most
+     * recently used.  If we're at the cap, the least recently used idle session is closed.
+     *
+     * @return The session, or null if every existing session is busy.
+     */
+    public LockSession obtain(String address) {
+        checkOnLoop();
+        final LockSession existing = mSessions.remove(address);
+        if (existing != null) {
+            mSessions.put(address, existing);
+            return existing;
+        }
+        final LockSession evicted =
+                (mSessions.size() >= mMaxSessions) ? removeEvictionCandidate() : null;
+        if (mSessions.size() >= mMaxSessions) {
+            Log.w(TAG, "All sessions busy, not opening one for " + address);
+            return null;
+        }
+        final LockSession session = new LockSession(mContext, mHandler, address, mListener,
+                mGattLayoutCache, mStatusCache, mDeviceInfoCache, mMetrics);
+        mSessions.put(address, session);
+        if (evicted != null) {
+            Log.i(TAG, "Evicting session for " + evicted.getAddress());
+            evicted.close();
+        }
+        return session;
+    }
+
+    /**
+     * Returns whether a session for the lock could be opened without closing another one.
+     */
+    public boolean hasRoomFor(String address) {
+        checkOnLoop();
+        return mSessions.containsKey(address) || mSessions.size() < mMaxSessions;
+    }
+
+    /**
+     * Closes and forgets the session for a lock, if there is one.
+     */
+    public void remove(String address) {
+        checkOnLoop();
+        final LockSession session = mSessions.remove(address);
+        if (session != null) {
+            session.close();
+        }
+    }
+
+    public void closeAll() {
+        checkOnLoop();
+        final List<LockSession> sessions = new ArrayList<LockSession>(mSessions.values());
+        mSessions.clear();
+        for (LockSession session : sessions) {
+            session.close();
+        }
+    }
+
+    /**
+     * Returns a copy of the current sessions, least recently used first, so the caller may
+     * close some as it goes.
+     */
+    public List<LockSession> getSessions() {
+        checkOnLoop();
+        return new ArrayList<LockSession>(mSessions.values());
+    }
+
+    private void checkOnLoop() {
+        if (Looper.myLooper() != mHandler.getLooper()) {
+            throw new IllegalStateException("LockSessionManager used off the event loop");
+        }
+    }
+
+    private LockSession removeEvictionCandidate() {
+        final Iterator<LockSession> iterator = mSessions.values().iterator();
+        while (iterator.hasNext()) {
+            final LockSession session = iterator.next();
+            if (!session.isBusy()) {
+                iterator.remove();
+                return session;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,136 @@
+package net.jpuderer.android.bluedoor;
+
+import android.content.Context;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Remembers, on disk, the last door state of the default lock, so a cold start can show
+ * it in the very first frame, before the service is even running.
+ *
+ * What's remembered is only ever shown as stale; the service replaces it with the real
+ * state once it's bound.  An unknown state doesn't replace a known one for the same lock,
+ * since that's all a freshly started service has to say until it hears from the lock.
+ * Changing the default lock does replace it, so we never show one lock's state as
+ * another's.
+ *
+ * The file is a handful of bytes, cheap enough to read on the main thread during startup.
+ * It's only written when the state changes, to a temporary file renamed over the old one.
+ * Not Android specific, so it can be tested on the JVM.  Thread safe.
+ */
+class LockStateCache {
+    static final int VERSION = 1;
+
+    /**
+     * The remembered state.  Immutable.
+     */
+    static final class State {
+        // Address of the lock, or null if none was configured
+        final String mAddress;
+        final int mDoorState;
+        // When the state was recorded (ms since the epoch)
+        final long mTime;
+
+        State(String address, int doorState, long time) {
+            mAddress = address;
+            mDoorState = doorState;
+            mTime = time;
+        }
+    }
+
+    private static LockStateCache sInstance;
+
+    private final File mFile;
+    private State mState;
+
+    public static synchronized LockStateCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new LockStateCache(new File(context.getApplicationContext()
+                    .getFilesDir(), "lock_state"));
+        }
+        return sInstance;
+    }
+
+    LockStateCache(File file) {
+        mFile = file;
+        try {
+            mState = load();
+        } catch (IOException e) {
+            // Unreadable; we'll just show nothing until the service says otherwise
+            mState = null;
+        }
+    }
+
+    /**
+     * Returns the remembered state, or null if there isn't one.
+     */
+    public synchronized State get() {
+        return mState;
+    }
+
+    /**
+     * Records the state of the default lock, writing it out if it changed.
+     */
+    public synchronized void put(String address, int doorState, long now) {
+        final State old = mState;
+        final boolean sameLock = old != null && (address == null ? old.mAddress == null
+                : address.equals(old.mAddress));
+        if (sameLock && (doorState == old.mDoorState
+                || doorState == DoorlockService.DOOR_STATE_UNKNOWN)) {
+            return;
+        }
+        mState = new State(address, doorState, now);
+        save();
+    }
+
+    private State load() throws IOException {
+        final DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        } catch (FileNotFoundException e) {
+            return null;
+        }
+        try {
+            if (in.readInt() != VERSION) {
+                return null;
+            }
+            final String address = in.readBoolean() ? in.readUTF() : null;
+            final int doorState = in.readInt();
+            final long time = in.readLong();
+            return new State(address, doorState, time);
+        } finally {
+            in.close();
+        }
+    }
+
+    private void save() {
+        final File temp = new File(mFile.getPath() + ".tmp");
+        try {
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(temp)));
+            try {
+                out.writeInt(VERSION);
+                out.writeBoolean(mState.mAddress != null);
+                if (mState.mAddress != null) out.writeUTF(mState.mAddress);
+                out.writeInt(mState.mDoorState);
+                out.writeLong(mState.mTime);
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(mFile)) {
+                temp.delete();
+            }
+        } catch (IOException e) {
+            // What's in memory is still good; the next cold start just shows less
+            temp.delete();
+        }
+    }
+}
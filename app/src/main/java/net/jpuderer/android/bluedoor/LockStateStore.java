@@ -0,0 +1,123 @@
+package net.jpuderer.android.bluedoor;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Holds the state of the default lock, and tells interested listeners when it changes.
+ *
+ * Updates can come from any thread.  They are delivered on the main thread, and conflated:
+ * if several updates arrive before listeners get to run, listeners only see the latest
+ * one.  New listeners get the current state straight away when they register.
+ *
+ * The state is published as an immutable {@link Snapshot}, so reading it never waits: a
+ * burst of updates from the event loop never holds up the UI, or the other way around.
+ */
+class LockStateStore {
+    /**
+     * An immutable view of the lock state at one point in time.
+     */
+    static final class Snapshot {
+        // Address of the lock, or null if none is configured
+        final String mAddress;
+        final int mConnectionState;
+        final int mDoorState;
+        // Whether the door state is an old one, remembered from before we lost touch
+        final boolean mDoorStateStale;
+
+        Snapshot(String address, int connectionState, int doorState, boolean doorStateStale) {
+            mAddress = address;
+            mConnectionState = connectionState;
+            mDoorState = doorState;
+            mDoorStateStale = doorStateStale;
+        }
+
+        boolean sameAs(Snapshot other) {
+            return other != null
+                    && mConnectionState == other.mConnectionState
+                    && mDoorState == other.mDoorState
+                    && mDoorStateStale == other.mDoorStateStale
+                    && (mAddress == null ? other.mAddress == null
+                            : mAddress.equals(other.mAddress));
+        }
+    }
+
+    /**
+     * Notified on the main thread when the lock state changes.
+     */
+    interface Listener {
+        void onLockStateChanged(Snapshot snapshot);
+    }
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+    private final ArrayList<Listener> mListeners = new ArrayList<Listener>();
+
+    // Latest state, and the state listeners last heard about.  Only the former is touched
+    // off the main thread.
+    private volatile Snapshot mSnapshot = new Snapshot(null, DoorlockService.STATE_DISCONNECTED,
+            DoorlockService.DOOR_STATE_UNKNOWN, false);
+    private Snapshot mDelivered = mSnapshot;
+    private final AtomicBoolean mDispatchPending = new AtomicBoolean();
+
+    private final Runnable mDispatchRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // Clear the flag before reading, so an update that lands in between either is
+            // read here, or posts another dispatch
+            mDispatchPending.set(false);
+            final Snapshot snapshot = mSnapshot;
+            if (snapshot.sameAs(mDelivered)) {
+                // Changed and changed back before anyone looked
+                return;
+            }
+            mDelivered = snapshot;
+            // Copy, so listeners may unregister themselves
+            final Listener[] listeners = mListeners.toArray(new Listener[mListeners.size()]);
+            for (Listener listener : listeners) {
+                listener.onLockStateChanged(snapshot);
+            }
+        }
+    };
+
+    /**
+     * Returns the latest state.  Safe to call from any thread.
+     */
+    public Snapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * Sets the current state.  Should only be called from one thread at a time; in the
+     * service, that's the event loop.
+     */
+    public void update(String address, int connectionState, int doorState,
+                       boolean doorStateStale) {
+        final Snapshot snapshot = new Snapshot(address, connectionState, doorState,
+                doorStateStale);
+        if (snapshot.sameAs(mSnapshot)) return;
+        mSnapshot = snapshot;
+        if (mDispatchPending.compareAndSet(false, true)) {
+            mHandler.post(mDispatchRunnable);
+        }
+    }
+
+    /**
+     * Registers a listener, and calls it with the current state before returning.  Must be
+     * called on the main thread.
+     */
+    public void registerListener(Listener listener) {
+        if (mListeners.contains(listener)) return;
+        mListeners.add(listener);
+        listener.onLockStateChanged(getSnapshot());
+    }
+
+    /**
+     * Must be called on the main thread.
+     */
+    public void unregisterListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+}
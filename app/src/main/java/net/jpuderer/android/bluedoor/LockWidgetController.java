@@ -0,0 +1,109 @@
+package net.jpuderer.android.bluedoor;
+
+import android.app.PendingIntent;
+import android.appwidget.AppWidgetManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.widget.RemoteViews;
+
+/**
+ * Keeps the home screen widgets showing the state of the default lock.
+ *
+ * Like {@link LockNotificationController}, the lock and unlock PendingIntents are made
+ * once, and the widgets are only touched when what they show actually changes.  Changes
+ * are sent as partial updates carrying just the views that changed; the widget host
+ * merges them into the full layout it already has.  The buttons start the service
+ * directly, so a tap goes straight into the command path.
+ */
+class LockWidgetController {
+    // Request codes keep the PendingIntents for each action distinct
+    private static final int REQUEST_LOCK = 3;
+    private static final int REQUEST_UNLOCK = 4;
+
+    private final Context mContext;
+    private final AppWidgetManager mAppWidgetManager;
+    private final ComponentName mProvider;
+    private final PendingIntent mLockIntent;
+    private final PendingIntent mUnlockIntent;
+
+    // What the widgets show
+    private String mStatus = "--";
+    private int mIcon = R.drawable.ic_door_locked;
+
+    LockWidgetController(Context context) {
+        mContext = context;
+        mAppWidgetManager = AppWidgetManager.getInstance(context);
+        mProvider = new ComponentName(context, LockWidgetProvider.class);
+        mLockIntent = getServiceIntent(context, DoorlockService.ACTION_LOCK, REQUEST_LOCK);
+        mUnlockIntent = getServiceIntent(context, DoorlockService.ACTION_UNLOCK,
+                REQUEST_UNLOCK);
+    }
+
+    private static PendingIntent getServiceIntent(Context context, String action,
+                                                  int requestCode) {
+        final Intent intent = new Intent(context, DoorlockService.class);
+        intent.setAction(action);
+        return PendingIntent.getService(context, requestCode, intent,
+                PendingIntent.FLAG_UPDATE_CURRENT);
+    }
+
+    /**
+     * Shows the given state.  Does nothing if that's what is already shown.
+     */
+    public synchronized void update(int connectionState, int doorState, boolean stale) {
+        final String status = describe(connectionState, doorState, stale);
+        final int icon = (doorState == DoorlockService.DOOR_STATE_UNLOCKED) ?
+                R.drawable.ic_door_unlocked : R.drawable.ic_door_locked;
+        if (status.equals(mStatus) && icon == mIcon) {
+            return;
+        }
+        final RemoteViews views = new RemoteViews(mContext.getPackageName(),
+                R.layout.lock_widget);
+        if (!status.equals(mStatus)) {
+            views.setTextViewText(R.id.widget_status, status);
+        }
+        if (icon != mIcon) {
+            views.setImageViewResource(R.id.widget_icon, icon);
+        }
+        mStatus = status;
+        mIcon = icon;
+        final int[] ids = mAppWidgetManager.getAppWidgetIds(mProvider);
+        if (ids != null && ids.length > 0) {
+            mAppWidgetManager.partiallyUpdateAppWidget(ids, views);
+        }
+    }
+
+    /**
+     * Lays out the given widgets from scratch, with the state last shown.
+     */
+    public synchronized void refresh(int[] ids) {
+        if (ids == null) {
+            ids = mAppWidgetManager.getAppWidgetIds(mProvider);
+        }
+        if (ids == null || ids.length == 0) {
+            return;
+        }
+        final RemoteViews views = new RemoteViews(mContext.getPackageName(),
+                R.layout.lock_widget);
+        views.setTextViewText(R.id.widget_status, mStatus);
+        views.setImageViewResource(R.id.widget_icon, mIcon);
+        views.setOnClickPendingIntent(R.id.widget_lock, mLockIntent);
+        views.setOnClickPendingIntent(R.id.widget_unlock, mUnlockIntent);
+        mAppWidgetManager.updateAppWidget(ids, views);
+    }
+
+    private static String describe(int connectionState, int doorState, boolean stale) {
+        final String status;
+        if (doorState == DoorlockService.DOOR_STATE_LOCKED) {
+            status = "Locked";
+        } else if (doorState == DoorlockService.DOOR_STATE_UNLOCKED) {
+            status = "Unlocked";
+        } else if (connectionState == DoorlockService.STATE_CONNECTING) {
+            return "Connecting";
+        } else {
+            return "--";
+        }
+        return stale ? status + " (stale)" : status;
+    }
+}
@@ -0,0 +1,25 @@
+package net.jpuderer.android.bluedoor;
+
+import android.appwidget.AppWidgetManager;
+import android.appwidget.AppWidgetProvider;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Home screen widget for locking and unlocking the default lock.
+ *
+ * The service keeps the widgets up to date (see {@link LockWidgetController}); all we do
+ * here is lay out new widgets, and make sure the service is running to fill them in.
+ */
+public class LockWidgetProvider extends AppWidgetProvider {
+    @Override
+    public void onUpdate(Context context, AppWidgetManager appWidgetManager,
+                         int[] appWidgetIds) {
+        // Buttons first, so the widget works before the service has said anything
+        new LockWidgetController(context).refresh(appWidgetIds);
+
+        final Intent intent = new Intent(context, DoorlockService.class);
+        intent.setAction(DoorlockService.ACTION_REFRESH_WIDGETS);
+        context.startService(intent);
+    }
+}
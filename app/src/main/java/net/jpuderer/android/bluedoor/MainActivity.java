@@ -7,18 +7,16 @@ import android.app.FragmentTransaction;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.ServiceConnection;
-import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.ParcelUuid;
-import android.support.v4.content.LocalBroadcastManager;
+import android.os.Trace;
 import android.view.View;
 import android.support.design.widget.NavigationView;
 import android.support.v4.view.GravityCompat;
@@ -29,11 +27,16 @@ import android.support.v7.widget.Toolbar;
 import android.view.MenuItem;
 import android.widget.Toast;
 
+import java.util.Collections;
+import java.util.List;
+
 public class MainActivity extends AppCompatActivity
         implements NavigationView.OnNavigationItemSelectedListener,
         DoorControlFragment.DoorControlFragmentListener,
         KeypadFragment.KeypadFragmentListener,
-        DeviceFragment.DeviceFragmentListener {
+        DeviceFragment.DeviceFragmentListener,
+        DiagnosticsFragment.DiagnosticsFragmentListener,
+        HistoryFragment.HistoryFragmentListener {
     private static final String TAG = "MainActivity";
     
     private static final int REQUEST_ENABLE_BT = 1;
@@ -42,102 +45,178 @@ public class MainActivity extends AppCompatActivity
     private static final String TAG_FRAGMENT_KEYPAD = "keypad";
     private static final String TAG_FRAGMENT_DEVICE = "device";
     private static final String TAG_FRAGMENT_PREFERENCES = "preferences";
+    private static final String TAG_FRAGMENT_DIAGNOSTICS = "diagnostics";
+    private static final String TAG_FRAGMENT_HISTORY = "history";
 
     private BluetoothAdapter mBluetoothAdapter;
     private DoorlockService mBluetoothLeService;
+    private DoorlockService.LocalBinder mServiceBinder;
+    // The fragment currently shown in the content area
+    private Fragment mCurrentFragment;
 
     private int mConnectionState = DoorlockService.STATE_DISCONNECTED;
     private int mDoorState = DoorlockService.DOOR_STATE_UNKNOWN;
+    private boolean mDoorStateStale;
+    private boolean mResumed;
+    // Whether the service has been bound yet; that waits for the first frame
+    private boolean mBound;
+    // The lock whose cached state is shown, until the service has its live state
+    private String mCachedAddress;
+    // Whether we've had the live state from the service yet
+    private boolean mFullyDrawn;
 
     // Code to manage Service lifecycle.
     private final ServiceConnection mServiceConnection = new ServiceConnection() {
 
         @Override
         public void onServiceConnected(ComponentName componentName, IBinder service) {
-            mBluetoothLeService = ((DoorlockService.LocalBinder) service).getService();
-            mBluetoothLeService.broadcastConnectionUpdate();
-            mBluetoothLeService.broadcastDoorUpdate();
+            mServiceBinder = (DoorlockService.LocalBinder) service;
+            mBluetoothLeService = mServiceBinder.getService();
+            mBluetoothLeService.setAppForeground(mResumed);
+            // Delivers the current state straight away
+            mServiceBinder.registerStateListener(mStateListener);
+            if (mCurrentFragment instanceof KeypadFragment) {
+                // The keypad asked before we were bound
+                mBluetoothLeService.warmUp();
+            }
         }
 
         @Override
         public void onServiceDisconnected(ComponentName componentName) {
             mBluetoothLeService = null;
+            mServiceBinder = null;
         }
     };
 
-    // Handles various events fired by the Service.
-    private final BroadcastReceiver mGattUpdateReceiver = new BroadcastReceiver() {
+    // Handles changes to the lock state published by the Service.
+    private final LockStateStore.Listener mStateListener = new LockStateStore.Listener() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            final String action = intent.getAction();
-            if (DoorlockService.ACTION_CONNECTION_STATE_CHANGED.equals(action)) {
-                mConnectionState =
-                        intent.getIntExtra(DoorlockService.EXTRA_CONNECTION_STATE, 0);
-            } else if (DoorlockService.ACTION_DOOR_STATE_CHANGED.equals(action)) {
-                mDoorState =
-                        intent.getIntExtra(DoorlockService.EXTRA_DOOR_STATE, 0);
+        public void onLockStateChanged(LockStateStore.Snapshot snapshot) {
+            mConnectionState = snapshot.mConnectionState;
+            final boolean live = snapshot.mAddress == null
+                    || (snapshot.mDoorState != DoorlockService.DOOR_STATE_UNKNOWN
+                            && !snapshot.mDoorStateStale);
+            // Until the lock we're showing a cached state for says something new, the
+            // service has nothing better than what's on screen.
+            if (live || !snapshot.mAddress.equals(mCachedAddress)) {
+                mDoorState = snapshot.mDoorState;
+                mDoorStateStale = snapshot.mDoorStateStale;
+                mCachedAddress = null;
             }
             onUpdateView();
+            if (live && !mFullyDrawn) {
+                // Startup ends when the live state is on screen
+                mFullyDrawn = true;
+                reportFullyDrawn();
+            }
         }
     };
 
-    @Override
-    protected void onCreate(Bundle savedInstanceState) {
-        super.onCreate(savedInstanceState);
-
-        // Use this check to determine whether BLE is supported on the device.  Then you can
-        // selectively disable BLE-related features.
-        if (!getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE)) {
-            Toast.makeText(this, R.string.ble_not_supported, Toast.LENGTH_SHORT).show();
-            finish();
+    // Reads what the rest of the app reads from storage on first use, so it's ready by
+    // the time the service or the device picker want it, rather than being read on the
+    // main thread.
+    private final Runnable mWarmUpRunnable = new Runnable() {
+        @Override
+        public void run() {
+            ConfigStore.getInstance(MainActivity.this);
+            DeviceInfoCache.getInstance(MainActivity.this);
         }
+    };
 
-        // Initializes a Bluetooth adapter.  For API level 18 and above, get a reference to
-        // BluetoothAdapter through BluetoothManager.
-        final BluetoothManager bluetoothManager =
-                (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
-        mBluetoothAdapter = bluetoothManager.getAdapter();
-
-        // Checks if Bluetooth is supported on the device.
-        if (mBluetoothAdapter == null) {
-            Toast.makeText(this, R.string.error_bluetooth_not_supported, Toast.LENGTH_SHORT).show();
-            finish();
-            return;
+    // Starting the service creates it on the main thread, so it waits until the first
+    // frame is up.
+    private final Runnable mBindServiceRunnable = new Runnable() {
+        @Override
+        public void run() {
+            Trace.beginSection("MainActivity.bindService");
+            final Intent gattServiceIntent = new Intent(MainActivity.this, DoorlockService.class);
+            startService(gattServiceIntent);
+            mBound = bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
+            Trace.endSection();
         }
+    };
 
-        setContentView(R.layout.activity_main);
-        Toolbar toolbar = (Toolbar) findViewById(R.id.toolbar);
-        setSupportActionBar(toolbar);
-
-        DrawerLayout drawer = (DrawerLayout) findViewById(R.id.drawer_layout);
-        ActionBarDrawerToggle toggle = new ActionBarDrawerToggle(
-                this, drawer, toolbar, R.string.navigation_drawer_open, R.string.navigation_drawer_close);
-        drawer.setDrawerListener(toggle);
-        toggle.syncState();
-
-        View refreshButton = findViewById(R.id.refresh_button);
-        refreshButton.setOnClickListener(new View.OnClickListener() {
-            @Override
-            public void onClick(View v) { onRefreshClicked(v); }
-        });
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        Trace.beginSection("MainActivity.onCreate");
+        try {
+            super.onCreate(savedInstanceState);
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(mWarmUpRunnable);
+
+            // Use this check to determine whether BLE is supported on the device.  Then you
+            // can selectively disable BLE-related features.
+            if (!getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE)) {
+                Toast.makeText(this, R.string.ble_not_supported, Toast.LENGTH_SHORT).show();
+                finish();
+            }
 
-        NavigationView mNavigationView = (NavigationView) findViewById(R.id.nav_view);
-        mNavigationView.setNavigationItemSelectedListener(this);
+            // Initializes a Bluetooth adapter.  For API level 18 and above, get a reference
+            // to BluetoothAdapter through BluetoothManager.
+            final BluetoothManager bluetoothManager =
+                    (BluetoothManager) getSystemService(Context.BLUETOOTH_SERVICE);
+            mBluetoothAdapter = bluetoothManager.getAdapter();
+
+            // Checks if Bluetooth is supported on the device.
+            if (mBluetoothAdapter == null) {
+                Toast.makeText(this, R.string.error_bluetooth_not_supported,
+                        Toast.LENGTH_SHORT).show();
+                finish();
+                return;
+            }
 
-        registerServiceReceiver();
+            Trace.beginSection("MainActivity.inflate");
+            setContentView(R.layout.activity_main);
+            Toolbar toolbar = (Toolbar) findViewById(R.id.toolbar);
+            setSupportActionBar(toolbar);
+
+            DrawerLayout drawer = (DrawerLayout) findViewById(R.id.drawer_layout);
+            ActionBarDrawerToggle toggle = new ActionBarDrawerToggle(
+                    this, drawer, toolbar, R.string.navigation_drawer_open,
+                    R.string.navigation_drawer_close);
+            drawer.setDrawerListener(toggle);
+            toggle.syncState();
+
+            View refreshButton = findViewById(R.id.refresh_button);
+            refreshButton.setOnClickListener(new View.OnClickListener() {
+                @Override
+                public void onClick(View v) { onRefreshClicked(v); }
+            });
+
+            NavigationView mNavigationView = (NavigationView) findViewById(R.id.nav_view);
+            mNavigationView.setNavigationItemSelectedListener(this);
+            Trace.endSection();
+
+            // Show the last state we knew of until the service tells us the real one
+            Trace.beginSection("MainActivity.restoreLockState");
+            final LockStateCache.State state = LockStateCache.getInstance(this).get();
+            if (state != null && state.mDoorState != DoorlockService.DOOR_STATE_UNKNOWN) {
+                mDoorState = state.mDoorState;
+                mDoorStateStale = true;
+                mCachedAddress = state.mAddress;
+            }
+            Trace.endSection();
 
-        Intent gattServiceIntent = new Intent(this, DoorlockService.class);
-        startService(gattServiceIntent);
-        bindService(gattServiceIntent, mServiceConnection, BIND_AUTO_CREATE);
+            // Posted to the view before it's attached, so it runs once the first frame has
+            // been drawn.
+            getWindow().getDecorView().post(mBindServiceRunnable);
 
-        if (savedInstanceState == null) {
-            onNavigationItemSelected(mNavigationView.getMenu().getItem(0));
+            if (savedInstanceState == null) {
+                onNavigationItemSelected(mNavigationView.getMenu().getItem(0));
+            } else {
+                mCurrentFragment = getFragmentManager().findFragmentById(R.id.content_main);
+            }
+        } finally {
+            Trace.endSection();
         }
     }
 
     @Override
     protected void onResume() {
         super.onResume();
+        mResumed = true;
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.setAppForeground(true);
+        }
         // Ensures Bluetooth is enabled on the device.  If Bluetooth is not currently enabled,
         // fire an intent to display a dialog asking the user to grant permission to enable it.
         if (!mBluetoothAdapter.isEnabled()) {
@@ -146,6 +225,14 @@ public class MainActivity extends AppCompatActivity
         }
     }
 
+    @Override
+    protected void onPause() {
+        mResumed = false;
+        if (mBluetoothLeService != null) {
+            mBluetoothLeService.setAppForeground(false);
+        }
+        super.onPause();
+    }
 
     @Override
     protected void onActivityResult(int requestCode, int resultCode, Intent data) {
@@ -179,27 +266,46 @@ public class MainActivity extends AppCompatActivity
             FragmentTransaction ft = fragmentManager.beginTransaction();
             ft.replace(R.id.content_main, fragment, TAG_FRAGMENT_DOOR_CONTROL);
             ft.commit();
+            mCurrentFragment = fragment;
         } else if (id == R.id.nav_keypad) {
             setTitle(R.string.nav_label_keypad);
             Fragment fragment = KeypadFragment.newInstance();
             FragmentTransaction ft = fragmentManager.beginTransaction();
             ft.replace(R.id.content_main, fragment, TAG_FRAGMENT_KEYPAD);
             ft.commit();
+            mCurrentFragment = fragment;
         } else if (id == R.id.nav_device) {
             setTitle(R.string.nav_label_bt_device);
+            final LockConfig config = ConfigStore.getInstance(this).get();
             Fragment fragment = DeviceFragment.newInstance(
-                    getDefaultDeviceAddress(),
-                    getDefaultDeviceName(),
+                    config.mDefaultAddress,
+                    config.mDefaultName,
                     new ParcelUuid(DoorlockService.BLUNO_SERVICE_UUID));
             FragmentTransaction ft = fragmentManager.beginTransaction();
             ft.replace(R.id.content_main, fragment, TAG_FRAGMENT_DEVICE);
             ft.commit();
+            mCurrentFragment = fragment;
         } else if (id == R.id.nav_preferences) {
             setTitle(R.string.nav_label_preferences);
             Fragment fragment = LockPreferenceFragment.newInstance();
             FragmentTransaction ft = fragmentManager.beginTransaction();
             ft.replace(R.id.content_main, fragment, TAG_FRAGMENT_PREFERENCES);
             ft.commit();
+            mCurrentFragment = fragment;
+        } else if (id == R.id.nav_history) {
+            setTitle(R.string.nav_label_history);
+            Fragment fragment = HistoryFragment.newInstance();
+            FragmentTransaction ft = fragmentManager.beginTransaction();
+            ft.replace(R.id.content_main, fragment, TAG_FRAGMENT_HISTORY);
+            ft.commit();
+            mCurrentFragment = fragment;
+        } else if (id == R.id.nav_diagnostics) {
+            setTitle(R.string.nav_label_diagnostics);
+            Fragment fragment = DiagnosticsFragment.newInstance();
+            FragmentTransaction ft = fragmentManager.beginTransaction();
+            ft.replace(R.id.content_main, fragment, TAG_FRAGMENT_DIAGNOSTICS);
+            ft.commit();
+            mCurrentFragment = fragment;
         }
 
         item.setChecked(true);
@@ -233,8 +339,19 @@ public class MainActivity extends AppCompatActivity
 
     @Override
     public void onDeviceSelected(BluetoothDevice device) {
-        setDefaultDeviceAddress(device.getAddress());
-        setDefaultDeviceName(device.getName());
+        ConfigStore.getInstance(this).setDefaultDevice(device.getAddress(), device.getName());
+    }
+
+    @Override
+    public void onKeepConnectedChanged(BluetoothDevice device, boolean keepConnected) {
+        if (mBluetoothLeService == null) {
+            // The service picks the change up when it starts
+            ConfigStore.getInstance(this).setExtraAddress(device.getAddress(), keepConnected);
+        } else if (keepConnected) {
+            mBluetoothLeService.addLock(device.getAddress());
+        } else {
+            mBluetoothLeService.removeLock(device.getAddress());
+        }
     }
 
     @Override
@@ -248,38 +365,98 @@ public class MainActivity extends AppCompatActivity
         }
     }
 
+    @Override
+    public LockMetrics getLockMetrics() {
+        if (mBluetoothLeService == null)
+            return null;
+        return mBluetoothLeService.getMetrics();
+    }
+
+    @Override
+    public String getScanDescription() {
+        if (mBluetoothLeService == null)
+            return null;
+        return mBluetoothLeService.getScanDescription();
+    }
+
+    @Override
+    public String getConnectionDescription() {
+        if (mBluetoothLeService == null)
+            return null;
+        return mBluetoothLeService.getConnectionDescription();
+    }
+
+    @Override
+    public List<DoorEventJournal.Event> queryDoorEvents(long fromMillis, long toMillis,
+                                                       int maxResults) {
+        // Called from a background thread, so don't look at the field twice
+        final DoorlockService service = mBluetoothLeService;
+        if (service == null)
+            return Collections.emptyList();
+        return service.queryDoorEvents(fromMillis, toMillis, maxResults);
+    }
+
     @Override
     public void onUpdateView() {
-        DoorControlFragment doorControl = (DoorControlFragment)
-                getFragmentManager().findFragmentByTag(TAG_FRAGMENT_DOOR_CONTROL);
-        if (doorControl != null) {
-            doorControl.updateState(mConnectionState, mDoorState);
-        }
-        KeypadFragment keypad = (KeypadFragment)
-                getFragmentManager().findFragmentByTag(TAG_FRAGMENT_KEYPAD);
-        if (keypad != null) {
-            keypad.updateState(mConnectionState, mDoorState);
+        // Only the fragment on screen needs to hear about it; the others pick up the
+        // current state when they're shown.
+        if (mCurrentFragment == null || mCurrentFragment.getView() == null) {
+            return;
         }
-        DeviceFragment deviceUI = (DeviceFragment)
-                getFragmentManager().findFragmentByTag(TAG_FRAGMENT_DEVICE);
-        if (deviceUI != null) {
-            deviceUI.updateState(mConnectionState, mDoorState);
+        if (mCurrentFragment instanceof DoorControlFragment) {
+            ((DoorControlFragment) mCurrentFragment).updateState(mConnectionState, mDoorState,
+                    mDoorStateStale);
+        } else if (mCurrentFragment instanceof KeypadFragment) {
+            ((KeypadFragment) mCurrentFragment).updateState(mConnectionState, mDoorState,
+                    mDoorStateStale);
+        } else if (mCurrentFragment instanceof DeviceFragment) {
+            ((DeviceFragment) mCurrentFragment).updateState(mConnectionState, mDoorState);
+        } else if (mCurrentFragment instanceof HistoryFragment) {
+            // The door may have just locked or unlocked
+            ((HistoryFragment) mCurrentFragment).refresh();
         }
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        unbindService(mServiceConnection);
+        if (mServiceBinder != null) {
+            mServiceBinder.unregisterStateListener(mStateListener);
+            mServiceBinder = null;
+        }
+        if (mBound) {
+            unbindService(mServiceConnection);
+            mBound = false;
+        } else {
+            // Gone before the first frame
+            getWindow().getDecorView().removeCallbacks(mBindServiceRunnable);
+        }
         mBluetoothLeService = null;
-        LocalBroadcastManager.getInstance(this).unregisterReceiver(mGattUpdateReceiver);
     }
 
     @Override
-    public void onSendCommand(byte b) {
+    public void onKeypadEntry(String digits) {
         if (mBluetoothLeService == null)
             return;
-        mBluetoothLeService.sendSerial(b);
+        mBluetoothLeService.enterKeys(digits, new SerialTransmitter.Listener() {
+            @Override
+            public void onProgress(int bytesSent, int totalBytes) { }
+
+            @Override
+            public void onComplete(boolean success) {
+                if (!success) {
+                    Toast.makeText(MainActivity.this, R.string.keypad_entry_failed,
+                            Toast.LENGTH_SHORT).show();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void onWarmConnection() {
+        if (mBluetoothLeService == null)
+            return;
+        mBluetoothLeService.warmUp();
     }
 
     public void onRefreshClicked(View view) {
@@ -289,36 +466,4 @@ public class MainActivity extends AppCompatActivity
             deviceFragment.scanLeDevice(true);
         }
     }
-
-    private String getDefaultDeviceAddress() {
-        SharedPreferences prefs = getSharedPreferences(
-                getPackageName(), Context.MODE_PRIVATE);
-        return prefs.getString(DoorlockService.PREF_DEFAULT_DEVICE_ADDRESS, null);
-    }
-
-    private String getDefaultDeviceName() {
-        SharedPreferences prefs = getSharedPreferences(
-                getPackageName(), Context.MODE_PRIVATE);
-        return prefs.getString(DoorlockService.PREF_DEFAULT_DEVICE_NAME, null);
-    }
-
-    private void setDefaultDeviceAddress(String address) {
-        SharedPreferences prefs = getSharedPreferences(
-                getPackageName(), Context.MODE_PRIVATE);
-        prefs.edit().putString(DoorlockService.PREF_DEFAULT_DEVICE_ADDRESS, address).apply();
-    }
-
-    private void setDefaultDeviceName(String name) {
-        SharedPreferences prefs = getSharedPreferences(
-                getPackageName(), Context.MODE_PRIVATE);
-        prefs.edit().putString(DoorlockService.PREF_DEFAULT_DEVICE_NAME, name).apply();
-    }
-
-    private void registerServiceReceiver() {
-        final IntentFilter intentFilter = new IntentFilter();
-        intentFilter.addAction(DoorlockService.ACTION_CONNECTION_STATE_CHANGED);
-        intentFilter.addAction(DoorlockService.ACTION_DOOR_STATE_CHANGED);
-        LocalBroadcastManager.getInstance(this).registerReceiver(
-                mGattUpdateReceiver, intentFilter);
-    }
 }
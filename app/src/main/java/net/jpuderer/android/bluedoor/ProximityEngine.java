@@ -0,0 +1,149 @@
+package net.jpuderer.android.bluedoor;
+
+import java.util.HashMap;
+import java.util.Locale;
+
+/**
+ * Decides from signal strength when to connect to a lock ahead of time, and when to let
+ * the connection go again.
+ *
+ * RSSI readings are noisy: a body in the way or a turn of the phone is easily worth 10dB.
+ * Each lock's readings are smoothed twice, with a fast and a slow exponential average, and
+ * the gap between the two is the trend: positive while the signal is getting stronger,
+ * which is what walking towards the door looks like.  A single reading far from the rest
+ * is limited in how far it can pull the averages.  Readings come from scan results
+ * while we're disconnected, and from reading the RSSI of the link while connected, and
+ * may arrive at any rate; the averages account for the time between them.
+ *
+ * We connect when the lock is close, or when it's in range and we're clearly getting
+ * closer, so that the link is up and primed by the time we reach the door.  We disconnect
+ * when the signal is weak and still falling.  The disconnect threshold is well below the
+ * connect one, and the gap between the two keeps us from flapping when standing still at
+ * the edge of range.  Times are
+ * {@code SystemClock.elapsedRealtime()} values passed in by the caller.  Not thread safe.
+ */
+class ProximityEngine {
+    static final int ACTION_NONE = 0;
+    static final int ACTION_CONNECT = 1;
+    static final int ACTION_DISCONNECT = 2;
+
+    // Time constants of the two averages
+    static final long FAST_TIME_CONSTANT_MS = 1500;
+    static final long SLOW_TIME_CONSTANT_MS = 6000;
+    // A gap in readings this long means whatever we knew about our movement is out of date
+    static final long STALE_MS = 20 * 1000;
+    // Readings needed before the trend means anything
+    static final int MIN_SAMPLES = 3;
+    // Furthest a single reading is taken to be from the fast average, so one lucky
+    // reflection doesn't look like a step towards the door
+    static final int MAX_STEP_DB = 8;
+
+    // Close enough to connect whichever way we're moving
+    static final int NEAR_RSSI = -70;
+    // In range; connect if we're approaching
+    static final int IN_RANGE_RSSI = -85;
+    // Weak enough to disconnect if we're moving away.  Well below IN_RANGE_RSSI, so
+    // anywhere in between we keep doing whatever we were doing.
+    static final int LEAVING_RSSI = -92;
+    // How much stronger (or weaker) the fast average must be to count as moving
+    static final double TREND_THRESHOLD_DB = 2.0;
+
+    /**
+     * Smoothed signal strength of one lock.
+     */
+    static class Tracker {
+        private double mFast;
+        private double mSlow;
+        private long mLastTime;
+        private int mSamples;
+
+        void add(int rssi, long now) {
+            if (mSamples == 0 || now - mLastTime > STALE_MS) {
+                mFast = rssi;
+                mSlow = rssi;
+                mSamples = 1;
+            } else {
+                final long dt = Math.max(0, now - mLastTime);
+                final double reading = Math.max(mFast - MAX_STEP_DB,
+                        Math.min(mFast + MAX_STEP_DB, rssi));
+                mFast += (reading - mFast) * weight(dt, FAST_TIME_CONSTANT_MS);
+                mSlow += (reading - mSlow) * weight(dt, SLOW_TIME_CONSTANT_MS);
+                mSamples++;
+            }
+            mLastTime = now;
+        }
+
+        // Weight of a new reading, dt after the previous one
+        private static double weight(long dt, long timeConstant) {
+            return 1 - Math.exp(-(double) dt / timeConstant);
+        }
+
+        /**
+         * Returns the smoothed signal strength, in dBm.
+         */
+        double getRssi() {
+            return mFast;
+        }
+
+        /**
+         * Returns how much the signal has been strengthening, in dB.  Negative while it's
+         * getting weaker, and zero until we have enough readings to tell.
+         */
+        double getTrend() {
+            return (mSamples >= MIN_SAMPLES) ? mFast - mSlow : 0;
+        }
+
+        boolean isApproaching() {
+            return getTrend() >= TREND_THRESHOLD_DB;
+        }
+
+        boolean isLeaving() {
+            return getTrend() <= -TREND_THRESHOLD_DB;
+        }
+
+        boolean isStale(long now) {
+            return mSamples == 0 || now - mLastTime > STALE_MS;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%.0f dBm, trend %+.1f dB", mFast, getTrend());
+        }
+    }
+
+    private final HashMap<String, Tracker> mTrackers = new HashMap<String, Tracker>();
+
+    /**
+     * Takes a reading of a lock's signal strength, and returns what to do about it: one of
+     * the {@code ACTION_*} values.
+     *
+     * @param connected Whether we're connected, or connecting, to the lock.
+     */
+    public int onRssi(String address, int rssi, long now, boolean connected) {
+        Tracker tracker = mTrackers.get(address);
+        if (tracker == null) {
+            tracker = new Tracker();
+            mTrackers.put(address, tracker);
+        }
+        tracker.add(rssi, now);
+
+        if (!connected) {
+            if (tracker.getRssi() >= NEAR_RSSI
+                    || (tracker.getRssi() >= IN_RANGE_RSSI && tracker.isApproaching())) {
+                return ACTION_CONNECT;
+            }
+        } else if (tracker.getRssi() <= LEAVING_RSSI && tracker.isLeaving()) {
+            return ACTION_DISCONNECT;
+        }
+        return ACTION_NONE;
+    }
+
+    /**
+     * Returns the smoothed signal strength of a lock, or null if we haven't heard from it
+     * recently.
+     */
+    public Tracker getTracker(String address, long now) {
+        final Tracker tracker = mTrackers.get(address);
+        return (tracker != null && !tracker.isStale(now)) ? tracker : null;
+    }
+}
@@ -0,0 +1,72 @@
+package net.jpuderer.android.bluedoor;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+/**
+ * Remembers what we've learned about this phone's offloaded (hardware) scan filtering.
+ *
+ * Some controllers accept a service UUID filter and then never report anything through
+ * it, so the device picker checks the filter against unfiltered scans and records the
+ * verdict here.  A filter found broken is given another chance after a while, in case it
+ * was a fluke or the firmware has been updated since.
+ *
+ * The verdict is read once, when first used, and changes are written back in the
+ * background with {@link SharedPreferences.Editor#apply()}.  Only used on the main thread.
+ * Not thread safe.
+ */
+class ScanCapabilities {
+    static final int HARDWARE_FILTER_UNKNOWN = 0;
+    static final int HARDWARE_FILTER_WORKS = 1;
+    static final int HARDWARE_FILTER_BROKEN = 2;
+
+    private static final String PREF_HARDWARE_SCAN_FILTER = "PREF_HARDWARE_SCAN_FILTER";
+    // When the verdict was reached
+    private static final String PREF_HARDWARE_SCAN_FILTER_TIME = "PREF_HARDWARE_SCAN_FILTER_TIME";
+    private static final long HARDWARE_FILTER_RETRY_MS = 7 * 24 * 60 * 60 * 1000L;
+
+    private static ScanCapabilities sInstance;
+
+    private final SharedPreferences mSharedPreferences;
+    private int mHardwareFilterState;
+    private long mHardwareFilterTime;
+
+    public static synchronized ScanCapabilities getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ScanCapabilities(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    private ScanCapabilities(Context context) {
+        mSharedPreferences = context.getSharedPreferences(context.getPackageName(),
+                Context.MODE_PRIVATE);
+        mHardwareFilterState = mSharedPreferences.getInt(PREF_HARDWARE_SCAN_FILTER,
+                HARDWARE_FILTER_UNKNOWN);
+        mHardwareFilterTime = mSharedPreferences.getLong(PREF_HARDWARE_SCAN_FILTER_TIME, 0);
+    }
+
+    /**
+     * Returns whether hardware scan filtering works, one of the {@code HARDWARE_FILTER_*}
+     * values.  A filter found broken long enough ago is unknown again.
+     *
+     * @param now The current time, in ms since the epoch.
+     */
+    public int getHardwareFilterState(long now) {
+        if (mHardwareFilterState == HARDWARE_FILTER_BROKEN
+                && now - mHardwareFilterTime > HARDWARE_FILTER_RETRY_MS) {
+            return HARDWARE_FILTER_UNKNOWN;
+        }
+        return mHardwareFilterState;
+    }
+
+    public void setHardwareFilterState(int state, long now) {
+        if (getHardwareFilterState(now) == state) return;
+        mHardwareFilterState = state;
+        mHardwareFilterTime = now;
+        mSharedPreferences.edit()
+                .putInt(PREF_HARDWARE_SCAN_FILTER, state)
+                .putLong(PREF_HARDWARE_SCAN_FILTER_TIME, now)
+                .apply();
+    }
+}
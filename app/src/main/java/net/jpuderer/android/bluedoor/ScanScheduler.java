@@ -0,0 +1,220 @@
+package net.jpuderer.android.bluedoor;
+
+import android.bluetooth.le.ScanSettings;
+
+import java.util.Locale;
+
+/**
+ * Decides how aggressively the service scans for the lock while disconnected.
+ *
+ * Scanning hard finds the lock sooner when we're walking up to the door, but wastes the
+ * radio (and battery) when we're nowhere near it.  The scheduler picks a scan mode and a
+ * duty cycle (scan for a window, then pause for the rest of the period) from a few cheap
+ * signals: whether the screen is on, whether the app is in the foreground, how recently
+ * we were connected to, or used, the lock, and whether a scan just caught sight of it.
+ *
+ * It also keeps track of how long the radio was actually scanning, so the effective duty
+ * cycle can be compared against discovery latency.  Not thread safe.
+ */
+class ScanScheduler {
+    // For this long after a disconnect we assume we're still near the door
+    static final long RECENT_DISCONNECT_MS = 2 * 60 * 1000;
+    // For this long after locking or unlocking we assume we may be coming back
+    static final long RECENT_ACTIVITY_MS = 5 * 60 * 1000;
+    // For this long after a lock comes into range we scan harder, so the proximity engine
+    // gets enough readings to tell whether we're walking towards it
+    static final long RECENT_SIGHTING_MS = 20 * 1000;
+    // Sitting within range of the lock at home shouldn't keep the radio busy, so sightings
+    // only count this long after the last one that did
+    static final long SIGHTING_COOLDOWN_MS = 5 * 60 * 1000;
+
+    // Duty cycle used when nothing suggests we're near the door
+    static final long IDLE_SCAN_WINDOW_MS = 10 * 1000;
+    static final long IDLE_SCAN_PERIOD_MS = 60 * 1000;
+
+    /**
+     * A scan configuration.  A policy whose window equals its period scans continuously.
+     */
+    static class Policy {
+        final int mScanMode;
+        final long mWindowMs;
+        final long mPeriodMs;
+        final String mReason;
+
+        Policy(int scanMode, long windowMs, long periodMs, String reason) {
+            mScanMode = scanMode;
+            mWindowMs = windowMs;
+            mPeriodMs = periodMs;
+            mReason = reason;
+        }
+
+        boolean isContinuous() {
+            return mWindowMs >= mPeriodMs;
+        }
+
+        /**
+         * Fraction of the time the radio is expected to be listening under this policy.
+         */
+        double getDutyCycle() {
+            return getModeDutyCycle(mScanMode) * mWindowMs / mPeriodMs;
+        }
+
+        boolean sameAs(Policy other) {
+            return other != null && mScanMode == other.mScanMode
+                    && mWindowMs == other.mWindowMs && mPeriodMs == other.mPeriodMs;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s, %s, %.1f%% duty (%s)",
+                    getModeName(mScanMode),
+                    isContinuous() ? "continuous" : (mWindowMs / 1000) + "s every " +
+                            (mPeriodMs / 1000) + "s",
+                    getDutyCycle() * 100, mReason);
+        }
+    }
+
+    private boolean mScreenOn = true;
+    private boolean mAppForeground;
+    private long mLastDisconnectTime;
+    private long mLastActivityTime;
+    private long mLastSightingTime;
+
+    // Accounting of the time actually spent scanning
+    private long mAccountingStart;
+    private long mScanStart;
+    private int mScanningMode;
+    private double mWeightedScanTime;
+
+    public void setScreenOn(boolean screenOn) {
+        mScreenOn = screenOn;
+    }
+
+    public void setAppForeground(boolean foreground) {
+        mAppForeground = foreground;
+    }
+
+    public void onDisconnected(long now) {
+        mLastDisconnectTime = now;
+    }
+
+    public void onLockActivity(long now) {
+        mLastActivityTime = now;
+    }
+
+    /**
+     * A lock we weren't hearing from has come into range.
+     *
+     * @return Return true if the policy changes as a result.
+     */
+    public boolean onLockSighted(long now) {
+        if (mLastSightingTime != 0 && now - mLastSightingTime < SIGHTING_COOLDOWN_MS) {
+            return false;
+        }
+        mLastSightingTime = now;
+        return true;
+    }
+
+    public Policy getPolicy(long now) {
+        final boolean recentDisconnect = mLastDisconnectTime != 0 &&
+                now - mLastDisconnectTime < RECENT_DISCONNECT_MS;
+        final boolean recentActivity = mLastActivityTime != 0 &&
+                now - mLastActivityTime < RECENT_ACTIVITY_MS;
+        final boolean recentSighting = mLastSightingTime != 0 &&
+                now - mLastSightingTime < RECENT_SIGHTING_MS;
+
+        if (mAppForeground) {
+            return new Policy(ScanSettings.SCAN_MODE_LOW_LATENCY, 1, 1, "app in foreground");
+        }
+        if (recentSighting) {
+            return new Policy(ScanSettings.SCAN_MODE_BALANCED, 1, 1, "lock came into range");
+        }
+        if (mScreenOn && (recentDisconnect || recentActivity)) {
+            return new Policy(ScanSettings.SCAN_MODE_BALANCED, 1, 1,
+                    "screen on, recently near the door");
+        }
+        if (mScreenOn || recentDisconnect) {
+            return new Policy(ScanSettings.SCAN_MODE_LOW_POWER, 1, 1,
+                    mScreenOn ? "screen on" : "recently disconnected");
+        }
+        return new Policy(ScanSettings.SCAN_MODE_LOW_POWER, IDLE_SCAN_WINDOW_MS,
+                IDLE_SCAN_PERIOD_MS, "idle");
+    }
+
+    /**
+     * Returns when the policy returned by {@link #getPolicy(long)} could next change just
+     * from the passing of time, or 0 if it won't.
+     */
+    public long getNextPolicyChange(long now) {
+        long next = 0;
+        if (mLastDisconnectTime != 0 && now - mLastDisconnectTime < RECENT_DISCONNECT_MS) {
+            next = mLastDisconnectTime + RECENT_DISCONNECT_MS;
+        }
+        if (mLastActivityTime != 0 && now - mLastActivityTime < RECENT_ACTIVITY_MS) {
+            final long activityChange = mLastActivityTime + RECENT_ACTIVITY_MS;
+            next = (next == 0) ? activityChange : Math.min(next, activityChange);
+        }
+        if (mLastSightingTime != 0 && now - mLastSightingTime < RECENT_SIGHTING_MS) {
+            final long sightingChange = mLastSightingTime + RECENT_SIGHTING_MS;
+            next = (next == 0) ? sightingChange : Math.min(next, sightingChange);
+        }
+        return next;
+    }
+
+    public void onScanStarted(long now, int scanMode) {
+        if (mAccountingStart == 0) mAccountingStart = now;
+        onScanStopped(now);
+        mScanStart = now;
+        mScanningMode = scanMode;
+    }
+
+    public void onScanStopped(long now) {
+        if (mScanStart != 0) {
+            mWeightedScanTime += (now - mScanStart) * getModeDutyCycle(mScanningMode);
+            mScanStart = 0;
+        }
+    }
+
+    /**
+     * Returns the fraction of time the radio has actually been listening since scanning
+     * first started, taking the duty cycle of each scan mode into account.
+     */
+    public double getMeasuredDutyCycle(long now) {
+        if (mAccountingStart == 0 || now <= mAccountingStart) return 0;
+        double scanTime = mWeightedScanTime;
+        if (mScanStart != 0) {
+            scanTime += (now - mScanStart) * getModeDutyCycle(mScanningMode);
+        }
+        return scanTime / (now - mAccountingStart);
+    }
+
+    /**
+     * Approximate fraction of time the controller listens in each scan mode (scan window
+     * divided by scan interval, as used by the Android Bluetooth stack).
+     */
+    static double getModeDutyCycle(int scanMode) {
+        switch (scanMode) {
+            case ScanSettings.SCAN_MODE_LOW_LATENCY:
+                return 1.0;
+            case ScanSettings.SCAN_MODE_BALANCED:
+                return 0.25;
+            case ScanSettings.SCAN_MODE_LOW_POWER:
+                return 0.1;
+            default:
+                return 0;
+        }
+    }
+
+    static String getModeName(int scanMode) {
+        switch (scanMode) {
+            case ScanSettings.SCAN_MODE_LOW_LATENCY:
+                return "low latency";
+            case ScanSettings.SCAN_MODE_BALANCED:
+                return "balanced";
+            case ScanSettings.SCAN_MODE_LOW_POWER:
+                return "low power";
+            default:
+                return "mode " + scanMode;
+        }
+    }
+}
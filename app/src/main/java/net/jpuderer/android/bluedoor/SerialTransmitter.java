@@ -0,0 +1,176 @@
+package net.jpuderer.android.bluedoor;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Streams arbitrary length byte sequences to the Bluno serial characteristic.
+ *
+ * The Bluno can only accept a limited number of bytes per write, so each transfer is split
+ * into frames that fit.  Only one frame is ever handed to the {@link GattOperationQueue} at
+ * a time; the next frame is sent from the write completion of the previous one, so a long
+ * transfer can't starve other GATT operations, and is paced at whatever rate the link
+ * actually manages.
+ *
+ * Used only on the event loop of the {@link LockSession} that owns it.  Not thread safe.
+ */
+class SerialTransmitter {
+    private final static String TAG = SerialTransmitter.class.getSimpleName();
+
+    // Upper bound on the number of bytes waiting to be sent.  Transfers that would exceed
+    // this are refused, so callers get back-pressure rather than an ever growing backlog.
+    public static final int MAX_PENDING_BYTES = 1024;
+
+    /**
+     * Receives progress and completion updates for a single transfer.  Callbacks are made
+     * on the event loop, as the {@link GattOperationQueue} reports each frame complete.
+     */
+    interface Listener {
+        void onProgress(int bytesSent, int totalBytes);
+        void onComplete(boolean success);
+    }
+
+    private class Transfer implements GattOperationQueue.Callback {
+        final byte[] mData;
+        final Listener mListener;
+        int mOffset;
+        int mFrameLength;
+
+        Transfer(byte[] data, Listener listener) {
+            mData = data;
+            mListener = listener;
+        }
+
+        @Override
+        public void onOperationComplete(int status) {
+            onFrameComplete(this, status);
+        }
+    }
+
+    private final GattOperationQueue mGattQueue;
+    private final ArrayDeque<Transfer> mTransfers = new ArrayDeque<Transfer>();
+    private BluetoothGattCharacteristic mCharacteristic;
+    private int mFrameSize;
+    private int mWriteType = BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT;
+    private int mPendingBytes;
+    private boolean mFrameInFlight;
+
+    SerialTransmitter(GattOperationQueue gattQueue, int frameSize) {
+        mGattQueue = gattQueue;
+        mFrameSize = frameSize;
+    }
+
+    /**
+     * Sets the characteristic that transfers are written to.  Setting this to {@code null}
+     * (for example on disconnect) fails any transfers still pending.
+     */
+    public void setCharacteristic(BluetoothGattCharacteristic characteristic) {
+        mCharacteristic = characteristic;
+        if (characteristic == null) {
+            cancelAll();
+        }
+    }
+
+    public void setFrameSize(int frameSize) {
+        mFrameSize = frameSize;
+    }
+
+    /**
+     * Sets how frames are written, one of the {@code BluetoothGattCharacteristic.WRITE_TYPE_*}
+     * values.  Without a response, several frames can go out in a single connection event.
+     */
+    public void setWriteType(int writeType) {
+        mWriteType = writeType;
+    }
+
+    public int getPendingBytes() {
+        return mPendingBytes;
+    }
+
+    /**
+     * Queues a transfer.
+     *
+     * @param data The bytes to send.  Must not be modified until the transfer completes.
+     * @param listener Optional listener for progress and completion.
+     *
+     * @return Return false if there is no connection, or too much data is already pending.
+     */
+    public boolean send(byte[] data, Listener listener) {
+        if (mCharacteristic == null) {
+            Log.w(TAG, "Serial characteristic not available");
+            return false;
+        }
+        if (data.length == 0) {
+            if (listener != null) listener.onComplete(true);
+            return true;
+        }
+        if (mPendingBytes + data.length > MAX_PENDING_BYTES) {
+            Log.w(TAG, "Too much data pending, refusing transfer of " + data.length + " bytes");
+            return false;
+        }
+        mTransfers.add(new Transfer(data, listener));
+        mPendingBytes += data.length;
+        sendNextFrame();
+        return true;
+    }
+
+    /**
+     * Drops all pending transfers, reporting them as failed.
+     */
+    public void cancelAll() {
+        // Clear everything out before notifying anyone, in case a listener decides to
+        // start a new transfer straight away.
+        final Transfer[] cancelled = mTransfers.toArray(new Transfer[mTransfers.size()]);
+        mTransfers.clear();
+        mPendingBytes = 0;
+        mFrameInFlight = false;
+        for (Transfer transfer : cancelled) {
+            if (transfer.mListener != null) transfer.mListener.onComplete(false);
+        }
+    }
+
+    private void sendNextFrame() {
+        if (mFrameInFlight || mTransfers.isEmpty()) {
+            return;
+        }
+        final Transfer transfer = mTransfers.peek();
+        transfer.mFrameLength = Math.min(mFrameSize, transfer.mData.length - transfer.mOffset);
+        final byte[] frame = Arrays.copyOfRange(transfer.mData,
+                transfer.mOffset, transfer.mOffset + transfer.mFrameLength);
+        mFrameInFlight = true;
+        if (!mGattQueue.writeCharacteristic(mCharacteristic, frame, mWriteType, transfer)) {
+            // The completion callback will never come, so fail it ourselves.
+            onFrameComplete(transfer, BluetoothGatt.GATT_FAILURE);
+        }
+    }
+
+    private void onFrameComplete(Transfer transfer, int status) {
+        if (mTransfers.peek() != transfer) {
+            // Cancelled while the frame was in flight
+            return;
+        }
+        mFrameInFlight = false;
+        if (status != BluetoothGatt.GATT_SUCCESS) {
+            Log.w(TAG, "Serial transfer failed after " + transfer.mOffset + " of " +
+                    transfer.mData.length + " bytes");
+            mTransfers.poll();
+            mPendingBytes -= transfer.mData.length - transfer.mOffset;
+            if (transfer.mListener != null) transfer.mListener.onComplete(false);
+        } else {
+            transfer.mOffset += transfer.mFrameLength;
+            mPendingBytes -= transfer.mFrameLength;
+            if (transfer.mListener != null) {
+                transfer.mListener.onProgress(transfer.mOffset, transfer.mData.length);
+            }
+            if (transfer.mOffset == transfer.mData.length) {
+                mTransfers.poll();
+                if (transfer.mListener != null) transfer.mListener.onComplete(true);
+            }
+        }
+        sendNextFrame();
+    }
+}
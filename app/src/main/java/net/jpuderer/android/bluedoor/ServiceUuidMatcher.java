@@ -0,0 +1,119 @@
+package net.jpuderer.android.bluedoor;
+
+import java.util.UUID;
+
+/**
+ * Matches raw advertising data against a single service UUID.
+ *
+ * The UUID is converted once into the forms it can appear in an advertisement (16, 32 and
+ * 128-bit, little endian), so matching a scan record is just a walk over its AD structures,
+ * without allocating anything.
+ */
+class ServiceUuidMatcher {
+    // AD types carrying service UUIDs (Bluetooth Core Specification Supplement, Part A)
+    private static final int AD_TYPE_UUID16_INCOMPLETE = 0x02;
+    private static final int AD_TYPE_UUID16_COMPLETE = 0x03;
+    private static final int AD_TYPE_UUID32_INCOMPLETE = 0x04;
+    private static final int AD_TYPE_UUID32_COMPLETE = 0x05;
+    private static final int AD_TYPE_UUID128_INCOMPLETE = 0x06;
+    private static final int AD_TYPE_UUID128_COMPLETE = 0x07;
+
+    // Lower 96 bits of the Bluetooth Base UUID (00000000-0000-1000-8000-00805F9B34FB)
+    private static final long BASE_UUID_MSB_MASK = 0x00000000FFFFFFFFL;
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    private final byte[] mUuid128 = new byte[16];
+    // Short forms, or -1 if the UUID can't be shortened that far
+    private final int mUuid16;
+    private final long mUuid32;
+
+    ServiceUuidMatcher(UUID uuid) {
+        final long msb = uuid.getMostSignificantBits();
+        final long lsb = uuid.getLeastSignificantBits();
+        for (int i = 0; i < 8; i++) {
+            mUuid128[i] = (byte) (lsb >>> (8 * i));
+            mUuid128[i + 8] = (byte) (msb >>> (8 * i));
+        }
+        if ((msb & BASE_UUID_MSB_MASK) == BASE_UUID_MSB && lsb == BASE_UUID_LSB) {
+            mUuid32 = msb >>> 32;
+            mUuid16 = (mUuid32 <= 0xFFFF) ? (int) mUuid32 : -1;
+        } else {
+            mUuid32 = -1;
+            mUuid16 = -1;
+        }
+    }
+
+    /**
+     * Returns whether the advertising data lists the service UUID.
+     *
+     * @param scanRecord Raw advertising (and scan response) data.
+     */
+    public boolean matches(byte[] scanRecord) {
+        if (scanRecord == null) return false;
+        int pos = 0;
+        while (pos < scanRecord.length) {
+            final int length = scanRecord[pos] & 0xFF;
+            if (length == 0 || pos + 1 + length > scanRecord.length) {
+                // Zero length marks the end of the significant data; anything else means
+                // the record is truncated.
+                return false;
+            }
+            final int type = scanRecord[pos + 1] & 0xFF;
+            final int dataStart = pos + 2;
+            final int dataEnd = pos + 1 + length;
+            switch (type) {
+                case AD_TYPE_UUID16_INCOMPLETE:
+                case AD_TYPE_UUID16_COMPLETE:
+                    if (mUuid16 >= 0 && containsUuid16(scanRecord, dataStart, dataEnd)) {
+                        return true;
+                    }
+                    break;
+                case AD_TYPE_UUID32_INCOMPLETE:
+                case AD_TYPE_UUID32_COMPLETE:
+                    if (mUuid32 >= 0 && containsUuid32(scanRecord, dataStart, dataEnd)) {
+                        return true;
+                    }
+                    break;
+                case AD_TYPE_UUID128_INCOMPLETE:
+                case AD_TYPE_UUID128_COMPLETE:
+                    if (containsUuid128(scanRecord, dataStart, dataEnd)) {
+                        return true;
+                    }
+                    break;
+                default:
+                    break;
+            }
+            pos = dataEnd;
+        }
+        return false;
+    }
+
+    private boolean containsUuid16(byte[] data, int start, int end) {
+        for (int i = start; i + 2 <= end; i += 2) {
+            final int value = (data[i] & 0xFF) | ((data[i + 1] & 0xFF) << 8);
+            if (value == mUuid16) return true;
+        }
+        return false;
+    }
+
+    private boolean containsUuid32(byte[] data, int start, int end) {
+        for (int i = start; i + 4 <= end; i += 4) {
+            final long value = (data[i] & 0xFFL) | ((data[i + 1] & 0xFFL) << 8) |
+                    ((data[i + 2] & 0xFFL) << 16) | ((data[i + 3] & 0xFFL) << 24);
+            if (value == mUuid32) return true;
+        }
+        return false;
+    }
+
+    private boolean containsUuid128(byte[] data, int start, int end) {
+        outer:
+        for (int i = start; i + 16 <= end; i += 16) {
+            for (int j = 0; j < 16; j++) {
+                if (data[i + j] != mUuid128[j]) continue outer;
+            }
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,105 @@
+package net.jpuderer.android.bluedoor;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ConnectionSupervisorTest {
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+
+    private final ConnectionSupervisor mSupervisor = new ConnectionSupervisor(new Random(1));
+
+    @Test
+    public void onlyOneAttemptInFlight() throws Exception {
+        assertTrue(mSupervisor.startAttempt(ADDRESS, 1000, false));
+        assertFalse(mSupervisor.startAttempt(ADDRESS, 1100, false));
+        // Not even for the user
+        assertFalse(mSupervisor.startAttempt(ADDRESS, 1200, true));
+        mSupervisor.onConnected(ADDRESS, 2000);
+        assertFalse(mSupervisor.startAttempt(ADDRESS, 3000, true));
+        assertEquals(ConnectionSupervisor.STATE_CONNECTED, mSupervisor.getState(ADDRESS));
+    }
+
+    @Test
+    public void failureBacksOff() throws Exception {
+        mSupervisor.startAttempt(ADDRESS, 1000, false);
+        mSupervisor.onDisconnected(ADDRESS, 2000);
+        assertEquals(ConnectionSupervisor.STATE_BACKOFF, mSupervisor.getState(ADDRESS));
+        final long delay = mSupervisor.getRetryDelay(ADDRESS, 2000);
+        assertTrue(delay >= ConnectionSupervisor.INITIAL_BACKOFF_MS / 2);
+        assertTrue(delay <= ConnectionSupervisor.INITIAL_BACKOFF_MS);
+        assertFalse(mSupervisor.startAttempt(ADDRESS, 2000, false));
+        assertTrue(mSupervisor.startAttempt(ADDRESS, 2000 + delay, false));
+    }
+
+    @Test
+    public void userSkipsBackoff() throws Exception {
+        mSupervisor.startAttempt(ADDRESS, 1000, false);
+        mSupervisor.onDisconnected(ADDRESS, 2000);
+        assertTrue(mSupervisor.startAttempt(ADDRESS, 2001, true));
+    }
+
+    @Test
+    public void backoffGrowsAndIsCapped() throws Exception {
+        long now = 1000;
+        long previousBase = 0;
+        for (int failures = 1; failures <= 12; failures++) {
+            assertTrue(mSupervisor.startAttempt(ADDRESS, now, true));
+            mSupervisor.onDisconnected(ADDRESS, now);
+            final long delay = mSupervisor.getRetryDelay(ADDRESS, now);
+            final long base = Math.min(ConnectionSupervisor.MAX_BACKOFF_MS,
+                    ConnectionSupervisor.INITIAL_BACKOFF_MS << (failures - 1));
+            assertTrue(delay >= base / 2 && delay <= base);
+            assertTrue(base >= previousBase);
+            previousBase = base;
+            now += delay;
+        }
+        assertEquals(ConnectionSupervisor.MAX_BACKOFF_MS, previousBase);
+    }
+
+    @Test
+    public void jitterSpreadsRetries() throws Exception {
+        final ConnectionSupervisor other = new ConnectionSupervisor(new Random(2));
+        boolean differ = false;
+        for (int failures = 1; failures <= 5; failures++) {
+            differ |= mSupervisor.getBackoff(failures) != other.getBackoff(failures);
+        }
+        assertTrue(differ);
+    }
+
+    @Test
+    public void shortConnectionCountsAsFailure() throws Exception {
+        mSupervisor.startAttempt(ADDRESS, 1000, false);
+        mSupervisor.onConnected(ADDRESS, 2000);
+        mSupervisor.onDisconnected(ADDRESS, 3000);
+        assertEquals(ConnectionSupervisor.STATE_BACKOFF, mSupervisor.getState(ADDRESS));
+    }
+
+    @Test
+    public void stableOrRequestedDisconnectIsNotFailure() throws Exception {
+        mSupervisor.startAttempt(ADDRESS, 1000, false);
+        mSupervisor.onConnected(ADDRESS, 2000);
+        mSupervisor.onDisconnected(ADDRESS, 2000 + ConnectionSupervisor.MIN_STABLE_CONNECTION_MS);
+        assertEquals(ConnectionSupervisor.STATE_IDLE, mSupervisor.getState(ADDRESS));
+
+        mSupervisor.startAttempt(ADDRESS, 10000, false);
+        mSupervisor.onConnected(ADDRESS, 11000);
+        mSupervisor.onDisconnectRequested(ADDRESS, 11500);
+        mSupervisor.onDisconnected(ADDRESS, 12000);
+        assertEquals(ConnectionSupervisor.STATE_IDLE, mSupervisor.getState(ADDRESS));
+        assertEquals(0, mSupervisor.getRetryDelay(ADDRESS, 12000));
+    }
+
+    @Test
+    public void countsAttemptsAndTime() throws Exception {
+        mSupervisor.startAttempt(ADDRESS, 0, false);
+        mSupervisor.onDisconnected(ADDRESS, 4000);
+        mSupervisor.startAttempt(ADDRESS, 10000, false);
+        mSupervisor.onConnected(ADDRESS, 12000);
+        final String description = mSupervisor.getDescription(ADDRESS, 20000);
+        assertEquals("connected; 2 attempts, 1 connected, 1 failed; "
+                + "idle 0s, connecting 6s, connected 8s, backoff 6s", description);
+    }
+}
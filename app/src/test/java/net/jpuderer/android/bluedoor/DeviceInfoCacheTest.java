@@ -0,0 +1,113 @@
+package net.jpuderer.android.bluedoor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.*;
+
+public class DeviceInfoCacheTest {
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+    private static final String LAYOUT = "[dfb0/dfb1:30, 180a/2a24:2]";
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("devices", "");
+        assertTrue(mFile.delete());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFile.delete();
+    }
+
+    @Test
+    public void survivesRestart() throws Exception {
+        final DeviceInfoCache cache = new DeviceInfoCache(mFile);
+        assertTrue(cache.putLayout(ADDRESS, LAYOUT, 2, 1000));
+        cache.putDetails(ADDRESS, "DF Bluno", "V1.97", 2000);
+
+        final DeviceInfoCache.DeviceInfo info = new DeviceInfoCache(mFile).get(ADDRESS);
+        assertTrue(info.hasDetails());
+        assertEquals(LAYOUT, info.mLayout);
+        assertEquals(2, info.mServiceCount);
+        assertEquals("DF Bluno", info.mModel);
+        assertEquals("V1.97", info.mFirmware);
+        assertEquals(2000, info.mUpdated);
+    }
+
+    @Test
+    public void detailsReadOnlyOnce() throws Exception {
+        final DeviceInfoCache cache = new DeviceInfoCache(mFile);
+        assertTrue(cache.putLayout(ADDRESS, LAYOUT, 2, 1000));
+        // Not read yet, so still wanted
+        assertTrue(cache.putLayout(ADDRESS, LAYOUT, 2, 1500));
+        cache.putDetails(ADDRESS, "DF Bluno", "V1.97", 2000);
+        assertFalse(new DeviceInfoCache(mFile).putLayout(ADDRESS, LAYOUT, 2, 3000));
+    }
+
+    @Test
+    public void missingDetailIsReadAgain() throws Exception {
+        final DeviceInfoCache cache = new DeviceInfoCache(mFile);
+        cache.putLayout(ADDRESS, LAYOUT, 2, 1000);
+        // The firmware revision couldn't be read
+        cache.putDetails(ADDRESS, "DF Bluno", null, 2000);
+        assertFalse(cache.get(ADDRESS).hasDetails());
+        assertTrue(new DeviceInfoCache(mFile).putLayout(ADDRESS, LAYOUT, 2, 3000));
+        // Only the missing one is read the next time
+        cache.putDetails(ADDRESS, null, "V1.97", 4000);
+        final DeviceInfoCache.DeviceInfo info = new DeviceInfoCache(mFile).get(ADDRESS);
+        assertTrue(info.hasDetails());
+        assertEquals("DF Bluno", info.mModel);
+        assertEquals("V1.97", info.mFirmware);
+    }
+
+    @Test
+    public void layoutChangeDropsDetails() throws Exception {
+        final DeviceInfoCache cache = new DeviceInfoCache(mFile);
+        cache.putLayout(ADDRESS, LAYOUT, 2, 1000);
+        cache.putDetails(ADDRESS, "DF Bluno", "V1.97", 2000);
+        assertTrue(cache.putLayout(ADDRESS, "[dfb0/dfb1:30]", 1, 3000));
+        assertFalse(cache.get(ADDRESS).hasDetails());
+        assertFalse(new DeviceInfoCache(mFile).get(ADDRESS).hasDetails());
+    }
+
+    @Test
+    public void otherVersionIsDiscarded() throws Exception {
+        final DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile));
+        out.writeInt(DeviceInfoCache.VERSION + 1);
+        out.writeInt(1);
+        out.writeUTF(ADDRESS);
+        out.close();
+        final DeviceInfoCache cache = new DeviceInfoCache(mFile);
+        assertNull(cache.get(ADDRESS));
+        assertTrue(cache.putLayout(ADDRESS, LAYOUT, 2, 1000));
+        assertNotNull(new DeviceInfoCache(mFile).get(ADDRESS));
+    }
+
+    @Test
+    public void truncatedFileStartsOver() throws Exception {
+        final DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile));
+        out.writeInt(DeviceInfoCache.VERSION);
+        out.writeInt(3);
+        out.writeUTF(ADDRESS);
+        out.close();
+        assertNull(new DeviceInfoCache(mFile).get(ADDRESS));
+    }
+
+    @Test
+    public void detailsNeedALayout() throws Exception {
+        final DeviceInfoCache cache = new DeviceInfoCache(mFile);
+        cache.putDetails(ADDRESS, "DF Bluno", "V1.97", 2000);
+        assertNull(cache.get(ADDRESS));
+        cache.putLayout(ADDRESS, LAYOUT, 2, 1000);
+        cache.forget(ADDRESS);
+        assertNull(new DeviceInfoCache(mFile).get(ADDRESS));
+    }
+}
@@ -0,0 +1,167 @@
+package net.jpuderer.android.bluedoor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DoorEventJournalTest {
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+
+    private File mDirectory;
+    private DoorEventJournal mJournal;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = File.createTempFile("journal", "");
+        assertTrue(mDirectory.delete());
+        // Small segments, so a handful of events exercises rotation
+        mJournal = new DoorEventJournal(mDirectory, 4, 3);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mJournal.close();
+        final File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) file.delete();
+        }
+        mDirectory.delete();
+    }
+
+    private void appendEvents(long firstTimestamp, int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            mJournal.append(firstTimestamp + i, ADDRESS,
+                    (i % 2 == 0) ? DoorEventJournal.EVENT_LOCKED : DoorEventJournal.EVENT_UNLOCKED,
+                    DoorEventJournal.SOURCE_APP, 100 + i);
+        }
+    }
+
+    private File segmentFile(int id) {
+        return new File(mDirectory, String.format("events-%010d.seg", id));
+    }
+
+    @Test
+    public void queryReturnsNewestFirst() throws Exception {
+        appendEvents(1000, 3);
+        final List<DoorEventJournal.Event> events = mJournal.query(0, Long.MAX_VALUE, 10);
+        assertEquals(3, events.size());
+        assertEquals(1002, events.get(0).mTimestamp);
+        assertEquals(1000, events.get(2).mTimestamp);
+
+        final DoorEventJournal.Event event = events.get(1);
+        assertEquals(ADDRESS, event.mAddress);
+        assertEquals(DoorEventJournal.EVENT_UNLOCKED, event.mType);
+        assertEquals(DoorEventJournal.SOURCE_APP, event.mSource);
+        assertEquals(101, event.mLatencyMs);
+    }
+
+    @Test
+    public void queryRangeAndLimit() throws Exception {
+        appendEvents(1000, 10);
+        List<DoorEventJournal.Event> events = mJournal.query(1003, 1007, 10);
+        assertEquals(4, events.size());
+        assertEquals(1006, events.get(0).mTimestamp);
+        assertEquals(1003, events.get(3).mTimestamp);
+
+        events = mJournal.query(0, Long.MAX_VALUE, 2);
+        assertEquals(2, events.size());
+        assertEquals(1009, events.get(0).mTimestamp);
+    }
+
+    @Test
+    public void rotatesAndDropsOldestSegments() throws Exception {
+        appendEvents(1000, 9);
+        assertEquals(3, mJournal.getSegmentCount());
+        assertEquals(9, mJournal.size());
+
+        // Starting a fourth segment drops the first
+        appendEvents(2000, 4);
+        assertEquals(3, mJournal.getSegmentCount());
+        assertEquals(9, mJournal.size());
+        assertFalse(segmentFile(1).exists());
+        assertTrue(mJournal.query(0, 1004, 10).isEmpty());
+    }
+
+    @Test
+    public void survivesReopen() throws Exception {
+        appendEvents(1000, 6);
+        mJournal.close();
+        mJournal = new DoorEventJournal(mDirectory, 4, 3);
+        assertEquals(6, mJournal.size());
+
+        // Appends carry on where they left off
+        appendEvents(2000, 1);
+        final List<DoorEventJournal.Event> events = mJournal.query(0, Long.MAX_VALUE, 10);
+        assertEquals(7, events.size());
+        assertEquals(2000, events.get(0).mTimestamp);
+        assertEquals(1005, events.get(1).mTimestamp);
+    }
+
+    @Test
+    public void ignoresTornRecord() throws Exception {
+        appendEvents(1000, 3);
+        mJournal.close();
+
+        // Damage the last record, as if we died half way through writing it
+        final RandomAccessFile file = new RandomAccessFile(segmentFile(1), "rw");
+        file.seek(2 * DoorEventJournal.RECORD_SIZE + 16);
+        file.write(0x7F);
+        file.close();
+
+        mJournal = new DoorEventJournal(mDirectory, 4, 3);
+        assertEquals(2, mJournal.size());
+        appendEvents(2000, 1);
+        final List<DoorEventJournal.Event> events = mJournal.query(0, Long.MAX_VALUE, 10);
+        assertEquals(3, events.size());
+        assertEquals(2000, events.get(0).mTimestamp);
+        assertEquals(1001, events.get(1).mTimestamp);
+    }
+
+    @Test
+    public void compactDeletesExpiredSegments() throws Exception {
+        appendEvents(1000, 9);
+        mJournal.compact(1004);
+        assertEquals(2, mJournal.getSegmentCount());
+        assertEquals(5, mJournal.size());
+        assertFalse(segmentFile(1).exists());
+    }
+
+    @Test
+    public void compactRewritesPartlyExpiredSegment() throws Exception {
+        appendEvents(1000, 9);
+        mJournal.compact(1006);
+        assertEquals(2, mJournal.getSegmentCount());
+        assertEquals(3, mJournal.size());
+
+        final List<DoorEventJournal.Event> events = mJournal.query(0, 1008, 10);
+        assertEquals(2, events.size());
+        assertEquals(1007, events.get(0).mTimestamp);
+        assertEquals(1006, events.get(1).mTimestamp);
+
+        // And the rewritten segment reads back the same after a restart
+        mJournal.close();
+        mJournal = new DoorEventJournal(mDirectory, 4, 3);
+        assertEquals(3, mJournal.size());
+    }
+
+    @Test
+    public void compactLeavesActiveSegment() throws Exception {
+        appendEvents(1000, 3);
+        mJournal.compact(Long.MAX_VALUE);
+        assertEquals(3, mJournal.size());
+    }
+
+    @Test
+    public void packAddressRoundTrip() throws Exception {
+        final long packed = DoorEventJournal.packAddress(ADDRESS);
+        assertEquals(0x001122AABBCCL, packed);
+        assertEquals(ADDRESS, DoorEventJournal.unpackAddress(packed));
+        assertEquals(0, DoorEventJournal.packAddress(null));
+    }
+}
@@ -0,0 +1,66 @@
+package net.jpuderer.android.bluedoor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DoorStatusCacheTest {
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+    private static final long TTL_MS = 60000;
+
+    private final DoorStatusCache mCache = new DoorStatusCache(TTL_MS);
+
+    @Test
+    public void freshUntilTtl() throws Exception {
+        mCache.put(ADDRESS, DoorlockService.DOOR_STATE_LOCKED, 1000);
+        assertEquals(DoorlockService.DOOR_STATE_LOCKED,
+                mCache.getFresh(ADDRESS, 1000 + TTL_MS - 1).mDoorState);
+        assertEquals(1, mCache.getRemainingTtl(mCache.get(ADDRESS), 1000 + TTL_MS - 1));
+        assertNull(mCache.getFresh(ADDRESS, 1000 + TTL_MS));
+        // Still there to show as stale
+        assertEquals(DoorlockService.DOOR_STATE_LOCKED, mCache.get(ADDRESS).mDoorState);
+        assertEquals(0, mCache.getRemainingTtl(mCache.get(ADDRESS), 1000 + TTL_MS));
+    }
+
+    @Test
+    public void pushRestartsTtl() throws Exception {
+        mCache.put(ADDRESS, DoorlockService.DOOR_STATE_LOCKED, 1000);
+        mCache.put(ADDRESS, DoorlockService.DOOR_STATE_UNLOCKED, 50000);
+        final DoorStatusCache.Status status = mCache.getFresh(ADDRESS, 1000 + TTL_MS);
+        assertEquals(DoorlockService.DOOR_STATE_UNLOCKED, status.mDoorState);
+        assertEquals(1000 + TTL_MS - 50000, status.getAge(1000 + TTL_MS));
+    }
+
+    @Test
+    public void invalidateKeepsValue() throws Exception {
+        mCache.put(ADDRESS, DoorlockService.DOOR_STATE_UNLOCKED, 1000);
+        mCache.invalidate(ADDRESS);
+        assertNull(mCache.getFresh(ADDRESS, 1001));
+        assertEquals(DoorlockService.DOOR_STATE_UNLOCKED, mCache.get(ADDRESS).mDoorState);
+        // The next push makes it fresh again
+        mCache.put(ADDRESS, DoorlockService.DOOR_STATE_LOCKED, 2000);
+        assertNotNull(mCache.getFresh(ADDRESS, 2001));
+    }
+
+    @Test
+    public void unknownNotRecorded() throws Exception {
+        mCache.put(ADDRESS, DoorlockService.DOOR_STATE_LOCKED, 1000);
+        mCache.put(ADDRESS, DoorlockService.DOOR_STATE_UNKNOWN, 2000);
+        assertEquals(DoorlockService.DOOR_STATE_LOCKED, mCache.get(ADDRESS).mDoorState);
+        assertNull(mCache.get("00:11:22:AA:BB:DD"));
+        mCache.invalidate("00:11:22:AA:BB:DD");
+        assertNull(mCache.get("00:11:22:AA:BB:DD"));
+    }
+
+    @Test
+    public void restoredIsStale() throws Exception {
+        mCache.restore(ADDRESS, DoorlockService.DOOR_STATE_UNLOCKED, 1000);
+        assertNull(mCache.getFresh(ADDRESS, 1001));
+        assertEquals(DoorlockService.DOOR_STATE_UNLOCKED, mCache.get(ADDRESS).mDoorState);
+        // Doesn't replace what we've heard since
+        mCache.put(ADDRESS, DoorlockService.DOOR_STATE_LOCKED, 2000);
+        mCache.restore(ADDRESS, DoorlockService.DOOR_STATE_UNLOCKED, 2001);
+        assertNotNull(mCache.getFresh(ADDRESS, 2001));
+        assertEquals(DoorlockService.DOOR_STATE_LOCKED, mCache.get(ADDRESS).mDoorState);
+    }
+}
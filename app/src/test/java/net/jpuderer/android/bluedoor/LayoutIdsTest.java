@@ -0,0 +1,57 @@
+package net.jpuderer.android.bluedoor;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the landscape layouts have every view the portrait ones do, so code that
+ * finds views by id works in both orientations.
+ */
+public class LayoutIdsTest {
+    // Unit tests run in the module directory
+    private static final File RES = new File("src/main/res");
+    private static final Pattern ID = Pattern.compile("@\\+id/(\\w+)");
+    private static final Pattern INCLUDE = Pattern.compile("layout=\"@layout/(\\w+)\"");
+
+    @Test
+    public void landscapeHasPortraitIds() throws Exception {
+        final File[] landscape = new File(RES, "layout-land").listFiles();
+        assertNotNull(landscape);
+        for (File file : landscape) {
+            final String name = file.getName();
+            final Set<String> missing = collectIds(name, "layout");
+            missing.removeAll(collectIds(name, "layout-land"));
+            assertTrue(name + " is missing " + missing + " in landscape", missing.isEmpty());
+        }
+    }
+
+    // Ids in a layout and the layouts it includes, as resolved for the given directory
+    private static Set<String> collectIds(String name, String dir) throws IOException {
+        File file = new File(new File(RES, dir), name);
+        if (!file.exists()) {
+            file = new File(new File(RES, "layout"), name);
+        }
+        final String xml = new String(Files.readAllBytes(file.toPath()),
+                Charset.forName("UTF-8"));
+        final Set<String> ids = new TreeSet<String>();
+        Matcher matcher = ID.matcher(xml);
+        while (matcher.find()) {
+            ids.add(matcher.group(1));
+        }
+        matcher = INCLUDE.matcher(xml);
+        while (matcher.find()) {
+            ids.addAll(collectIds(matcher.group(1) + ".xml", dir));
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,60 @@
+package net.jpuderer.android.bluedoor;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class LockConfigTest {
+    private static final String DEFAULT_ADDRESS = "00:11:22:AA:BB:CC";
+    private static final String OTHER_ADDRESS = "00:11:22:AA:BB:DD";
+
+    @Test
+    public void emptyConfig() throws Exception {
+        assertNull(LockConfig.EMPTY.mDefaultAddress);
+        assertEquals(DoorlockService.DEFAULT_LOCK_PASSCODE, LockConfig.EMPTY.mPasscode);
+        assertTrue(LockConfig.EMPTY.getLockAddresses().isEmpty());
+    }
+
+    @Test
+    public void copiesLeaveOriginalAlone() throws Exception {
+        final LockConfig config = LockConfig.EMPTY.withDefaultDevice(DEFAULT_ADDRESS, "Front");
+        final LockConfig changed = config.withPasscode("1234");
+        assertEquals(DoorlockService.DEFAULT_LOCK_PASSCODE, config.mPasscode);
+        assertEquals("1234", changed.mPasscode);
+        assertEquals(DEFAULT_ADDRESS, changed.mDefaultAddress);
+        assertEquals("Front", changed.mDefaultName);
+        assertNull(LockConfig.EMPTY.mDefaultAddress);
+    }
+
+    @Test
+    public void lockAddressesStartWithDefault() throws Exception {
+        final LockConfig config = LockConfig.EMPTY
+                .withExtraAddresses(new HashSet<String>(Arrays.asList(OTHER_ADDRESS)))
+                .withDefaultDevice(DEFAULT_ADDRESS, null);
+        final Iterator<String> addresses = config.getLockAddresses().iterator();
+        assertEquals(DEFAULT_ADDRESS, addresses.next());
+        assertEquals(OTHER_ADDRESS, addresses.next());
+        assertFalse(addresses.hasNext());
+        assertTrue(config.isDefaultAddress(DEFAULT_ADDRESS));
+        assertFalse(config.isDefaultAddress(OTHER_ADDRESS));
+    }
+
+    @Test
+    public void notAffectedByCallerSet() throws Exception {
+        final Set<String> extra = new HashSet<String>(Arrays.asList(OTHER_ADDRESS));
+        final LockConfig config = LockConfig.EMPTY.withExtraAddresses(extra);
+        extra.clear();
+        assertEquals(1, config.getLockAddresses().size());
+        try {
+            config.getLockAddresses().clear();
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // Expected
+        }
+    }
+}
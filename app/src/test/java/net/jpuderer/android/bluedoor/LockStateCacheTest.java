@@ -0,0 +1,72 @@
+package net.jpuderer.android.bluedoor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+
+import static org.junit.Assert.*;
+
+public class LockStateCacheTest {
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+    private static final String OTHER_ADDRESS = "00:11:22:DD:EE:FF";
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mFile = File.createTempFile("lock_state", "");
+        assertTrue(mFile.delete());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mFile.delete();
+    }
+
+    @Test
+    public void survivesRestart() throws Exception {
+        assertNull(new LockStateCache(mFile).get());
+        new LockStateCache(mFile).put(ADDRESS, DoorlockService.DOOR_STATE_LOCKED, 1000);
+
+        final LockStateCache.State state = new LockStateCache(mFile).get();
+        assertEquals(ADDRESS, state.mAddress);
+        assertEquals(DoorlockService.DOOR_STATE_LOCKED, state.mDoorState);
+        assertEquals(1000, state.mTime);
+    }
+
+    @Test
+    public void unknownKeepsKnownState() throws Exception {
+        final LockStateCache cache = new LockStateCache(mFile);
+        cache.put(ADDRESS, DoorlockService.DOOR_STATE_UNLOCKED, 1000);
+        cache.put(ADDRESS, DoorlockService.DOOR_STATE_UNKNOWN, 2000);
+        assertEquals(DoorlockService.DOOR_STATE_UNLOCKED, cache.get().mDoorState);
+        assertEquals(1000, new LockStateCache(mFile).get().mTime);
+    }
+
+    @Test
+    public void otherLockReplacesState() throws Exception {
+        final LockStateCache cache = new LockStateCache(mFile);
+        cache.put(ADDRESS, DoorlockService.DOOR_STATE_LOCKED, 1000);
+        cache.put(OTHER_ADDRESS, DoorlockService.DOOR_STATE_UNKNOWN, 2000);
+        final LockStateCache.State state = new LockStateCache(mFile).get();
+        assertEquals(OTHER_ADDRESS, state.mAddress);
+        assertEquals(DoorlockService.DOOR_STATE_UNKNOWN, state.mDoorState);
+
+        cache.put(null, DoorlockService.DOOR_STATE_UNKNOWN, 3000);
+        assertNull(new LockStateCache(mFile).get().mAddress);
+    }
+
+    @Test
+    public void otherVersionIsDiscarded() throws Exception {
+        final DataOutputStream out = new DataOutputStream(new FileOutputStream(mFile));
+        out.writeInt(LockStateCache.VERSION + 1);
+        out.writeBoolean(true);
+        out.writeUTF(ADDRESS);
+        out.close();
+        assertNull(new LockStateCache(mFile).get());
+    }
+}
@@ -0,0 +1,87 @@
+package net.jpuderer.android.bluedoor;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ProximityEngineTest {
+    private static final String ADDRESS = "00:11:22:AA:BB:CC";
+    // Roughly how often a balanced scan reports an advertising lock
+    private static final long SCAN_INTERVAL_MS = 1000;
+
+    private final ProximityEngine mEngine = new ProximityEngine();
+
+    // Feeds readings from start to end dBm, one per interval, returning the last action
+    private int walk(int start, int end, int steps, long startTime, boolean connected) {
+        int action = ProximityEngine.ACTION_NONE;
+        for (int i = 0; i < steps; i++) {
+            final int rssi = start + (end - start) * i / (steps - 1);
+            action = mEngine.onRssi(ADDRESS, rssi, startTime + i * SCAN_INTERVAL_MS, connected);
+            if (action != ProximityEngine.ACTION_NONE) return action;
+        }
+        return action;
+    }
+
+    @Test
+    public void connectsWhenNear() throws Exception {
+        assertEquals(ProximityEngine.ACTION_CONNECT,
+                mEngine.onRssi(ADDRESS, -60, 1000, false));
+    }
+
+    @Test
+    public void connectsWhenApproaching() throws Exception {
+        assertEquals(ProximityEngine.ACTION_CONNECT, walk(-95, -75, 10, 1000, false));
+        assertTrue(mEngine.getTracker(ADDRESS, 10000).getRssi() < ProximityEngine.NEAR_RSSI);
+    }
+
+    @Test
+    public void staysPutWhenStandingAtEdgeOfRange() throws Exception {
+        long now = 1000;
+        for (int i = 0; i < 30; i++, now += SCAN_INTERVAL_MS) {
+            // Noisy, but going nowhere
+            final int rssi = (i % 2 == 0) ? -80 : -86;
+            assertEquals(ProximityEngine.ACTION_NONE, mEngine.onRssi(ADDRESS, rssi, now, false));
+        }
+    }
+
+    @Test
+    public void holdsStateInsideHysteresisBand() throws Exception {
+        final int band = (ProximityEngine.IN_RANGE_RSSI + ProximityEngine.LEAVING_RSSI) / 2;
+        assertTrue(ProximityEngine.LEAVING_RSSI < band && band < ProximityEngine.IN_RANGE_RSSI);
+        long now = 1000;
+        // Not connected: never strong enough to connect
+        for (int i = 0; i < 30; i++, now += SCAN_INTERVAL_MS) {
+            assertEquals(ProximityEngine.ACTION_NONE, mEngine.onRssi(ADDRESS, band, now, false));
+        }
+        // Connected: never weak enough to disconnect
+        for (int i = 0; i < 30; i++, now += SCAN_INTERVAL_MS) {
+            assertEquals(ProximityEngine.ACTION_NONE, mEngine.onRssi(ADDRESS, band, now, true));
+        }
+        // Not even while drifting down into the band
+        assertEquals(ProximityEngine.ACTION_NONE,
+                walk(ProximityEngine.IN_RANGE_RSSI + 5, band, 10, now, true));
+    }
+
+    @Test
+    public void singleStrongReadingIsSmoothed() throws Exception {
+        walk(-88, -88, 5, 1000, false);
+        assertEquals(ProximityEngine.ACTION_NONE, mEngine.onRssi(ADDRESS, -65, 5500, false));
+    }
+
+    @Test
+    public void disconnectsWhenLeaving() throws Exception {
+        assertEquals(ProximityEngine.ACTION_NONE, walk(-60, -60, 5, 1000, true));
+        assertEquals(ProximityEngine.ACTION_DISCONNECT, walk(-60, -100, 20, 6000, true));
+        assertTrue(mEngine.getTracker(ADDRESS, 26000).isLeaving());
+    }
+
+    @Test
+    public void readingsGoStale() throws Exception {
+        walk(-95, -85, 5, 1000, false);
+        assertNotNull(mEngine.getTracker(ADDRESS, 5000));
+        assertNull(mEngine.getTracker(ADDRESS, 5000 + ProximityEngine.STALE_MS + 1));
+        // Starts over, so there's no trend from one reading
+        mEngine.onRssi(ADDRESS, -80, 5000 + ProximityEngine.STALE_MS + 1, false);
+        assertEquals(0, mEngine.getTracker(ADDRESS, 30000).getTrend(), 0);
+    }
+}
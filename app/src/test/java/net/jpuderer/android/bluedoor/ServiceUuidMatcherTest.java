@@ -0,0 +1,98 @@
+package net.jpuderer.android.bluedoor;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class ServiceUuidMatcherTest {
+    // The Bluno serial service, which has a 16-bit short form
+    private static final UUID BLUNO = UUID.fromString("0000dfb0-0000-1000-8000-00805f9b34fb");
+    // Not based on the Bluetooth Base UUID, so only ever advertised in full
+    private static final UUID CUSTOM = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+
+    // Flags, as almost every advertisement starts with
+    private static final byte[] FLAGS = { 0x02, 0x01, 0x06 };
+
+    private static byte[] record(byte[]... structures) {
+        int length = 0;
+        for (byte[] structure : structures) length += structure.length;
+        final byte[] record = new byte[length];
+        int pos = 0;
+        for (byte[] structure : structures) {
+            System.arraycopy(structure, 0, record, pos, structure.length);
+            pos += structure.length;
+        }
+        return record;
+    }
+
+    // An AD structure listing 128-bit UUIDs, little endian
+    private static byte[] uuid128(int type, UUID uuid) {
+        final byte[] structure = new byte[18];
+        structure[0] = 17;
+        structure[1] = (byte) type;
+        final long msb = uuid.getMostSignificantBits();
+        final long lsb = uuid.getLeastSignificantBits();
+        for (int i = 0; i < 8; i++) {
+            structure[2 + i] = (byte) (lsb >>> (8 * i));
+            structure[10 + i] = (byte) (msb >>> (8 * i));
+        }
+        return structure;
+    }
+
+    @Test
+    public void matches16BitUuid() throws Exception {
+        final ServiceUuidMatcher matcher = new ServiceUuidMatcher(BLUNO);
+        // Complete list, with another UUID ahead of ours
+        assertTrue(matcher.matches(record(FLAGS,
+                new byte[] { 0x05, 0x03, 0x0A, 0x18, (byte) 0xB0, (byte) 0xDF })));
+        // Incomplete list
+        assertTrue(matcher.matches(record(new byte[] { 0x03, 0x02, (byte) 0xB0, (byte) 0xDF })));
+        // Byte swapped isn't a match
+        assertFalse(matcher.matches(record(new byte[] { 0x03, 0x03, (byte) 0xDF, (byte) 0xB0 })));
+    }
+
+    @Test
+    public void matchesShortUuidInFull() throws Exception {
+        final ServiceUuidMatcher matcher = new ServiceUuidMatcher(BLUNO);
+        assertTrue(matcher.matches(record(FLAGS, uuid128(0x07, BLUNO))));
+        // As a 32-bit UUID too
+        assertTrue(matcher.matches(record(
+                new byte[] { 0x05, 0x05, (byte) 0xB0, (byte) 0xDF, 0x00, 0x00 })));
+    }
+
+    @Test
+    public void matches128BitUuid() throws Exception {
+        final ServiceUuidMatcher matcher = new ServiceUuidMatcher(CUSTOM);
+        assertTrue(matcher.matches(record(FLAGS, uuid128(0x07, CUSTOM))));
+        assertTrue(matcher.matches(record(uuid128(0x06, CUSTOM))));
+        assertFalse(matcher.matches(record(FLAGS, uuid128(0x07, BLUNO))));
+        // Other data that happens to hold the same bytes doesn't count
+        final byte[] serviceData = uuid128(0x07, CUSTOM);
+        serviceData[1] = 0x21;
+        assertFalse(matcher.matches(record(FLAGS, serviceData)));
+    }
+
+    @Test
+    public void truncatedRecordDoesNotMatch() throws Exception {
+        final ServiceUuidMatcher matcher = new ServiceUuidMatcher(CUSTOM);
+        final byte[] full = record(FLAGS, uuid128(0x07, CUSTOM));
+        final byte[] truncated = new byte[full.length - 1];
+        System.arraycopy(full, 0, truncated, 0, truncated.length);
+        assertFalse(matcher.matches(truncated));
+        // A length running past the end
+        assertFalse(new ServiceUuidMatcher(BLUNO).matches(
+                new byte[] { 0x05, 0x03, (byte) 0xB0, (byte) 0xDF }));
+    }
+
+    @Test
+    public void missingRecordDoesNotMatch() throws Exception {
+        final ServiceUuidMatcher matcher = new ServiceUuidMatcher(BLUNO);
+        assertFalse(matcher.matches(null));
+        assertFalse(matcher.matches(new byte[0]));
+        // Zero padding after the flags ends the significant part
+        assertFalse(matcher.matches(record(FLAGS, new byte[4],
+                new byte[] { 0x03, 0x03, (byte) 0xB0, (byte) 0xDF })));
+    }
+}
@@ -0,0 +1,102 @@
+package net.jpuderer.bluedoor.protocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the protocol hot paths.  Run with the gc profiler (the default for the
+ * {@code jmh} task) to get the allocation rate per operation ("gc.alloc.rate.norm"); the
+ * decode and buffer-encode paths are expected to stay at zero.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ProtocolBenchmark {
+    private static final String PASSCODE = "0123456789012345";
+
+    private final byte[] mCommand = new byte[LockProtocol.MAX_COMMAND_LENGTH];
+    private final StatusDecoder mDecoder = new StatusDecoder();
+    private final LockStateMachine mStateMachine = new LockStateMachine();
+
+    // A full 20 byte notification of relayed keypad echoes, ending in a status
+    private final byte[] mNotification = new byte[20];
+    // A notification carrying a single status byte
+    private final byte[] mStatus = { LockProtocol.UNLOCK_STATUS_BYTE };
+
+    private CountingListener mListener;
+
+    /**
+     * Counts events, so the decoder's work can't be optimized away.
+     */
+    static class CountingListener implements StatusDecoder.Listener {
+        int mEvents;
+
+        @Override
+        public void onDoorLocked() { mEvents++; }
+
+        @Override
+        public void onDoorUnlocked() { mEvents++; }
+
+        @Override
+        public void onLockError() { mEvents++; }
+
+        @Override
+        public void onUnknownOpcode(int opcode) { mEvents += opcode; }
+    }
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < mNotification.length - 2; i++) {
+            mNotification[i] = LockProtocol.keyForDigit(i % 10);
+        }
+        mNotification[mNotification.length - 2] = LockProtocol.START_BYTE;
+        mNotification[mNotification.length - 1] = LockProtocol.LOCK_STATUS_BYTE;
+        mListener = new CountingListener();
+        mStateMachine.onConnecting();
+        mStateMachine.onConnected();
+    }
+
+    @Benchmark
+    public byte[] encodeUnlock() {
+        return LockProtocol.encodeUnlock(PASSCODE);
+    }
+
+    @Benchmark
+    public int encodeUnlockIntoBuffer() {
+        return LockProtocol.encodeUnlock(PASSCODE, mCommand, 0);
+    }
+
+    @Benchmark
+    public int decodeStatus() {
+        mDecoder.feed(mStatus);
+        mDecoder.drain(mListener);
+        return mListener.mEvents;
+    }
+
+    @Benchmark
+    public int decodeFullNotification() {
+        mDecoder.feed(mNotification);
+        mDecoder.drain(mListener);
+        return mListener.mEvents;
+    }
+
+    @Benchmark
+    public void doorStateTransitions(Blackhole blackhole) {
+        blackhole.consume(mStateMachine.onDoorStatus(LockStateMachine.DOOR_STATE_LOCKED));
+        blackhole.consume(mStateMachine.onDoorStatus(LockStateMachine.DOOR_STATE_UNLOCKED));
+    }
+}
@@ -0,0 +1,101 @@
+package net.jpuderer.bluedoor.protocol;
+
+/**
+ * Command encoding for the door lock, as relayed by the Bluno serial port.
+ *
+ * Commands are sent as keypad key presses, one byte per key.  The Bluno firmware answers
+ * {@link #GET_STATUS_COMMAND} itself, and forwards everything else to the lock.
+ */
+public final class LockProtocol {
+    // Keys and commands to send to door
+    public static final byte GET_STATUS_COMMAND = 0x00;
+    public static final byte KEYPAD_COMMAND_LOCK = 0x41;
+    public static final byte KEYPAD_COMMAND_KEY_0 = 0x30;
+    public static final byte KEYPAD_COMMAND_KEY_1 = 0x31;
+    public static final byte KEYPAD_COMMAND_KEY_2 = 0x32;
+    public static final byte KEYPAD_COMMAND_KEY_3 = 0x33;
+    public static final byte KEYPAD_COMMAND_KEY_4 = 0x34;
+    public static final byte KEYPAD_COMMAND_KEY_5 = 0x35;
+    public static final byte KEYPAD_COMMAND_KEY_6 = 0x36;
+    public static final byte KEYPAD_COMMAND_KEY_7 = 0x37;
+    public static final byte KEYPAD_COMMAND_KEY_8 = 0x38;
+    public static final byte KEYPAD_COMMAND_KEY_9 = 0x39;
+    public static final byte KEYPAD_COMMAND_KEY_ENTER = 0x23;
+    public static final byte KEYPAD_COMMAND_KEY_CANCEL = 0x2A;
+
+    // Status bytes to receive from door
+    public static final byte LOCK_STATUS_BYTE = 0x61;
+    public static final byte UNLOCK_STATUS_BYTE = 0x62;
+    public static final byte ERROR_STATUS_BYTE = 0x66;
+
+    // Command start byte the lock sends ahead of some opcodes
+    public static final byte START_BYTE = (byte) 0xFF;
+
+    // Maximum length we allow for the passcode
+    public static final int MAX_PASSCODE_LENGTH = 16;
+
+    // Longest command we ever encode: the passcode followed by enter
+    public static final int MAX_COMMAND_LENGTH = MAX_PASSCODE_LENGTH + 1;
+
+    private LockProtocol() { }
+
+    /**
+     * Returns the keypad command for the given digit.
+     *
+     * @throws IllegalArgumentException if {@code digit} is not in the range 0-9.
+     */
+    public static byte keyForDigit(int digit) {
+        if (digit < 0 || digit > 9) {
+            throw new IllegalArgumentException("Not a keypad digit: " + digit);
+        }
+        return (byte) (KEYPAD_COMMAND_KEY_0 + digit);
+    }
+
+    /**
+     * Returns whether the passcode can be entered on the lock's keypad.
+     */
+    public static boolean isValidPasscode(CharSequence passcode) {
+        if (passcode == null || passcode.length() == 0
+                || passcode.length() > MAX_PASSCODE_LENGTH) {
+            return false;
+        }
+        for (int i = 0; i < passcode.length(); i++) {
+            final char c = passcode.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Encodes the key presses to unlock the door into {@code dst}, without allocating.
+     *
+     * @return The number of bytes written, or -1 if the passcode isn't valid or doesn't fit.
+     */
+    public static int encodeUnlock(CharSequence passcode, byte[] dst, int offset) {
+        if (!isValidPasscode(passcode) || dst.length - offset < passcode.length() + 1) {
+            return -1;
+        }
+        final int length = passcode.length();
+        for (int i = 0; i < length; i++) {
+            dst[offset + i] = (byte) (KEYPAD_COMMAND_KEY_0 + (passcode.charAt(i) - '0'));
+        }
+        dst[offset + length] = KEYPAD_COMMAND_KEY_ENTER;
+        return length + 1;
+    }
+
+    /**
+     * Encodes the key presses to unlock the door.
+     *
+     * @return The encoded command, or null if the passcode isn't valid.
+     */
+    public static byte[] encodeUnlock(CharSequence passcode) {
+        if (!isValidPasscode(passcode)) {
+            return null;
+        }
+        final byte[] command = new byte[passcode.length() + 1];
+        encodeUnlock(passcode, command, 0);
+        return command;
+    }
+}
@@ -0,0 +1,75 @@
+package net.jpuderer.bluedoor.protocol;
+
+/**
+ * Tracks the connection state of a lock, and the door state it last reported.
+ *
+ * All transitions return a mask of what changed ({@link #CHANGED_CONNECTION_STATE} and/or
+ * {@link #CHANGED_DOOR_STATE}), so callers only need to publish updates when something
+ * actually did.  Not thread safe.
+ */
+public class LockStateMachine {
+    public static final int STATE_DISCONNECTED = 0;
+    public static final int STATE_CONNECTING = 1;
+    public static final int STATE_CONNECTED = 2;
+
+    public static final int DOOR_STATE_UNKNOWN = 0;
+    public static final int DOOR_STATE_LOCKED = 1;
+    public static final int DOOR_STATE_UNLOCKED = 2;
+
+    public static final int CHANGED_NOTHING = 0;
+    public static final int CHANGED_CONNECTION_STATE = 1;
+    public static final int CHANGED_DOOR_STATE = 1 << 1;
+
+    private int mConnectionState = STATE_DISCONNECTED;
+    private int mDoorState = DOOR_STATE_UNKNOWN;
+
+    public int getConnectionState() {
+        return mConnectionState;
+    }
+
+    public int getDoorState() {
+        return mDoorState;
+    }
+
+    public boolean isConnected() {
+        return mConnectionState == STATE_CONNECTED;
+    }
+
+    /**
+     * A connection attempt has started.  Any previous door state is no longer trustworthy.
+     */
+    public int onConnecting() {
+        return setConnectionState(STATE_CONNECTING) | setDoorState(DOOR_STATE_UNKNOWN);
+    }
+
+    public int onConnected() {
+        return setConnectionState(STATE_CONNECTED);
+    }
+
+    public int onDisconnected() {
+        return setConnectionState(STATE_DISCONNECTED) | setDoorState(DOOR_STATE_UNKNOWN);
+    }
+
+    /**
+     * The lock reported the state of the door.  Ignored unless connected, since a stale
+     * status arriving after a disconnect must not resurrect the door state.
+     */
+    public int onDoorStatus(int doorState) {
+        if (mConnectionState != STATE_CONNECTED) {
+            return CHANGED_NOTHING;
+        }
+        return setDoorState(doorState);
+    }
+
+    private int setConnectionState(int state) {
+        if (mConnectionState == state) return CHANGED_NOTHING;
+        mConnectionState = state;
+        return CHANGED_CONNECTION_STATE;
+    }
+
+    private int setDoorState(int state) {
+        if (mDoorState == state) return CHANGED_NOTHING;
+        mDoorState = state;
+        return CHANGED_DOOR_STATE;
+    }
+}
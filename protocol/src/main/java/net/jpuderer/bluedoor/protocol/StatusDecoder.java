@@ -0,0 +1,101 @@
+package net.jpuderer.bluedoor.protocol;
+
+/**
+ * Incremental decoder for status bytes received from the lock over the Bluno serial port.
+ *
+ * Received bytes are appended to a fixed size ring buffer with {@link #feed(byte[])}, and
+ * decoded in arrival order by {@link #drain(Listener)}.  A command start byte (0xFF) with
+ * its opcode split across notifications is handled by leaving the start byte in the buffer
+ * until the opcode arrives.  Nothing is allocated per byte or per notification.
+ */
+public class StatusDecoder {
+    // Must be a power of two
+    private static final int BUFFER_SIZE = 64;
+    private static final int BUFFER_MASK = BUFFER_SIZE - 1;
+
+    /**
+     * Receives decoded events.  Called on the thread calling {@link #drain(Listener)}.
+     */
+    public interface Listener {
+        void onDoorLocked();
+        void onDoorUnlocked();
+        void onLockError();
+        void onUnknownOpcode(int opcode);
+    }
+
+    private final byte[] mBuffer = new byte[BUFFER_SIZE];
+    // Both indices only ever increase; they are masked when used to index the buffer.
+    private int mHead;
+    private int mTail;
+    private int mDroppedBytes;
+
+    /**
+     * Appends received bytes to the buffer.  If the buffer overflows, the oldest bytes are
+     * discarded, since only the most recent status is of any interest.
+     */
+    public void feed(byte[] data) {
+        if (data == null) return;
+        for (int i = 0; i < data.length; i++) {
+            if (mTail - mHead == BUFFER_SIZE) {
+                mHead++;
+                mDroppedBytes++;
+            }
+            mBuffer[mTail & BUFFER_MASK] = data[i];
+            mTail++;
+        }
+    }
+
+    /**
+     * Decodes all complete opcodes in the buffer, in the order they were received.
+     */
+    public void drain(Listener listener) {
+        while (mHead != mTail) {
+            byte b = mBuffer[mHead & BUFFER_MASK];
+            if (b == LockProtocol.START_BYTE) {
+                if (mTail - mHead < 2) {
+                    // Opcode hasn't arrived yet; wait for the next notification.
+                    return;
+                }
+                mHead++;
+                b = mBuffer[mHead & BUFFER_MASK];
+                if (b == LockProtocol.START_BYTE) {
+                    // Repeated start byte; treat the second one as the new start.
+                    continue;
+                }
+            }
+            mHead++;
+            dispatch(b, listener);
+        }
+    }
+
+    /**
+     * Returns the number of bytes discarded due to overflow since the last call.
+     */
+    public int takeDroppedBytes() {
+        final int dropped = mDroppedBytes;
+        mDroppedBytes = 0;
+        return dropped;
+    }
+
+    public void reset() {
+        mHead = mTail = 0;
+        mDroppedBytes = 0;
+    }
+
+    private static void dispatch(byte b, Listener listener) {
+        switch (b) {
+            case LockProtocol.LOCK_STATUS_BYTE:
+                listener.onDoorLocked();
+                break;
+            case LockProtocol.UNLOCK_STATUS_BYTE:
+                listener.onDoorUnlocked();
+                break;
+            case LockProtocol.ERROR_STATUS_BYTE:
+                listener.onLockError();
+                break;
+            default:
+                listener.onUnknownOpcode(b & 0xFF);
+                break;
+        }
+    }
+}
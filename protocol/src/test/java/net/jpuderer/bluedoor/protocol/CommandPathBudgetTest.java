@@ -0,0 +1,205 @@
+package net.jpuderer.bluedoor.protocol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.*;
+
+/**
+ * Budgets for the command path, so changes that make it chattier or slower fail the build.
+ *
+ * The connection scenarios run a {@link VirtualLockClient}, which drives its link the way
+ * the app's {@code LockSession} drives the real one, against the scripted GATT link and
+ * virtual lock.  They count GATT operations issued, notifications the lock had to send,
+ * and door state changes published to listeners (each of which the app turns into a state
+ * update and, at most, one status notification), and check the simulated latency.  Since
+ * nothing real is timed, the figures are exact, and the budgets can be tight.
+ *
+ * The allocation budgets cover the protocol code each command and status goes through,
+ * measured with the JVM's per thread allocation counter.
+ *
+ *     ./gradlew :protocol:perfTest
+ */
+public class CommandPathBudgetTest {
+    private static final String PASSCODE = "123456";
+
+    // Descriptor write, status request, and one frame for the whole unlock
+    private static final int COLD_UNLOCK_GATT_OPERATIONS = 3;
+    // The status reply, and the unlock relayed back
+    private static final int COLD_UNLOCK_NOTIFICATIONS = 2;
+    private static final int COLD_UNLOCK_STATE_CHANGES = 2;
+    // Connect, discover, then six digits and enter at the firmware's pace; see
+    // VirtualLockBench for the breakdown
+    private static final long COLD_UNLOCK_LATENCY_MS = 2600;
+    // Over an open connection: one write, one notification, one state change
+    private static final int WARM_COMMAND_GATT_OPERATIONS = 1;
+    private static final int WARM_COMMAND_NOTIFICATIONS = 1;
+    private static final int WARM_COMMAND_STATE_CHANGES = 1;
+    private static final long WARM_UNLOCK_LATENCY_MS = 1600;
+
+    // Bytes allocated per operation.  The buffer paths must not allocate at all; the
+    // convenience encoder allocates only the command it returns.
+    private static final double DECODE_ALLOCATION_BYTES = 0;
+    private static final double ENCODE_INTO_BUFFER_ALLOCATION_BYTES = 0;
+    private static final double ENCODE_ALLOCATION_BYTES = 32;
+
+    private static final int ALLOCATION_WARMUP = 20000;
+    private static final int ALLOCATION_ITERATIONS = 100000;
+    private static final int CYCLES = 20;
+
+    private VirtualClock mClock;
+    private VirtualDoorLock mLock;
+    private VirtualGattLink mLink;
+    private VirtualLockClient mClient;
+    private int mStateChanges;
+    private long mUnlockedAt;
+
+    @Before
+    public void setUp() {
+        mClock = new VirtualClock();
+        mLock = new VirtualDoorLock(mClock, PASSCODE);
+        mLock.operateByHand(true);
+        mClock.runUntilIdle(60000);
+        mLink = new VirtualGattLink(mClock, mLock);
+        mClient = new VirtualLockClient(mClock, mLink);
+        mUnlockedAt = -1;
+        mClient.setListener(new VirtualLockClient.Listener() {
+            @Override
+            public void onDoorStateChanged(int doorState, long now) {
+                mStateChanges++;
+                if (doorState == LockStateMachine.DOOR_STATE_UNLOCKED) mUnlockedAt = now;
+            }
+        });
+    }
+
+    @Test
+    public void coldUnlock() throws Exception {
+        final long start = mClock.now();
+        final int startNotifications = mLock.getNotificationCount();
+        mClient.connect(false);
+        mClient.send(LockProtocol.encodeUnlock(PASSCODE));
+        mClock.runUntilIdle(60000);
+
+        assertFalse(mLock.isLocked());
+        assertBudget("GATT operations", COLD_UNLOCK_GATT_OPERATIONS, mLink.getWriteCount());
+        assertBudget("notifications", COLD_UNLOCK_NOTIFICATIONS,
+                mLock.getNotificationCount() - startNotifications);
+        assertBudget("state changes", COLD_UNLOCK_STATE_CHANGES, mStateChanges);
+        assertBudget("latency (ms)", COLD_UNLOCK_LATENCY_MS, mUnlockedAt - start);
+    }
+
+    @Test
+    public void warmCommands() throws Exception {
+        mClient.connect(false);
+        mClock.runUntilIdle(60000);
+        final byte[] lockCommand = { LockProtocol.KEYPAD_COMMAND_LOCK };
+        final byte[] unlockCommand = LockProtocol.encodeUnlock(PASSCODE);
+        long worstUnlock = 0;
+
+        for (int i = 0; i < CYCLES; i++) {
+            final byte[] command = (i % 2 == 0) ? unlockCommand : lockCommand;
+            final int startWrites = mLink.getWriteCount();
+            final int startNotifications = mLock.getNotificationCount();
+            final int startChanges = mStateChanges;
+            final long start = mClock.now();
+            mClient.send(command);
+            mClock.runUntilIdle(60000);
+
+            assertBudget("GATT operations per command", WARM_COMMAND_GATT_OPERATIONS,
+                    mLink.getWriteCount() - startWrites);
+            assertBudget("notifications per command", WARM_COMMAND_NOTIFICATIONS,
+                    mLock.getNotificationCount() - startNotifications);
+            assertBudget("state changes per command", WARM_COMMAND_STATE_CHANGES,
+                    mStateChanges - startChanges);
+            if (command == unlockCommand) {
+                worstUnlock = Math.max(worstUnlock, mUnlockedAt - start);
+            }
+        }
+        assertBudget("warm unlock latency (ms)", WARM_UNLOCK_LATENCY_MS, worstUnlock);
+        assertEquals(0, mClient.getErrorCount());
+    }
+
+    @Test
+    public void decodeAllocations() throws Exception {
+        final StatusDecoder decoder = new StatusDecoder();
+        final LockStateMachine stateMachine = new LockStateMachine();
+        stateMachine.onConnected();
+        final byte[] status = { LockProtocol.UNLOCK_STATUS_BYTE };
+        final StatusDecoder.Listener listener = new StatusDecoder.Listener() {
+            @Override
+            public void onDoorLocked() {
+                stateMachine.onDoorStatus(LockStateMachine.DOOR_STATE_LOCKED);
+            }
+
+            @Override
+            public void onDoorUnlocked() {
+                stateMachine.onDoorStatus(LockStateMachine.DOOR_STATE_UNLOCKED);
+            }
+
+            @Override
+            public void onLockError() { }
+
+            @Override
+            public void onUnknownOpcode(int opcode) { }
+        };
+        assertAllocationBudget("decode", DECODE_ALLOCATION_BYTES, new Runnable() {
+            @Override
+            public void run() {
+                decoder.feed(status);
+                decoder.drain(listener);
+            }
+        });
+    }
+
+    @Test
+    public void encodeAllocations() throws Exception {
+        final byte[] buffer = new byte[LockProtocol.MAX_COMMAND_LENGTH];
+        assertAllocationBudget("encode into buffer", ENCODE_INTO_BUFFER_ALLOCATION_BYTES,
+                new Runnable() {
+            @Override
+            public void run() {
+                LockProtocol.encodeUnlock(PASSCODE, buffer, 0);
+            }
+        });
+        assertAllocationBudget("encode", ENCODE_ALLOCATION_BYTES, new Runnable() {
+            @Override
+            public void run() {
+                buffer[0] = LockProtocol.encodeUnlock(PASSCODE)[0];
+            }
+        });
+    }
+
+    private static void assertBudget(String what, long budget, long actual) {
+        assertTrue(what + ": " + actual + ", budget " + budget, actual <= budget);
+    }
+
+    private static void assertAllocationBudget(String what, double budget, Runnable operation) {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            // Not a JVM that counts allocations; nothing to check against
+            return;
+        }
+        final com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        if (!threadBean.isThreadAllocatedMemorySupported()
+                || !threadBean.isThreadAllocatedMemoryEnabled()) {
+            return;
+        }
+        final long thread = Thread.currentThread().getId();
+        for (int i = 0; i < ALLOCATION_WARMUP; i++) {
+            operation.run();
+        }
+        final long start = threadBean.getThreadAllocatedBytes(thread);
+        for (int i = 0; i < ALLOCATION_ITERATIONS; i++) {
+            operation.run();
+        }
+        final long allocated = threadBean.getThreadAllocatedBytes(thread) - start;
+        // Reading the counter allocates a little itself; less than a byte per operation
+        // once spread over the run
+        final double perOperation = (double) allocated / ALLOCATION_ITERATIONS;
+        assertTrue(String.format("%s: %.2f bytes/op, budget %.0f", what, perOperation, budget),
+                perOperation < budget + 1);
+    }
+}
@@ -0,0 +1,50 @@
+package net.jpuderer.bluedoor.protocol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LockProtocolTest {
+    @Test
+    public void encodeUnlock_appendsEnter() throws Exception {
+        assertArrayEquals(new byte[] { 0x31, 0x32, 0x33, 0x34, LockProtocol.KEYPAD_COMMAND_KEY_ENTER },
+                LockProtocol.encodeUnlock("1234"));
+    }
+
+    @Test
+    public void encodeUnlock_rejectsInvalidPasscodes() throws Exception {
+        assertNull(LockProtocol.encodeUnlock(""));
+        assertNull(LockProtocol.encodeUnlock("12a4"));
+        assertNull(LockProtocol.encodeUnlock("12345678901234567"));
+    }
+
+    @Test
+    public void encodeUnlock_intoBuffer() throws Exception {
+        final byte[] buffer = new byte[LockProtocol.MAX_COMMAND_LENGTH];
+        assertEquals(LockProtocol.MAX_COMMAND_LENGTH,
+                LockProtocol.encodeUnlock("0123456789012345", buffer, 0));
+        assertEquals(-1, LockProtocol.encodeUnlock("0000", buffer, buffer.length - 4));
+    }
+
+    @Test
+    public void keyForDigit() throws Exception {
+        assertEquals(LockProtocol.KEYPAD_COMMAND_KEY_0, LockProtocol.keyForDigit(0));
+        assertEquals(LockProtocol.KEYPAD_COMMAND_KEY_9, LockProtocol.keyForDigit(9));
+    }
+
+    @Test
+    public void stateMachine_ignoresStatusWhileDisconnected() throws Exception {
+        final LockStateMachine stateMachine = new LockStateMachine();
+        assertEquals(LockStateMachine.CHANGED_NOTHING,
+                stateMachine.onDoorStatus(LockStateMachine.DOOR_STATE_LOCKED));
+        assertEquals(LockStateMachine.CHANGED_CONNECTION_STATE, stateMachine.onConnecting());
+        assertEquals(LockStateMachine.CHANGED_CONNECTION_STATE, stateMachine.onConnected());
+        assertEquals(LockStateMachine.CHANGED_DOOR_STATE,
+                stateMachine.onDoorStatus(LockStateMachine.DOOR_STATE_LOCKED));
+        assertEquals(LockStateMachine.CHANGED_NOTHING,
+                stateMachine.onDoorStatus(LockStateMachine.DOOR_STATE_LOCKED));
+        assertEquals(LockStateMachine.CHANGED_CONNECTION_STATE | LockStateMachine.CHANGED_DOOR_STATE,
+                stateMachine.onDisconnected());
+        assertEquals(LockStateMachine.DOOR_STATE_UNKNOWN, stateMachine.getDoorState());
+    }
+}
@@ -0,0 +1,69 @@
+package net.jpuderer.bluedoor.protocol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class StatusDecoderTest {
+    private StatusDecoder mDecoder;
+    private StringBuilder mEvents;
+
+    private final StatusDecoder.Listener mListener = new StatusDecoder.Listener() {
+        @Override
+        public void onDoorLocked() { mEvents.append('L'); }
+
+        @Override
+        public void onDoorUnlocked() { mEvents.append('U'); }
+
+        @Override
+        public void onLockError() { mEvents.append('E'); }
+
+        @Override
+        public void onUnknownOpcode(int opcode) { mEvents.append('?'); }
+    };
+
+    @Before
+    public void setUp() {
+        mDecoder = new StatusDecoder();
+        mEvents = new StringBuilder();
+    }
+
+    private void receive(int... bytes) {
+        final byte[] data = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) data[i] = (byte) bytes[i];
+        mDecoder.feed(data);
+        mDecoder.drain(mListener);
+    }
+
+    @Test
+    public void decodesInArrivalOrder() throws Exception {
+        receive(0x61, 0x62, 0x66, 0x10);
+        assertEquals("LUE?", mEvents.toString());
+    }
+
+    @Test
+    public void startByteSplitAcrossNotifications() throws Exception {
+        receive(0x62, 0xFF);
+        assertEquals("U", mEvents.toString());
+        receive(0x61);
+        assertEquals("UL", mEvents.toString());
+    }
+
+    @Test
+    public void repeatedStartBytes() throws Exception {
+        receive(0xFF, 0xFF, 0xFF, 0x62);
+        assertEquals("U", mEvents.toString());
+    }
+
+    @Test
+    public void overflowKeepsNewestBytes() throws Exception {
+        final byte[] data = new byte[100];
+        for (int i = 0; i < data.length; i++) data[i] = 0x61;
+        data[data.length - 1] = 0x62;
+        mDecoder.feed(data);
+        mDecoder.drain(mListener);
+        assertEquals(36, mDecoder.takeDroppedBytes());
+        assertEquals('U', mEvents.charAt(mEvents.length() - 1));
+    }
+}
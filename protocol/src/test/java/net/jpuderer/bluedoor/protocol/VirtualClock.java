@@ -0,0 +1,80 @@
+package net.jpuderer.bluedoor.protocol;
+
+import java.util.PriorityQueue;
+
+/**
+ * A clock that only moves when told to, for running timed simulations instantly and
+ * deterministically.  Tasks scheduled for the same time run in the order they were
+ * scheduled.  Not thread safe; everything runs on the thread advancing the clock.
+ */
+public class VirtualClock {
+    private static final class Task implements Comparable<Task> {
+        final long mTime;
+        final long mSequence;
+        final Runnable mRunnable;
+
+        Task(long time, long sequence, Runnable runnable) {
+            mTime = time;
+            mSequence = sequence;
+            mRunnable = runnable;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (mTime != other.mTime) return mTime < other.mTime ? -1 : 1;
+            return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+        }
+    }
+
+    private final PriorityQueue<Task> mTasks = new PriorityQueue<Task>();
+    private long mNow;
+    private long mSequence;
+
+    /**
+     * Returns the current time, in milliseconds since the clock was created.
+     */
+    public long now() {
+        return mNow;
+    }
+
+    public void schedule(Runnable runnable, long delayMs) {
+        mTasks.add(new Task(mNow + Math.max(0, delayMs), mSequence++, runnable));
+    }
+
+    public boolean isIdle() {
+        return mTasks.isEmpty();
+    }
+
+    /**
+     * Runs tasks in time order until none are left.
+     *
+     * @throws IllegalStateException if tasks keep scheduling more for over {@code limitMs}.
+     */
+    public void runUntilIdle(long limitMs) {
+        final long deadline = mNow + limitMs;
+        while (!mTasks.isEmpty()) {
+            if (mTasks.peek().mTime > deadline) {
+                throw new IllegalStateException("Still busy after " + limitMs + "ms");
+            }
+            runNext();
+        }
+    }
+
+    /**
+     * Runs the tasks due in the next {@code durationMs}, and leaves the clock at the end of
+     * that period.
+     */
+    public void advance(long durationMs) {
+        final long target = mNow + durationMs;
+        while (!mTasks.isEmpty() && mTasks.peek().mTime <= target) {
+            runNext();
+        }
+        mNow = target;
+    }
+
+    private void runNext() {
+        final Task task = mTasks.poll();
+        mNow = task.mTime;
+        task.mRunnable.run();
+    }
+}
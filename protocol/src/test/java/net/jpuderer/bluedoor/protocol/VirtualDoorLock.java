@@ -0,0 +1,205 @@
+package net.jpuderer.bluedoor.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * A software stand-in for the Bluno Beetle running {@code DoorLock.ino}, and the lock
+ * behind it, driven by a {@link VirtualClock}.
+ *
+ * Like the firmware, a null byte written to the serial port is answered straight away with
+ * the last status the lock reported, and any other byte is forwarded to the lock, taking
+ * {@link #COMMAND_PULSE_MS} + {@link #COMMAND_SETTLE_MS} per byte.  Whatever the lock sends
+ * back is relayed to the central the next time round the firmware's loop.  The firmware
+ * sleeps when idle and waits {@link #LOOP_DELAY_MS} after waking before it reads anything,
+ * so the first command after a quiet spell pays that too.
+ *
+ * The lock checks entries against its passcode when enter is pressed, answering with the
+ * unlocked or error status, and answers the lock key with the locked status.
+ */
+public class VirtualDoorLock {
+    // Timing of writeDoorCommand() and loop() in the firmware
+    public static final long COMMAND_PULSE_MS = 30;
+    public static final long COMMAND_SETTLE_MS = 150;
+    public static final long LOOP_DELAY_MS = 100;
+
+    // The Bluno relays serial data in notifications of at most this many bytes
+    public static final int MAX_NOTIFICATION_SIZE = 20;
+
+    /**
+     * Receives what the Bluno sends back over its serial characteristic.
+     */
+    public interface Listener {
+        void onNotification(byte[] data);
+    }
+
+    private final VirtualClock mClock;
+    private final String mPasscode;
+    private Listener mListener;
+
+    // Bytes written by the central that the firmware hasn't read yet
+    private final ArrayDeque<Byte> mSerialInput = new ArrayDeque<Byte>();
+    // Bytes from the lock that the firmware hasn't relayed yet
+    private final ByteArrayOutputStream mDoorOutput = new ByteArrayOutputStream();
+    private final StringBuilder mKeys = new StringBuilder();
+
+    // The firmware starts out assuming the door is unlocked
+    private byte mLastDoorStatus = LockProtocol.UNLOCK_STATUS_BYTE;
+    private boolean mLocked;
+    private boolean mAwake;
+    // Whether the current pass round the loop did anything, so can't go to sleep
+    private boolean mActivity;
+
+    private int mForwardedBytes;
+    private int mNotifications;
+
+    private final Runnable mLoopRunnable = new Runnable() {
+        @Override
+        public void run() {
+            loop();
+        }
+    };
+
+    private final Runnable mReadSerialRunnable = new Runnable() {
+        @Override
+        public void run() {
+            readSerial();
+        }
+    };
+
+    public VirtualDoorLock(VirtualClock clock, String passcode) {
+        mClock = clock;
+        mPasscode = passcode;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Bytes written by the central to the serial characteristic.
+     */
+    public void onSerialWrite(byte[] data) {
+        for (byte b : data) {
+            mSerialInput.add(b);
+        }
+        wake();
+    }
+
+    /**
+     * Someone locks or unlocks the door by hand, at the lock.
+     */
+    public void operateByHand(boolean lock) {
+        mLocked = lock;
+        doorOutput(lock ? LockProtocol.LOCK_STATUS_BYTE : LockProtocol.UNLOCK_STATUS_BYTE);
+    }
+
+    public boolean isLocked() {
+        return mLocked;
+    }
+
+    /**
+     * Returns the number of bytes forwarded to the lock so far.
+     */
+    public int getForwardedBytes() {
+        return mForwardedBytes;
+    }
+
+    public int getNotificationCount() {
+        return mNotifications;
+    }
+
+    private void wake() {
+        if (!mAwake) {
+            mAwake = true;
+            mClock.schedule(mLoopRunnable, LOOP_DELAY_MS);
+        }
+    }
+
+    private void loop() {
+        mActivity = false;
+        if (mDoorOutput.size() > 0) {
+            mActivity = true;
+            final byte[] output = mDoorOutput.toByteArray();
+            mDoorOutput.reset();
+            for (byte b : output) {
+                if (b == LockProtocol.LOCK_STATUS_BYTE || b == LockProtocol.UNLOCK_STATUS_BYTE) {
+                    mLastDoorStatus = b;
+                }
+            }
+            notifyCentral(output);
+        }
+        readSerial();
+    }
+
+    // Reads serial input until there's none left.  Forwarding a byte to the lock blocks
+    // the firmware, so bytes that arrive meanwhile are read in the same pass.
+    private void readSerial() {
+        while (!mSerialInput.isEmpty()) {
+            final byte b = mSerialInput.poll();
+            mActivity = true;
+            if (b == LockProtocol.GET_STATUS_COMMAND) {
+                notifyCentral(new byte[] { mLastDoorStatus });
+                continue;
+            }
+            mForwardedBytes++;
+            mClock.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    onKey(b);
+                }
+            }, COMMAND_PULSE_MS);
+            mClock.schedule(mReadSerialRunnable, COMMAND_PULSE_MS + COMMAND_SETTLE_MS);
+            return;
+        }
+        if (mActivity) {
+            mClock.schedule(mLoopRunnable, LOOP_DELAY_MS);
+        } else {
+            // Sleeps until the next serial input
+            mAwake = false;
+            if (!mSerialInput.isEmpty() || mDoorOutput.size() > 0) {
+                wake();
+            }
+        }
+    }
+
+    private void onKey(byte key) {
+        if (key == LockProtocol.KEYPAD_COMMAND_LOCK) {
+            mKeys.setLength(0);
+            mLocked = true;
+            doorOutput(LockProtocol.LOCK_STATUS_BYTE);
+        } else if (key >= LockProtocol.KEYPAD_COMMAND_KEY_0
+                && key <= LockProtocol.KEYPAD_COMMAND_KEY_9) {
+            if (mKeys.length() < LockProtocol.MAX_PASSCODE_LENGTH) {
+                mKeys.append((char) ('0' + key - LockProtocol.KEYPAD_COMMAND_KEY_0));
+            }
+        } else if (key == LockProtocol.KEYPAD_COMMAND_KEY_ENTER) {
+            if (mKeys.toString().equals(mPasscode)) {
+                mLocked = false;
+                doorOutput(LockProtocol.UNLOCK_STATUS_BYTE);
+            } else {
+                doorOutput(LockProtocol.ERROR_STATUS_BYTE);
+            }
+            mKeys.setLength(0);
+        } else if (key == LockProtocol.KEYPAD_COMMAND_KEY_CANCEL) {
+            mKeys.setLength(0);
+        }
+    }
+
+    private void doorOutput(byte b) {
+        mDoorOutput.write(b);
+        wake();
+    }
+
+    private void notifyCentral(byte[] data) {
+        for (int offset = 0; offset < data.length; offset += MAX_NOTIFICATION_SIZE) {
+            final byte[] notification = Arrays.copyOfRange(data, offset,
+                    Math.min(data.length, offset + MAX_NOTIFICATION_SIZE));
+            mNotifications++;
+            if (mListener != null) {
+                mListener.onNotification(notification);
+            }
+        }
+    }
+}
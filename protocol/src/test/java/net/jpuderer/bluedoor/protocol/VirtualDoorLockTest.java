@@ -0,0 +1,117 @@
+package net.jpuderer.bluedoor.protocol;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+
+import static org.junit.Assert.*;
+
+public class VirtualDoorLockTest {
+    private static final String PASSCODE = "1234";
+    private static final long FORWARD_MS =
+            VirtualDoorLock.COMMAND_PULSE_MS + VirtualDoorLock.COMMAND_SETTLE_MS;
+
+    private VirtualClock mClock;
+    private VirtualDoorLock mLock;
+    // Each notification, as "<time>:<first byte>"
+    private ArrayList<String> mNotifications;
+
+    @Before
+    public void setUp() {
+        mClock = new VirtualClock();
+        mLock = new VirtualDoorLock(mClock, PASSCODE);
+        mNotifications = new ArrayList<String>();
+        mLock.setListener(new VirtualDoorLock.Listener() {
+            @Override
+            public void onNotification(byte[] data) {
+                mNotifications.add(mClock.now() + ":" + Integer.toHexString(data[0] & 0xFF));
+            }
+        });
+    }
+
+    @Test
+    public void statusRequestAnsweredAfterWaking() throws Exception {
+        mLock.onSerialWrite(new byte[] { LockProtocol.GET_STATUS_COMMAND });
+        mClock.runUntilIdle(10000);
+        // The firmware assumes unlocked until it hears otherwise
+        assertEquals("[100:62]", mNotifications.toString());
+        assertEquals(0, mLock.getForwardedBytes());
+    }
+
+    @Test
+    public void lockCommandForwardedAndEchoed() throws Exception {
+        mLock.onSerialWrite(new byte[] { LockProtocol.KEYPAD_COMMAND_LOCK });
+        mClock.runUntilIdle(10000);
+        assertTrue(mLock.isLocked());
+        // Woken at 0, reads at 100, forwarding done at 280, relayed on the next pass
+        final long relayed = VirtualDoorLock.LOOP_DELAY_MS + FORWARD_MS
+                + VirtualDoorLock.LOOP_DELAY_MS;
+        assertEquals("[" + relayed + ":61]", mNotifications.toString());
+    }
+
+    @Test
+    public void unlockTakesTimePerByte() throws Exception {
+        mLock.operateByHand(true);
+        mClock.runUntilIdle(10000);
+        mNotifications.clear();
+        final long start = mClock.now();
+
+        mLock.onSerialWrite(LockProtocol.encodeUnlock(PASSCODE));
+        mClock.runUntilIdle(10000);
+        assertFalse(mLock.isLocked());
+        assertEquals(5, mLock.getForwardedBytes());
+        final long relayed = start + VirtualDoorLock.LOOP_DELAY_MS + 5 * FORWARD_MS
+                + VirtualDoorLock.LOOP_DELAY_MS;
+        assertEquals("[" + relayed + ":62]", mNotifications.toString());
+    }
+
+    @Test
+    public void wrongPasscodeReportsError() throws Exception {
+        mLock.operateByHand(true);
+        mLock.onSerialWrite(LockProtocol.encodeUnlock("4321"));
+        mClock.runUntilIdle(10000);
+        assertTrue(mLock.isLocked());
+        assertEquals("66", mNotifications.get(mNotifications.size() - 1).split(":")[1]);
+    }
+
+    @Test
+    public void statusRequestReturnsLastStatus() throws Exception {
+        mLock.operateByHand(true);
+        mClock.runUntilIdle(10000);
+        mNotifications.clear();
+        mLock.onSerialWrite(new byte[] { LockProtocol.GET_STATUS_COMMAND });
+        mClock.runUntilIdle(10000);
+        assertEquals(1, mNotifications.size());
+        assertEquals("61", mNotifications.get(0).split(":")[1]);
+    }
+
+    @Test
+    public void unlockOverLink() throws Exception {
+        mLock.operateByHand(true);
+        mClock.runUntilIdle(10000);
+        final VirtualGattLink link = new VirtualGattLink(mClock, mLock);
+        final VirtualLockClient client = new VirtualLockClient(mClock, link);
+        final long[] unlockedAt = { -1 };
+        client.setListener(new VirtualLockClient.Listener() {
+            @Override
+            public void onDoorStateChanged(int doorState, long now) {
+                if (doorState == LockStateMachine.DOOR_STATE_UNLOCKED) unlockedAt[0] = now;
+            }
+        });
+
+        final long start = mClock.now();
+        client.connect(false);
+        client.send(LockProtocol.encodeUnlock(PASSCODE));
+        mClock.runUntilIdle(10000);
+
+        assertFalse(mLock.isLocked());
+        assertEquals(LockStateMachine.DOOR_STATE_UNLOCKED, client.getStateMachine().getDoorState());
+        assertEquals(0, client.getErrorCount());
+        // Descriptor, status request and one frame for the whole command
+        assertEquals(3, link.getWriteCount());
+        // Can't be quicker than connecting plus the firmware's time per byte
+        assertTrue(unlockedAt[0] - start > VirtualGattLink.DEFAULT_CONNECT_MS
+                + VirtualGattLink.DEFAULT_DISCOVERY_MS + 5 * FORWARD_MS);
+    }
+}
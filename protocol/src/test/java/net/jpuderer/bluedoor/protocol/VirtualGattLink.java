@@ -0,0 +1,166 @@
+package net.jpuderer.bluedoor.protocol;
+
+/**
+ * Models the BLE link between the phone and a {@link VirtualDoorLock}, at the level the
+ * app's GATT code sees it: a connection that takes a while to come up, writes to the
+ * serial characteristic that complete one at a time, and notifications coming back.
+ *
+ * Traffic only moves at connection events, every {@code connectionIntervalMs}.  A write
+ * request goes out at the next event and its response comes back at the one after, so a
+ * write with response costs up to two intervals.  Notifications go out at the next event.
+ */
+public class VirtualGattLink {
+    // What Android typically negotiates with CONNECTION_PRIORITY_BALANCED
+    public static final long DEFAULT_CONNECTION_INTERVAL_MS = 45;
+    // Time to establish the link, and to discover the Bluno's services over it
+    public static final long DEFAULT_CONNECT_MS = 300;
+    public static final long DEFAULT_DISCOVERY_MS = 600;
+
+    /**
+     * The phone's side of the link.
+     */
+    public interface Central {
+        /**
+         * The link is up and services are discovered, so writes may start.
+         */
+        void onReady();
+
+        void onWriteComplete(boolean success);
+
+        void onNotification(byte[] data);
+    }
+
+    private final VirtualClock mClock;
+    private final VirtualDoorLock mLock;
+    private final long mConnectMs;
+    private final long mDiscoveryMs;
+    private final long mConnectionIntervalMs;
+
+    private Central mCentral;
+    private boolean mConnected;
+    private boolean mReady;
+    private boolean mWriteInFlight;
+    private boolean mNotificationsEnabled;
+    private long mConnectedAt;
+    private int mWrites;
+
+    public VirtualGattLink(VirtualClock clock, VirtualDoorLock lock) {
+        this(clock, lock, DEFAULT_CONNECT_MS, DEFAULT_DISCOVERY_MS,
+                DEFAULT_CONNECTION_INTERVAL_MS);
+    }
+
+    public VirtualGattLink(VirtualClock clock, VirtualDoorLock lock, long connectMs,
+                           long discoveryMs, long connectionIntervalMs) {
+        mClock = clock;
+        mLock = lock;
+        mConnectMs = connectMs;
+        mDiscoveryMs = discoveryMs;
+        mConnectionIntervalMs = connectionIntervalMs;
+        mLock.setListener(new VirtualDoorLock.Listener() {
+            @Override
+            public void onNotification(final byte[] data) {
+                if (!mConnected) return;
+                mClock.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (mReady && mNotificationsEnabled) mCentral.onNotification(data);
+                    }
+                }, untilNextEvent());
+            }
+        });
+    }
+
+    /**
+     * Connects and discovers services.  Pass {@code fastReconnect} to skip discovery, as
+     * the app does when it already knows the lock's GATT layout.
+     */
+    public void connect(Central central, boolean fastReconnect) {
+        mCentral = central;
+        mClock.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mConnected = true;
+                mConnectedAt = mClock.now();
+            }
+        }, mConnectMs);
+        mClock.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mReady = true;
+                mCentral.onReady();
+            }
+        }, mConnectMs + (fastReconnect ? 0 : mDiscoveryMs));
+    }
+
+    public void disconnect() {
+        mConnected = false;
+        mReady = false;
+        mWriteInFlight = false;
+        mNotificationsEnabled = false;
+    }
+
+    /**
+     * Writes a frame to the serial characteristic.  Like {@code BluetoothGatt}, only one
+     * operation may be outstanding at a time.
+     *
+     * @return Return false if the link isn't ready or an operation is already in flight.
+     */
+    public boolean write(final byte[] frame) {
+        return startOperation(new Runnable() {
+            @Override
+            public void run() {
+                mLock.onSerialWrite(frame);
+            }
+        });
+    }
+
+    /**
+     * Writes the client characteristic configuration descriptor, so notifications from
+     * the serial characteristic are delivered.  Completes like a write.
+     */
+    public boolean enableNotifications() {
+        return startOperation(new Runnable() {
+            @Override
+            public void run() {
+                mNotificationsEnabled = true;
+            }
+        });
+    }
+
+    private boolean startOperation(final Runnable atPeripheral) {
+        if (!mReady || mWriteInFlight) {
+            return false;
+        }
+        mWriteInFlight = true;
+        mWrites++;
+        final long requestDelay = untilNextEvent();
+        mClock.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (mReady) atPeripheral.run();
+            }
+        }, requestDelay);
+        mClock.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!mWriteInFlight) return;
+                mWriteInFlight = false;
+                mCentral.onWriteComplete(true);
+            }
+        }, requestDelay + mConnectionIntervalMs);
+        return true;
+    }
+
+    /**
+     * Returns the number of GATT operations issued, including descriptor writes.
+     */
+    public int getWriteCount() {
+        return mWrites;
+    }
+
+    // Time from now to the next connection event
+    private long untilNextEvent() {
+        final long sinceConnected = mClock.now() - mConnectedAt;
+        return mConnectionIntervalMs - (sinceConnected % mConnectionIntervalMs);
+    }
+}
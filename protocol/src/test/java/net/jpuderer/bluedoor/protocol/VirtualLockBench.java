@@ -0,0 +1,111 @@
+package net.jpuderer.bluedoor.protocol;
+
+import java.util.Locale;
+
+/**
+ * Connect-to-unlock latency and command throughput against a {@link VirtualDoorLock}, in
+ * simulated time.  Since nothing real is timed, the figures are exact and repeatable; they
+ * move only when the command path or the link parameters change.
+ *
+ *     ./gradlew :protocol:virtualLockBench
+ *
+ * Link parameters can be given as arguments: connect ms, discovery ms, connection interval
+ * ms.
+ */
+public class VirtualLockBench {
+    private static final String PASSCODE = "123456";
+    private static final int CYCLES = 50;
+
+    public static void main(String[] args) {
+        final long connectMs = (args.length > 0) ? Long.parseLong(args[0]) :
+                VirtualGattLink.DEFAULT_CONNECT_MS;
+        final long discoveryMs = (args.length > 1) ? Long.parseLong(args[1]) :
+                VirtualGattLink.DEFAULT_DISCOVERY_MS;
+        final long intervalMs = (args.length > 2) ? Long.parseLong(args[2]) :
+                VirtualGattLink.DEFAULT_CONNECTION_INTERVAL_MS;
+        System.out.println(String.format(Locale.US,
+                "Link: connect %dms, discovery %dms, interval %dms; passcode of %d digits",
+                connectMs, discoveryMs, intervalMs, PASSCODE.length()));
+
+        report("connect-to-unlock (cold)",
+                connectToUnlock(connectMs, discoveryMs, intervalMs, false));
+        report("connect-to-unlock (fast reconnect)",
+                connectToUnlock(connectMs, discoveryMs, intervalMs, true));
+        reportThroughput("lock/unlock cycles, one write per command",
+                cycles(connectMs, discoveryMs, intervalMs, VirtualLockClient.FRAME_SIZE));
+        reportThroughput("lock/unlock cycles, one write per key",
+                cycles(connectMs, discoveryMs, intervalMs, 1));
+    }
+
+    /**
+     * Returns the simulated time from starting to connect until the unlock is reported.
+     */
+    static long connectToUnlock(long connectMs, long discoveryMs, long intervalMs,
+                                boolean fastReconnect) {
+        final VirtualClock clock = new VirtualClock();
+        final VirtualDoorLock lock = new VirtualDoorLock(clock, PASSCODE);
+        lock.operateByHand(true);
+        clock.runUntilIdle(60000);
+
+        final VirtualGattLink link = new VirtualGattLink(clock, lock, connectMs, discoveryMs,
+                intervalMs);
+        final VirtualLockClient client = new VirtualLockClient(clock, link);
+        final long[] unlockedAt = { -1 };
+        client.setListener(new VirtualLockClient.Listener() {
+            @Override
+            public void onDoorStateChanged(int doorState, long now) {
+                if (doorState == LockStateMachine.DOOR_STATE_UNLOCKED) unlockedAt[0] = now;
+            }
+        });
+        final long start = clock.now();
+        client.connect(fastReconnect);
+        client.send(LockProtocol.encodeUnlock(PASSCODE));
+        clock.runUntilIdle(60000);
+        return unlockedAt[0] - start;
+    }
+
+    /**
+     * Runs lock/unlock cycles over an established connection, each command sent as soon as
+     * the previous one is reported.
+     *
+     * @return The total simulated time, and the number of GATT writes.
+     */
+    static long[] cycles(long connectMs, long discoveryMs, long intervalMs, int frameSize) {
+        final VirtualClock clock = new VirtualClock();
+        final VirtualDoorLock lock = new VirtualDoorLock(clock, PASSCODE);
+        final VirtualGattLink link = new VirtualGattLink(clock, lock, connectMs, discoveryMs,
+                intervalMs);
+        final VirtualLockClient client = new VirtualLockClient(clock, link, frameSize);
+        final byte[] lockCommand = { LockProtocol.KEYPAD_COMMAND_LOCK };
+        final byte[] unlockCommand = LockProtocol.encodeUnlock(PASSCODE);
+        client.connect(false);
+        clock.runUntilIdle(60000);
+
+        final int[] remaining = { CYCLES * 2 };
+        client.setListener(new VirtualLockClient.Listener() {
+            @Override
+            public void onDoorStateChanged(int doorState, long now) {
+                if (--remaining[0] > 0) {
+                    client.send(doorState == LockStateMachine.DOOR_STATE_LOCKED ?
+                            unlockCommand : lockCommand);
+                }
+            }
+        });
+        final long start = clock.now();
+        final int startWrites = link.getWriteCount();
+        client.send(lockCommand);
+        clock.runUntilIdle(CYCLES * 60000L);
+        return new long[] { clock.now() - start, link.getWriteCount() - startWrites };
+    }
+
+    private static void report(String name, long latencyMs) {
+        System.out.println(String.format(Locale.US, "%-45s %6dms", name, latencyMs));
+    }
+
+    private static void reportThroughput(String name, long[] result) {
+        final int commands = CYCLES * 2;
+        System.out.println(String.format(Locale.US,
+                "%-45s %6.1f commands/min, %5.1fms/command, %d writes",
+                name, commands * 60000.0 / result[0], (double) result[0] / commands, result[1]));
+    }
+}
@@ -0,0 +1,133 @@
+package net.jpuderer.bluedoor.protocol;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Drives a {@link VirtualGattLink} the way the app's {@code LockSession} drives the real
+ * one: once services are discovered it enables notifications and asks for the status,
+ * commands are split into serial frames written one at a time, and notifications go
+ * through the {@link StatusDecoder} into a {@link LockStateMachine}.
+ */
+public class VirtualLockClient implements VirtualGattLink.Central {
+    // The Bluno's serial characteristic takes this many bytes per write
+    public static final int FRAME_SIZE = 17;
+
+    private static final byte[] STATUS_REQUEST = { LockProtocol.GET_STATUS_COMMAND };
+    // Stands in for the descriptor write in the operation queue
+    private static final byte[] ENABLE_NOTIFICATIONS = new byte[0];
+
+    /**
+     * Hears about door state changes, with the virtual time they were seen.
+     */
+    public interface Listener {
+        void onDoorStateChanged(int doorState, long now);
+    }
+
+    private final VirtualClock mClock;
+    private final VirtualGattLink mLink;
+    private final LockStateMachine mStateMachine = new LockStateMachine();
+    private final StatusDecoder mDecoder = new StatusDecoder();
+    private final ArrayDeque<byte[]> mOperations = new ArrayDeque<byte[]>();
+    private final int mFrameSize;
+    private boolean mOperationInFlight;
+    private Listener mListener;
+    private int mErrors;
+
+    private final StatusDecoder.Listener mDecoderListener = new StatusDecoder.Listener() {
+        @Override
+        public void onDoorLocked() {
+            setDoorState(LockStateMachine.DOOR_STATE_LOCKED);
+        }
+
+        @Override
+        public void onDoorUnlocked() {
+            setDoorState(LockStateMachine.DOOR_STATE_UNLOCKED);
+        }
+
+        @Override
+        public void onLockError() {
+            mErrors++;
+        }
+
+        @Override
+        public void onUnknownOpcode(int opcode) {
+        }
+    };
+
+    public VirtualLockClient(VirtualClock clock, VirtualGattLink link) {
+        this(clock, link, FRAME_SIZE);
+    }
+
+    public VirtualLockClient(VirtualClock clock, VirtualGattLink link, int frameSize) {
+        mClock = clock;
+        mLink = link;
+        mFrameSize = frameSize;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public void connect(boolean fastReconnect) {
+        mStateMachine.onConnecting();
+        mLink.connect(this, fastReconnect);
+    }
+
+    /**
+     * Queues a command, split into frames.  Commands sent before the link is ready are
+     * held until it is, as the app does.
+     */
+    public void send(byte[] command) {
+        for (int offset = 0; offset < command.length; offset += mFrameSize) {
+            mOperations.add(Arrays.copyOfRange(command, offset,
+                    Math.min(command.length, offset + mFrameSize)));
+        }
+        issueNext();
+    }
+
+    public LockStateMachine getStateMachine() {
+        return mStateMachine;
+    }
+
+    public int getErrorCount() {
+        return mErrors;
+    }
+
+    @Override
+    public void onReady() {
+        mStateMachine.onConnected();
+        // Ahead of anything queued while connecting
+        mOperations.addFirst(STATUS_REQUEST);
+        mOperations.addFirst(ENABLE_NOTIFICATIONS);
+        issueNext();
+    }
+
+    @Override
+    public void onWriteComplete(boolean success) {
+        mOperationInFlight = false;
+        issueNext();
+    }
+
+    @Override
+    public void onNotification(byte[] data) {
+        mDecoder.feed(data);
+        mDecoder.drain(mDecoderListener);
+    }
+
+    private void issueNext() {
+        if (mOperationInFlight || mOperations.isEmpty() || !mStateMachine.isConnected()) {
+            return;
+        }
+        final byte[] operation = mOperations.poll();
+        mOperationInFlight = (operation == ENABLE_NOTIFICATIONS) ?
+                mLink.enableNotifications() : mLink.write(operation);
+    }
+
+    private void setDoorState(int doorState) {
+        if (mStateMachine.onDoorStatus(doorState) != LockStateMachine.CHANGED_NOTHING
+                && mListener != null) {
+            mListener.onDoorStateChanged(doorState, mClock.now());
+        }
+    }
+}
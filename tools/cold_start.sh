@@ -0,0 +1,77 @@
+#!/bin/bash
+#
+# Measures cold start of MainActivity on a connected device.
+#
+# Each run force-stops the app, so the process has to be created from scratch, starts
+# MainActivity and waits for it.  Reports the time to the first frame (TotalTime from
+# "am start -W"), and the time until the live lock state from the service replaced the
+# cached one ("Fully drawn" in the log, from reportFullyDrawn()).
+#
+# Usage: tools/cold_start.sh [runs]
+#
+# Install the build to measure first (e.g. "gradlew installDebug"), with Bluetooth on
+# and the screen unlocked.  Compare medians from the same device, and the same number
+# of runs.
+
+set -e
+
+RUNS=${1:-10}
+PACKAGE=net.jpuderer.android.bluedoor
+ACTIVITY=$PACKAGE/.MainActivity
+ADB=${ADB:-adb}
+
+# Converts the "+1s234ms" durations in the "Fully drawn" log line to milliseconds
+to_ms() {
+    echo "$1" | sed -e 's/^+//' | awk '{
+        ms = 0
+        if (match($0, /[0-9]+s/)) ms += substr($0, RSTART, RLENGTH - 1) * 1000
+        if (match($0, /[0-9]+ms/)) ms += substr($0, RSTART, RLENGTH - 2)
+        print ms
+    }'
+}
+
+# Prints the min, median and max of the numbers on stdin
+summarize() {
+    sort -n | awk '{ v[NR] = $1 } END {
+        if (NR == 0) { print "no samples"; exit }
+        median = (NR % 2) ? v[(NR + 1) / 2] : (v[NR / 2] + v[NR / 2 + 1]) / 2
+        printf "min %d  median %.0f  max %d  (ms, %d runs)\n", v[1], median, v[NR], NR
+    }'
+}
+
+FIRST_FRAME=$(mktemp)
+FULLY_DRAWN=$(mktemp)
+trap 'rm -f "$FIRST_FRAME" "$FULLY_DRAWN"' EXIT
+
+for i in $(seq 1 "$RUNS"); do
+    $ADB shell am force-stop $PACKAGE
+    # Let the system settle after killing the process
+    sleep 2
+    $ADB logcat -c
+
+    total=$($ADB shell am start -W -n $ACTIVITY | tr -d '\r' | \
+            awk -F': ' '/^TotalTime/ { print $2 }')
+    echo "$total" >> "$FIRST_FRAME"
+
+    # The service binds after the first frame, so give it a moment
+    drawn=""
+    for attempt in $(seq 1 20); do
+        drawn=$($ADB logcat -d | tr -d '\r' | \
+                sed -n "s/.*Fully drawn $ACTIVITY: \(+[0-9ms]*\).*/\1/p" | head -n 1)
+        [ -n "$drawn" ] && break
+        sleep 0.25
+    done
+    if [ -n "$drawn" ]; then
+        to_ms "$drawn" >> "$FULLY_DRAWN"
+    fi
+
+    echo "run $i: first frame ${total}ms, fully drawn ${drawn:-(not seen)}"
+done
+
+$ADB shell am force-stop $PACKAGE
+
+echo
+echo -n "First frame:  "
+summarize < "$FIRST_FRAME"
+echo -n "Fully drawn:  "
+summarize < "$FULLY_DRAWN"